@@ -0,0 +1,124 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures extracting the JBLAS bundles to an empty directory (cold),
+ * re-verifying bundles that have already been extracted (warm) and loading
+ * bundles already verified by another loader in the JVM (shared). Each invocation
+ * uses a new JNILoader and leaves the java.library.path untouched so only
+ * extraction and verification are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExtractionBenchmark {
+    /** The classpath directory containing the JBLAS bundles. */
+    static final String JBLAS_PATH = "/native/jblas";
+
+    /** The basename of the JBLAS bundles. */
+    static final String JBLAS_PACKAGE = "jblas-1.2.3";
+
+    /**
+     * A JBLAS bundle for one of the benchmarked platforms, extracted to its own
+     * temporary directory.
+     */
+    @State(Scope.Thread)
+    public static class Bundle {
+        @Param({ "LINUX", "DARWIN", "WINDOWS" })
+        public OperatingSystem os;
+
+        String tmpPath;
+        File extractionDir;
+        JNILoader.Platform platform;
+
+        @Setup(Level.Trial)
+        public void createBundle() {
+            tmpPath = String.format("jniloader-bench-%s", UUID.randomUUID());
+            extractionDir = new File(JNILoader.getExtractionRoot().getDirectory(), tmpPath);
+            platform = new JNILoader.Platform(os, Architecture.X86_64);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteBundle() throws IOException {
+            FileUtils.deleteDirectory(extractionDir);
+        }
+
+        /**
+         * @return a new loader for the bundle that does not update the java.library.path
+         */
+        JNILoader newLoader() {
+            JNILoader loader = new JNILoader(tmpPath, platform);
+            loader.setUpdateLibraryPath(false);
+            return loader;
+        }
+    }
+
+    /**
+     * A bundle whose extraction directory is deleted before every invocation.
+     */
+    public static class ColdBundle extends Bundle {
+        @Setup(Level.Invocation)
+        public void clean() throws IOException {
+            FileUtils.deleteDirectory(extractionDir);
+        }
+    }
+
+    /**
+     * A bundle that is extracted once, before the trial, and stays in the JVM-wide
+     * bundle registry.
+     */
+    public static class SharedBundle extends Bundle {
+        @Setup(Level.Trial)
+        public void extract() throws IOException {
+            if (!newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)) {
+                throw new IllegalStateException(String.format("Unable to extract %s for %s", JBLAS_PACKAGE, platform));
+            }
+        }
+    }
+
+    /**
+     * A bundle that is extracted once, before the trial, and removed from the
+     * bundle registry before every invocation, as in a new JVM.
+     */
+    public static class WarmBundle extends SharedBundle {
+        @Setup(Level.Invocation)
+        public void forget() {
+            BundleRegistry.getInstance().clear();
+        }
+    }
+
+    @Benchmark
+    public boolean coldExtraction(final ColdBundle bundle) throws IOException {
+        return bundle.newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE);
+    }
+
+    @Benchmark
+    public boolean warmVerification(final WarmBundle bundle) throws IOException {
+        return bundle.newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE);
+    }
+
+    @Benchmark
+    public boolean sharedVerification(final SharedBundle bundle) throws IOException {
+        return bundle.newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE);
+    }
+}
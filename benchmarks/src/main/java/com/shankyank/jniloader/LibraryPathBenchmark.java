@@ -0,0 +1,91 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures adding an extracted bundle to a java.library.path that already
+ * contains <code>registeredDirs</code> directories. The bundle is extracted
+ * before the trial and the java.library.path is reset before every invocation,
+ * so each invocation parses the existing path and appends the bundle's
+ * directories to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LibraryPathBenchmark {
+    /** The System library path property. */
+    private static final String JAVA_LIBRARY_PATH = "java.library.path";
+
+    @Param({ "10", "100", "1000" })
+    public int registeredDirs;
+
+    private String originalPath;
+    private String registeredPath;
+    private File extractionDir;
+    private JNILoader loader;
+
+    @Setup(Level.Trial)
+    public void registerDirectories() throws IOException {
+        String tmpPath = String.format("jniloader-bench-%s", UUID.randomUUID());
+        extractionDir = new File(JNILoader.getExtractionRoot().getDirectory(), tmpPath);
+        originalPath = System.getProperty(JAVA_LIBRARY_PATH);
+
+        StringBuilder path = new StringBuilder(originalPath != null ? originalPath : "");
+        for (int i = 0; i < registeredDirs; i++) {
+            File dir = new File(extractionDir, String.format("registered/dir-%d", i));
+            if (!dir.mkdirs()) {
+                throw new IOException(String.format("Unable to create %s", dir.getPath()));
+            }
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(dir.getPath());
+        }
+        registeredPath = path.toString();
+
+        loader = new JNILoader(tmpPath, new JNILoader.Platform(OperatingSystem.LINUX, Architecture.X86_64));
+        if (!loader.extractLibs(ExtractionBenchmark.JBLAS_PATH, ExtractionBenchmark.JBLAS_PACKAGE)) {
+            throw new IllegalStateException(String.format("Unable to extract %s", ExtractionBenchmark.JBLAS_PACKAGE));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void resetPath() {
+        System.setProperty(JAVA_LIBRARY_PATH, registeredPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void restorePath() throws IOException {
+        if (originalPath != null) {
+            System.setProperty(JAVA_LIBRARY_PATH, originalPath);
+        } else {
+            System.clearProperty(JAVA_LIBRARY_PATH);
+        }
+        FileUtils.deleteDirectory(extractionDir);
+    }
+
+    @Benchmark
+    public boolean updateSystemPath() throws IOException {
+        return loader.extractLibs(ExtractionBenchmark.JBLAS_PATH, ExtractionBenchmark.JBLAS_PACKAGE);
+    }
+}
@@ -0,0 +1,36 @@
+package com.shankyank.jniloader;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures resolving the canonical operating system and architecture of the
+ * runtime platform from the os.name and os.arch system properties.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PlatformBenchmark {
+    @Benchmark
+    public OperatingSystem getSystemOS() {
+        return OperatingSystem.getSystemOS();
+    }
+
+    @Benchmark
+    public Architecture getSystemArchitecture() {
+        return Architecture.getSystemArchitecture();
+    }
+
+    @Benchmark
+    public JNILoader.Platform runtimePlatform() {
+        return new JNILoader.Platform(OperatingSystem.getSystemOS(), Architecture.getSystemArchitecture());
+    }
+}
@@ -0,0 +1,319 @@
+package com.shankyank.jniloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Starts many JVMs at once, each of which extracts the JBLAS bundle for
+ * LINUX/X86_64 into the same directory, and reports how long each took to be
+ * ready, how many bytes were written, how many files were extracted more than
+ * once and how many verifications failed. The first round starts with an empty
+ * directory; later rounds find the bundle already extracted unless every round
+ * is cold.
+ * <p>
+ * The processes are started and wait until all of them have loaded the JNILoader,
+ * then are released together, so they contend for the bundle's extraction lock.
+ * Time to ready is measured in each process, from its release to the return of
+ * <code>extractLibs()</code>. System properties starting with <code>jniloader.</code>
+ * are passed on to the processes, so the storm can be repeated with, for instance,
+ * another verification policy or extraction root.
+ */
+public final class StartupStorm {
+    /** The prefix of the system properties passed to the processes. */
+    private static final String PROPERTY_PREFIX = "jniloader.";
+
+    /** The line a process writes when it is ready to be released. */
+    private static final String WAITING = "waiting";
+
+    /** The line that releases the processes. */
+    private static final String GO = "go";
+
+    /** The prefix of the line naming a file a process extracted. */
+    private static final String ENTRY = "entry\t";
+
+    /** The prefix of the line reporting the results of a process. */
+    private static final String RESULT = "result\t";
+
+    private StartupStorm() {
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        Options opts = new Options();
+        opts.addOption(OptionBuilder.withLongOpt("help").withDescription("Display this help text.").create('?'));
+        opts.addOption(OptionBuilder.
+                        withLongOpt("processes").
+                        hasArg(true).
+                        withArgName("count").
+                        withDescription("The number of JVMs started at once. Defaults to 8.").
+                        create('n')
+        );
+        opts.addOption(OptionBuilder.
+                        withLongOpt("rounds").
+                        hasArg(true).
+                        withArgName("count").
+                        withDescription("The number of storms. The first is cold; the rest are warm unless -c is set. Defaults to 3.").
+                        create('r')
+        );
+        opts.addOption(OptionBuilder.withLongOpt("cold").
+                withDescription("Delete the extracted bundle before every round.").
+                create('c'));
+
+        String usage = "StartupStorm [-n <count>] [-r <count>] [-c]";
+        HelpFormatter help = new HelpFormatter();
+        help.setWidth(120);
+        CommandLine commandLine = null;
+        int processes = 0;
+        int rounds = 0;
+        try {
+            commandLine = new GnuParser().parse(opts, args);
+            processes = Integer.parseInt(commandLine.getOptionValue('n', "8"));
+            rounds = Integer.parseInt(commandLine.getOptionValue('r', "3"));
+        } catch (ParseException | NumberFormatException e) {
+            System.out.println(e.getMessage());
+            help.printHelp(usage, opts);
+            System.exit(1);
+        }
+        if (commandLine.hasOption('?')) {
+            help.printHelp(usage, opts);
+            System.exit(0);
+        }
+        if (processes < 1 || rounds < 1) {
+            System.out.println("The number of processes and rounds must be positive");
+            help.printHelp(usage, opts);
+            System.exit(1);
+        }
+
+        String tmpPath = String.format("jniloader-storm-%s", UUID.randomUUID());
+        File extractionDir = new File(JNILoader.getExtractionRoot().getDirectory(), tmpPath);
+        System.out.printf("Extraction Directory: %s%n", extractionDir.getPath());
+        boolean failed = false;
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                boolean cold = round == 1 || commandLine.hasOption('c');
+                if (cold) {
+                    FileUtils.deleteDirectory(extractionDir);
+                }
+                Round result = storm(tmpPath, processes, cold);
+                result.print(round);
+                failed |= result.failedProcesses > 0;
+            }
+        } finally {
+            FileUtils.deleteDirectory(extractionDir);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Starts the processes, releases them together and collects their results.
+     * @param tmpPath the extraction directory, relative to the extraction root
+     * @param processes the number of processes
+     * @param cold <code>true</code> if the bundle has not been extracted
+     * @return the results of the round
+     */
+    private static Round storm(final String tmpPath, final int processes, final boolean cold)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                command.add(String.format("-D%s=%s", name, System.getProperty(name)));
+            }
+        }
+        command.add(Child.class.getName());
+        command.add(tmpPath);
+
+        List<Process> started = new ArrayList<>();
+        List<BufferedReader> outputs = new ArrayList<>();
+        Round round = new Round(cold);
+        try {
+            for (int i = 0; i < processes; i++) {
+                Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                started.add(process);
+                outputs.add(new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)));
+            }
+            for (BufferedReader output : outputs) {
+                String line = output.readLine();
+                if (!WAITING.equals(line)) {
+                    throw new IOException(String.format("Process failed to start: %s", line));
+                }
+            }
+            long released = System.nanoTime();
+            for (Process process : started) {
+                OutputStream input = process.getOutputStream();
+                input.write(String.format("%s%n", GO).getBytes(StandardCharsets.UTF_8));
+                input.flush();
+            }
+            for (int i = 0; i < processes; i++) {
+                round.collect(outputs.get(i));
+                started.get(i).waitFor();
+            }
+            round.wallNanos = System.nanoTime() - released;
+        } finally {
+            for (Process process : started) {
+                process.destroy();
+            }
+        }
+        return round;
+    }
+
+    /**
+     * The results of a round.
+     */
+    private static final class Round {
+        private final boolean cold;
+        private final List<Long> readyNanos = new ArrayList<>();
+        private final Map<String, Integer> extractions = new HashMap<>();
+        private long wallNanos;
+        private long bytesWritten;
+        private long lockWaitNanos;
+        private int verifications;
+        private int failedVerifications;
+        private int failedProcesses;
+
+        private Round(final boolean coldRound) {
+            cold = coldRound;
+        }
+
+        /**
+         * Reads the results of a process.
+         * @param output the output of the process
+         */
+        private void collect(final BufferedReader output) throws IOException {
+            for (String line = output.readLine(); line != null; line = output.readLine()) {
+                if (line.startsWith(ENTRY)) {
+                    String entry = line.substring(ENTRY.length());
+                    Integer count = extractions.get(entry);
+                    extractions.put(entry, count != null ? count + 1 : 1);
+                } else if (line.startsWith(RESULT)) {
+                    String[] fields = line.substring(RESULT.length()).split("\t");
+                    if (!Boolean.parseBoolean(fields[0])) {
+                        failedProcesses++;
+                    }
+                    readyNanos.add(Long.parseLong(fields[1]));
+                    bytesWritten += Long.parseLong(fields[2]);
+                    lockWaitNanos += Long.parseLong(fields[3]);
+                    verifications += Integer.parseInt(fields[4]);
+                    failedVerifications += Integer.parseInt(fields[5]);
+                    return;
+                }
+            }
+            failedProcesses++;
+        }
+
+        private void print(final int round) {
+            int extracted = 0;
+            for (int count : extractions.values()) {
+                extracted += count;
+            }
+            // a cold round must extract each file once and a warm round none
+            int reextracted = extracted - (cold ? extractions.size() : 0);
+            Collections.sort(readyNanos);
+            System.out.printf("Round %d (%s): %d processes%n", round, cold ? "cold" : "warm", readyNanos.size() + failedProcesses);
+            if (!readyNanos.isEmpty()) {
+                System.out.printf("  Time to Ready:      min %s, median %s, max %s%n", millis(readyNanos.get(0)),
+                        millis(readyNanos.get(readyNanos.size() / 2)), millis(readyNanos.get(readyNanos.size() - 1)));
+            }
+            System.out.printf("  Storm Time:         %s%n", millis(wallNanos));
+            System.out.printf("  Bytes Written:      %d%n", bytesWritten);
+            System.out.printf("  Files Extracted:    %d (%d re-extracted)%n", extracted, reextracted);
+            System.out.printf("  Verifications:      %d (%d failed)%n", verifications, failedVerifications);
+            System.out.printf("  Lock Wait:          %s%n", millis(lockWaitNanos));
+            System.out.printf("  Failed Processes:   %d%n", failedProcesses);
+        }
+
+        private static String millis(final long nanos) {
+            return String.format("%.1f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * A process in the storm. It loads the JNILoader, waits to be released, extracts
+     * the JBLAS bundle and reports the files it extracted and its results.
+     */
+    public static final class Child {
+        private Child() {
+        }
+
+        public static void main(final String[] args) throws IOException {
+            final List<ExtractionEvent> events = Collections.synchronizedList(new ArrayList<ExtractionEvent>());
+            ExtractionMetrics.addListener(new ExtractionListener() {
+                @Override
+                public void phaseCompleted(final ExtractionEvent event) {
+                    events.add(event);
+                }
+            });
+            JNILoader loader = new JNILoader(args[0], new JNILoader.Platform(OperatingSystem.LINUX, Architecture.X86_64));
+            loader.setUpdateLibraryPath(false);
+
+            System.out.println(WAITING);
+            System.out.flush();
+            BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            if (!GO.equals(input.readLine())) {
+                System.exit(1);
+            }
+
+            long start = System.nanoTime();
+            boolean ready = false;
+            try {
+                ready = loader.extractLibs(ExtractionBenchmark.JBLAS_PATH, ExtractionBenchmark.JBLAS_PACKAGE);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            long readyNanos = System.nanoTime() - start;
+
+            long bytesWritten = 0L;
+            long lockWaitNanos = 0L;
+            int verifications = 0;
+            int failedVerifications = 0;
+            synchronized (events) {
+                for (ExtractionEvent event : events) {
+                    switch (event.getPhase()) {
+                        case EXTRACT_ENTRY:
+                            if (event.isSuccessful()) {
+                                System.out.printf("%s%s%n", ENTRY, event.getEntryName());
+                            }
+                            break;
+                        case EXTRACT:
+                            bytesWritten += event.getBytesWritten();
+                            break;
+                        case LOCK_WAIT:
+                            lockWaitNanos += event.getDurationNanos();
+                            break;
+                        case VERIFY:
+                            verifications++;
+                            if (!event.isSuccessful()) {
+                                failedVerifications++;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            System.out.printf("%s%s\t%d\t%d\t%d\t%d\t%d%n", RESULT, ready, readyNanos, bytesWritten, lockWaitNanos, verifications,
+                    failedVerifications);
+            System.out.flush();
+            System.exit(ready ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.shankyank.jniloader;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * The archive format of a native library bundle, identified by the extension of the
+ * bundle's file name. ZIP and uncompressed tar bundles are supported by default;
+ * other formats can be added by naming their implementations in
+ * <code>META-INF/services/com.shankyank.jniloader.BundleFormat</code>.
+ * <p>
+ * Formats that store their entries uncompressed should open archives in the local
+ * file system with random access and report the position of each entry's data, so
+ * libraries are copied directly from the archive file by the operating system.
+ */
+public interface BundleFormat {
+    /** The ZIP format, read with the central directory when the archive is in the local file system. */
+    BundleFormat ZIP = new BundleFormat() {
+        @Override
+        public String getExtension() {
+            return "zip";
+        }
+
+        @Override
+        public NativeArchive open(final URL location) throws IOException {
+            return NativeArchive.open(location);
+        }
+
+        @Override
+        public String toString() {
+            return getExtension();
+        }
+    };
+
+    /** The uncompressed POSIX tar format. */
+    BundleFormat TAR = new BundleFormat() {
+        @Override
+        public String getExtension() {
+            return "tar";
+        }
+
+        @Override
+        public NativeArchive open(final URL location) throws IOException {
+            return TarArchive.open(location);
+        }
+
+        @Override
+        public String toString() {
+            return getExtension();
+        }
+    };
+
+    /**
+     * @return the extension of bundles in this format, without the leading dot
+     */
+    String getExtension();
+
+    /**
+     * Opens a bundle in this format.
+     * @param location the location of the bundle
+     * @return the opened archive
+     * @throws IOException if the archive cannot be opened
+     */
+    NativeArchive open(URL location) throws IOException;
+}
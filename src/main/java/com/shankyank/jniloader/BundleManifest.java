@@ -0,0 +1,264 @@
+package com.shankyank.jniloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the files in a native library bundle, generated when the bundle
+ * is built and stored as the first entry of the archive. Each file is recorded
+ * with its size and SHA-256 hash so the JNILoader can verify previously extracted
+ * libraries by reading the manifest and the extracted files, without inflating
+ * the rest of the archive.
+ *
+ * The manifest is a UTF-8 text file with one tab-separated line per file:
+ * <code>[sha256] [size] [name]</code>. Lines starting with <code>#</code> are ignored.
+ */
+public final class BundleManifest {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(BundleManifest.class);
+
+    /** The name of the manifest entry in a bundle archive. */
+    public static final String ENTRY_NAME = "META-INF/jni-loader.manifest";
+
+    /** The digest algorithm used to hash bundled files. */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** The manifest header. */
+    private static final String HEADER = "# jni-loader bundle manifest";
+
+    /** The files in the bundle. */
+    private final List<Entry> entries;
+
+    /**
+     * Creates a new manifest.
+     * @param files the files in the bundle
+     */
+    BundleManifest(final List<Entry> files) {
+        entries = Collections.unmodifiableList(new ArrayList<>(files));
+    }
+
+    /**
+     * @return the files in the bundle, in archive order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Writes this manifest to the provided stream. The stream is not closed.
+     * @param output the output stream
+     * @throws IOException if the manifest cannot be written
+     */
+    public void write(final OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Entry entry : entries) {
+            writer.write(String.format("%s\t%d\t%s\n", entry.sha256, entry.size, entry.name));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a manifest from the provided stream. The stream is not closed.
+     * @param input the input stream
+     * @return the manifest
+     * @throws IOException if the manifest cannot be read or is malformed
+     */
+    public static BundleManifest read(final InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        List<Entry> files = new ArrayList<>();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", 3);
+            if (fields.length != 3) {
+                throw new IOException(String.format("Malformed manifest entry: %s", line));
+            }
+            try {
+                files.add(new Entry(fields[2], Long.parseLong(fields[1]), fields[0]));
+            } catch (NumberFormatException nfe) {
+                throw new IOException(String.format("Malformed manifest entry: %s", line), nfe);
+            }
+        }
+        return new BundleManifest(files);
+    }
+
+    /**
+     * Generates the manifest for all files in the provided archive, ignoring
+     * any existing manifest entry.
+     * @param archive the bundle archive
+     * @return the manifest
+     * @throws IOException if the archive cannot be read
+     */
+    public static BundleManifest generate(final ZipFile archive) throws IOException {
+        List<Entry> files = new ArrayList<>();
+        for (Enumeration<? extends ZipEntry> iter = archive.entries(); iter.hasMoreElements();) {
+            ZipEntry zipEntry = iter.nextElement();
+            if (zipEntry.isDirectory() || ENTRY_NAME.equals(zipEntry.getName())) {
+                continue;
+            }
+            MessageDigest digest = newDigest();
+            long size = 0L;
+            try (InputStream in = archive.getInputStream(zipEntry)) {
+                byte[] buffer = new byte[8192];
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    digest.update(buffer, 0, read);
+                    size += read;
+                }
+            }
+            files.add(new Entry(zipEntry.getName(), size, toHexString(digest.digest())));
+        }
+        return new BundleManifest(files);
+    }
+
+    /**
+     * Rewrites a bundle archive so its first entry is a manifest of the files
+     * it contains. Any existing manifest is replaced. This is intended to be run
+     * when the bundle is built, for instance from the JNILoader command line.
+     * @param archive the bundle archive to update
+     * @return the generated manifest
+     * @throws IOException if the archive cannot be updated
+     */
+    public static BundleManifest addTo(final File archive) throws IOException {
+        File updated = File.createTempFile(archive.getName(), ".tmp", archive.getAbsoluteFile().getParentFile());
+        BundleManifest manifest;
+        try (ZipFile source = new ZipFile(archive);
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(updated))) {
+            manifest = generate(source);
+            out.putNextEntry(new ZipEntry(ENTRY_NAME));
+            manifest.write(out);
+            out.closeEntry();
+            for (Enumeration<? extends ZipEntry> iter = source.entries(); iter.hasMoreElements();) {
+                ZipEntry entry = iter.nextElement();
+                if (ENTRY_NAME.equals(entry.getName())) {
+                    continue;
+                }
+                out.putNextEntry(copyOf(entry));
+                try (InputStream in = source.getInputStream(entry)) {
+                    IOUtils.copy(in, out);
+                }
+                out.closeEntry();
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(updated.toPath());
+            throw e;
+        }
+        Files.move(updated.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOG.info("Wrote manifest of {} files to {}", manifest.entries.size(), archive.getPath());
+        return manifest;
+    }
+
+    /**
+     * Creates a new ZipEntry with the name, time and compression method of the
+     * source entry, so it can be copied to a new archive.
+     * @param source the source entry
+     * @return the new entry
+     */
+    private static ZipEntry copyOf(final ZipEntry source) {
+        ZipEntry entry = new ZipEntry(source.getName());
+        entry.setTime(source.getTime());
+        if (source.getMethod() == ZipEntry.STORED) {
+            // stored entries must declare their size and CRC before they are written
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(source.getSize());
+            entry.setCompressedSize(source.getSize());
+            entry.setCrc(source.getCrc());
+        }
+        return entry;
+    }
+
+    /**
+     * @return a new MessageDigest for the manifest algorithm
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(String.format("%s algorithm is not available.", DIGEST_ALGORITHM), nsae);
+        }
+    }
+
+    /**
+     * Converts a digest to the zero-padded hex string recorded in the manifest.
+     * @param digest the digest bytes
+     * @return the hex string
+     */
+    static String toHexString(final byte[] digest) {
+        StringBuilder hash = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hash.append(String.format("%02x", b & 0xff));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * A file recorded in the manifest.
+     */
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final String sha256;
+
+        /**
+         * Creates a new manifest entry.
+         * @param name the path of the file in the archive
+         * @param size the uncompressed size of the file
+         * @param sha256 the hex encoded SHA-256 hash of the file
+         */
+        Entry(final String name, final long size, final String sha256) {
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * @return the path of the file in the archive
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the uncompressed size of the file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the hex encoded SHA-256 hash of the file
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d bytes)", name, size);
+        }
+    }
+}
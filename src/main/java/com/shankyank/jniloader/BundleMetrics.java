@@ -0,0 +1,115 @@
+package com.shankyank.jniloader;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics recorded for one bundle on one platform.
+ */
+public final class BundleMetrics {
+    private final String resourcePath;
+    private final String libPackage;
+    private final String platform;
+    private final Map<String, Long> phaseNanos;
+    private final Map<String, Long> phaseCounts;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long cacheHits;
+    private final long cacheMisses;
+
+    /**
+     * Creates a new BundleMetrics.
+     * @param resPath the classpath directory containing the bundle
+     * @param lPkg the basename of the bundle
+     * @param pform the platform of the bundle
+     * @param nanos the total time spent in each phase, in nanoseconds, keyed on phase name
+     * @param counts the number of times each phase completed, keyed on phase name
+     * @param read the number of bytes read
+     * @param written the number of bytes written
+     * @param hits the number of times the bundle was verified without being extracted
+     * @param misses the number of times the bundle had to be extracted
+     */
+    @ConstructorProperties({ "resourcePath", "libPackage", "platform", "phaseNanos", "phaseCounts", "bytesRead", "bytesWritten",
+            "cacheHits", "cacheMisses" })
+    public BundleMetrics(final String resPath, final String lPkg, final String pform, final Map<String, Long> nanos,
+                         final Map<String, Long> counts, final long read, final long written, final long hits, final long misses) {
+        resourcePath = resPath;
+        libPackage = lPkg;
+        platform = pform;
+        phaseNanos = Collections.unmodifiableMap(nanos);
+        phaseCounts = Collections.unmodifiableMap(counts);
+        bytesRead = read;
+        bytesWritten = written;
+        cacheHits = hits;
+        cacheMisses = misses;
+    }
+
+    /**
+     * @return the classpath directory containing the bundle
+     */
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * @return the basename of the bundle
+     */
+    public String getLibPackage() {
+        return libPackage;
+    }
+
+    /**
+     * @return the platform of the bundle: [os]-[arch]
+     */
+    public String getPlatform() {
+        return platform;
+    }
+
+    /**
+     * @return the total time spent in each phase, in nanoseconds, keyed on phase name
+     */
+    public Map<String, Long> getPhaseNanos() {
+        return phaseNanos;
+    }
+
+    /**
+     * @return the number of times each phase completed, keyed on phase name
+     */
+    public Map<String, Long> getPhaseCounts() {
+        return phaseCounts;
+    }
+
+    /**
+     * @return the number of bytes read from the archive and extracted files
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of bytes written to the extraction directory
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of times the bundle was verified without being extracted
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of times the bundle had to be extracted
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s] on %s", libPackage, resourcePath, platform);
+    }
+}
@@ -0,0 +1,481 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The bundles verified or extracted by every JNILoader in the JVM, keyed on the
+ * identity of the archive, the extraction directory and the verification policy.
+ * Each bundle is verified once per JVM: loaders that find a bundle already in the
+ * registry use its extracted libraries without checking them, and loaders that
+ * find it in progress wait for it. Failed bundles are removed so they can be retried.
+ * <p>
+ * The registry is registered with the platform MBean server as {@value #OBJECT_NAME}
+ * when the JNILoader is first used. The JNILoader classes of other class loaders
+ * call the registered registry through the MBean server, using the operations
+ * declared in its MBean info, which only take and return strings and booleans, so
+ * no class loader holds objects of another. If the MBean server is unavailable,
+ * the registry is shared only by loaders in the same class loader.
+ * <p>
+ * The registry holds at most {@value #MAX_BUNDLES} bundles. When it is full,
+ * verified bundles whose directories have been removed are forgotten first, then
+ * the oldest verified bundles; a forgotten bundle is simply verified again.
+ */
+public final class BundleRegistry implements DynamicMBean {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(BundleRegistry.class);
+
+    /** The name of the registry MBean. */
+    public static final String OBJECT_NAME = "com.shankyank.jniloader:type=BundleRegistry";
+
+    /** The maximum number of bundles in the registry. */
+    static final int MAX_BUNDLES = 1024;
+
+    /** The state recorded for bundles that have been verified. */
+    private static final String VERIFIED = "verified";
+
+    /** The state recorded for bundles that are being verified. */
+    private static final String IN_PROGRESS = "in progress";
+
+    /** The registry for the JVM. */
+    private static final BundleRegistry INSTANCE = create();
+
+    /** The verifications of each bundle, in flight or complete, keyed on bundle; <code>null</code> if the registry is remote. */
+    private final ConcurrentMap<String, Verification> bundles;
+
+    /** The MBean server of the registry registered by another class loader; <code>null</code> if the registry is local. */
+    private final MBeanServer server;
+
+    /** The name of the registry registered by another class loader; <code>null</code> if the registry is local. */
+    private final ObjectName name;
+
+    private BundleRegistry(final ConcurrentMap<String, Verification> localBundles, final MBeanServer remoteServer,
+                           final ObjectName remoteName) {
+        bundles = localBundles;
+        server = remoteServer;
+        name = remoteName;
+    }
+
+    /**
+     * @return the registry for the JVM
+     */
+    public static BundleRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the registry with the platform MBean server, or joins the registry
+     * registered by another class loader.
+     * @return the registry
+     */
+    private static BundleRegistry create() {
+        BundleRegistry local = new BundleRegistry(new ConcurrentHashMap<String, Verification>(), null, null);
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            try {
+                mbeanServer.registerMBean(local, objectName);
+                return local;
+            } catch (InstanceAlreadyExistsException iaee) {
+                if (mbeanServer.isInstanceOf(objectName, BundleRegistry.class.getName())) {
+                    LOG.debug("Sharing the {} registered by another class loader", OBJECT_NAME);
+                    return new BundleRegistry(null, mbeanServer, objectName);
+                }
+                LOG.warn("{} is registered by an incompatible class; bundles will not be shared with other class loaders", OBJECT_NAME);
+            }
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Unable to register {}; bundles will not be shared with other class loaders", OBJECT_NAME, e);
+        }
+        return local;
+    }
+
+    /**
+     * Creates the key of a bundle.
+     * @param archiveId the identity of the archive, from {@link ExtractionReceipt#identify(java.net.URL, String)}
+     * @param bundleDir the canonical directory where the bundle is extracted
+     * @param policy the verification policy
+     * @return the key of the bundle
+     */
+    static String key(final String archiveId, final File bundleDir, final VerificationPolicy policy) {
+        return String.format("%s\t%s\t%s", policy.getCanonicalName(), bundleDir.getPath(), archiveId);
+    }
+
+    /**
+     * Claims a bundle for verification. The caller must verify the bundle and then
+     * {@link #complete(String, boolean) complete} it.
+     * @param key the key of the bundle
+     * @return <code>true</code> if the bundle was claimed, <code>false</code> if it
+     * has been verified or is being verified by another loader
+     */
+    boolean claim(final String key) {
+        if (bundles == null) {
+            return (Boolean) call("claim", key);
+        }
+        if (bundles.size() >= MAX_BUNDLES) {
+            prune();
+        }
+        return bundles.putIfAbsent(key, new Verification()) == null;
+    }
+
+    /**
+     * Records the result of verifying a claimed bundle and releases the loaders
+     * waiting for it. Failed bundles are removed so they can be verified again.
+     * @param key the key of the bundle
+     * @param verified <code>true</code> if the bundle is usable
+     */
+    void complete(final String key, final boolean verified) {
+        if (bundles == null) {
+            call("complete", key, verified);
+            return;
+        }
+        Verification verification = bundles.get(key);
+        if (verification != null && !verification.isDone()) {
+            verification.verified = verified;
+            if (!verified) {
+                bundles.remove(key, verification);
+            }
+            verification.done.countDown();
+        }
+    }
+
+    /**
+     * Waits for another loader to verify a bundle.
+     * @param key the key of the bundle
+     * @return <code>true</code> if the bundle was verified, <code>false</code> if it is
+     * not in the registry, its verification failed or the thread was interrupted
+     */
+    boolean await(final String key) {
+        if (bundles == null) {
+            return (Boolean) call("await", key);
+        }
+        Verification verification = bundles.get(key);
+        if (verification == null) {
+            return false;
+        }
+        try {
+            verification.done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return verification.verified;
+    }
+
+    /**
+     * Forgets a verified bundle whose directory has been removed, so it can be claimed again.
+     * @param key the key of the bundle
+     */
+    void release(final String key) {
+        if (bundles == null) {
+            call("release", key);
+            return;
+        }
+        Verification verification = bundles.get(key);
+        if (verification != null && verification.isDone()) {
+            bundles.remove(key, verification);
+        }
+    }
+
+    /**
+     * Forgets the bundles extracted to a directory that has been removed.
+     * @param bundleDir the canonical directory
+     */
+    void forget(final File bundleDir) {
+        if (bundles == null) {
+            call("forget", bundleDir.getPath());
+            return;
+        }
+        for (Iterator<Map.Entry<String, Verification>> iter = bundles.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, Verification> bundle = iter.next();
+            if (bundle.getValue().isDone() && getDirectory(bundle.getKey()).equals(bundleDir)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets verified bundles until the registry has room for another bundle,
+     * starting with the bundles whose directories have been removed.
+     */
+    private void prune() {
+        for (boolean removedOnly : new boolean[] { true, false }) {
+            for (Iterator<Map.Entry<String, Verification>> iter = bundles.entrySet().iterator();
+                 iter.hasNext() && bundles.size() >= MAX_BUNDLES;) {
+                Map.Entry<String, Verification> bundle = iter.next();
+                if (bundle.getValue().isDone() && !(removedOnly && getDirectory(bundle.getKey()).isDirectory())) {
+                    LOG.debug("Forgetting {} to make room in the bundle registry", getDirectory(bundle.getKey()).getPath());
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bundles in the registry, including bundles that are being verified
+     */
+    public List<Bundle> getBundles() {
+        List<Bundle> snapshot = new ArrayList<>();
+        for (String state : getBundleStates()) {
+            String[] fields = state.split("\t", 4);
+            snapshot.add(new Bundle(fields[3], new File(fields[2]), VerificationPolicy.forName(fields[1]), VERIFIED.equals(fields[0])));
+        }
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    /**
+     * @return the state and key of each bundle in the registry, separated by a tab
+     */
+    private String[] getBundleStates() {
+        if (bundles == null) {
+            try {
+                return (String[]) server.getAttribute(name, "BundleStates");
+            } catch (JMException jme) {
+                throw new IllegalStateException(String.format("Unable to read the bundles of %s", OBJECT_NAME), jme);
+            }
+        }
+        List<String> states = new ArrayList<>();
+        for (Map.Entry<String, Verification> bundle : bundles.entrySet()) {
+            states.add(String.format("%s\t%s", bundle.getValue().isDone() ? VERIFIED : IN_PROGRESS, bundle.getKey()));
+        }
+        return states.toArray(new String[states.size()]);
+    }
+
+    /**
+     * Forgets every bundle, so the next loader to extract each bundle verifies it
+     * again. Use this when extracted libraries are removed or replaced by something
+     * other than a JNILoader while the JVM is running. Bundles that are being verified
+     * are not forgotten.
+     */
+    public void clear() {
+        if (bundles == null) {
+            call("clear");
+            return;
+        }
+        for (Iterator<Verification> iter = bundles.values().iterator(); iter.hasNext();) {
+            if (iter.next().isDone()) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @param key the key of a bundle
+     * @return the directory of the bundle
+     */
+    private static File getDirectory(final String key) {
+        return new File(key.split("\t", 3)[1]);
+    }
+
+    /**
+     * Invokes an operation of the registry registered by another class loader.
+     * @param operation the name of the operation
+     * @param params the string and boolean parameters of the operation
+     * @return the result of the operation
+     */
+    private Object call(final String operation, final Object... params) {
+        String[] signature = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            signature[i] = params[i] instanceof Boolean ? boolean.class.getName() : String.class.getName();
+        }
+        try {
+            return server.invoke(name, operation, params, signature);
+        } catch (JMException jme) {
+            throw new IllegalStateException(String.format("Unable to invoke %s on %s", operation, OBJECT_NAME), jme);
+        }
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "Bundles":
+                List<Bundle> snapshot = getBundles();
+                String[] descriptions = new String[snapshot.size()];
+                for (int i = 0; i < descriptions.length; i++) {
+                    descriptions[i] = snapshot.get(i).toString();
+                }
+                return descriptions;
+            case "BundleStates":
+                return getBundleStates();
+            case "BundleCount":
+                return getBundleStates().length;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(String.format("%s is read-only", attribute.getName()));
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException anfe) {
+                LOG.debug("Ignoring unknown attribute {}", attribute);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+        switch (actionName) {
+            case "claim":
+                return claim((String) params[0]);
+            case "complete":
+                complete((String) params[0], (Boolean) params[1]);
+                return null;
+            case "await":
+                return await((String) params[0]);
+            case "release":
+                release((String) params[0]);
+                return null;
+            case "forget":
+                forget(new File((String) params[0]));
+                return null;
+            case "clear":
+                clear();
+                return null;
+            default:
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanParameterInfo[] key = new MBeanParameterInfo[] {
+                new MBeanParameterInfo("key", String.class.getName(), "The key of the bundle")
+        };
+        return new MBeanInfo(BundleRegistry.class.getName(), "The bundles verified or extracted by every JNILoader in the JVM",
+                new MBeanAttributeInfo[] {
+                        new MBeanAttributeInfo("Bundles", String[].class.getName(), "The bundles in the registry", true, false, false),
+                        new MBeanAttributeInfo("BundleStates", String[].class.getName(),
+                                "The state and key of each bundle in the registry", true, false, false),
+                        new MBeanAttributeInfo("BundleCount", int.class.getName(), "The number of bundles in the registry", true, false,
+                                false)
+                },
+                null,
+                new MBeanOperationInfo[] {
+                        new MBeanOperationInfo("claim", "Claims a bundle for verification, returning false if it is already claimed",
+                                key, boolean.class.getName(), MBeanOperationInfo.ACTION_INFO),
+                        new MBeanOperationInfo("complete", "Records the result of verifying a claimed bundle",
+                                new MBeanParameterInfo[] {
+                                        key[0],
+                                        new MBeanParameterInfo("verified", boolean.class.getName(), "True if the bundle is usable")
+                                },
+                                void.class.getName(), MBeanOperationInfo.ACTION),
+                        new MBeanOperationInfo("await", "Waits for a bundle to be verified, returning true if it is usable",
+                                key, boolean.class.getName(), MBeanOperationInfo.INFO),
+                        new MBeanOperationInfo("release", "Forgets a verified bundle whose directory has been removed",
+                                key, void.class.getName(), MBeanOperationInfo.ACTION),
+                        new MBeanOperationInfo("forget", "Forgets the verified bundles extracted to a directory",
+                                new MBeanParameterInfo[] {
+                                        new MBeanParameterInfo("directory", String.class.getName(), "The canonical directory")
+                                },
+                                void.class.getName(), MBeanOperationInfo.ACTION),
+                        new MBeanOperationInfo("clear", "Forgets every bundle, so each is verified again", null, void.class.getName(),
+                                MBeanOperationInfo.ACTION)
+                },
+                null);
+    }
+
+    /**
+     * The verification of a bundle.
+     */
+    private static final class Verification {
+        /** Released when the verification completes. */
+        private final CountDownLatch done = new CountDownLatch(1);
+        /** <code>true</code> if the bundle is usable. */
+        private volatile boolean verified = false;
+
+        /**
+         * @return <code>true</code> if the verification has completed
+         */
+        private boolean isDone() {
+            return done.getCount() == 0L;
+        }
+    }
+
+    /**
+     * A snapshot of a bundle in the registry.
+     */
+    public static final class Bundle {
+        private final String archive;
+        private final File directory;
+        private final VerificationPolicy verificationPolicy;
+        private final boolean verified;
+
+        private Bundle(final String archiveId, final File dir, final VerificationPolicy policy, final boolean done) {
+            archive = archiveId;
+            directory = dir;
+            verificationPolicy = policy;
+            verified = done;
+        }
+
+        /**
+         * @return the location of the archive the bundle was extracted from
+         */
+        public String getArchive() {
+            return archive.split("\t", 2)[0];
+        }
+
+        /**
+         * @return the directory where the bundle is extracted
+         */
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the policy the bundle was verified with
+         */
+        public VerificationPolicy getVerificationPolicy() {
+            return verificationPolicy;
+        }
+
+        /**
+         * @return <code>true</code> if the bundle has been verified, <code>false</code> if it is being verified
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s -> %s [%s%s]", getArchive(), directory.getPath(), verificationPolicy.getCanonicalName(),
+                    verified ? "" : ", in progress");
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.shankyank.jniloader;
+
+import static com.shankyank.jniloader.Architecture.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optimized builds of a platform's native libraries that require CPU features
+ * beyond the architecture's baseline. Bundles built for a variant are named
+ * <code>${basename}-${os}-${arch}-${variant}.zip</code> and are preferred over the
+ * generic bundle when the CPU supports the variant. Variants are declared from the
+ * most to the least specific, which is the order in which their bundles are searched.
+ * <p>
+ * CPU features are read from <code>/proc/cpuinfo</code> on Linux. On other operating
+ * systems, or to override detection, the supported variants can be listed in the
+ * system property <code>jniloader.cpu.variants</code>.
+ */
+public enum CpuVariant {
+    /** x86-64-v4: AVX-512 foundation, byte/word, doubleword/quadword, conflict detection and vector length extensions. */
+    AVX512("avx512", EnumSet.of(X86_64), "avx512f", "avx512bw", "avx512cd", "avx512dq", "avx512vl", "avx2", "fma", "bmi2"),
+    /** x86-64-v3: AVX2, FMA and the bit manipulation instructions. */
+    AVX2("avx2", EnumSet.of(X86, X86_64), "avx", "avx2", "fma", "bmi1", "bmi2", "f16c", "movbe"),
+    /** x86-64-v2: SSE4.2, SSSE3 and POPCNT. */
+    SSE42("sse42", EnumSet.of(X86, X86_64), "sse4_1", "sse4_2", "ssse3", "popcnt");
+
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(CpuVariant.class);
+
+    /** The system property listing the variants supported by the CPU. */
+    public static final String CPU_VARIANTS_PROPERTY = "jniloader.cpu.variants";
+
+    /** The file describing the CPUs on Linux. */
+    private static final File CPU_INFO = new File("/proc/cpuinfo");
+
+    /** The canonical variant name. */
+    private final String canonicalName;
+    /** The architectures the variant applies to. */
+    private final Set<Architecture> architectures;
+    /** The CPU feature flags required by the variant. */
+    private final List<String> requiredFlags;
+
+    private CpuVariant(final String cName, final Set<Architecture> archs, final String... flags) {
+        canonicalName = cName;
+        architectures = Collections.unmodifiableSet(archs);
+        requiredFlags = Collections.unmodifiableList(Arrays.asList(flags));
+    }
+
+    /**
+     * @return the canonical name of this variant, used in bundle names
+     */
+    public String getCanonicalName() {
+        return canonicalName;
+    }
+
+    /**
+     * @param arch the architecture
+     * @return <code>true</code> if this variant can be built for the architecture
+     */
+    public boolean appliesTo(final Architecture arch) {
+        return architectures.contains(arch);
+    }
+
+    /**
+     * @return the CPU feature flags, as reported by <code>/proc/cpuinfo</code>, required by this variant
+     */
+    public List<String> getRequiredFlags() {
+        return requiredFlags;
+    }
+
+    /**
+     * Finds the variant with a canonical name.
+     * @param name the name of the variant, ignoring case
+     * @return the variant or <code>null</code> if there is no variant with that name
+     */
+    public static CpuVariant forName(final String name) {
+        for (CpuVariant variant : values()) {
+            if (variant.canonicalName.equalsIgnoreCase(name.trim())) {
+                return variant;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the variants supported by the runtime CPU, from the most to the least
+     * specific. If the <code>jniloader.cpu.variants</code> system property is set, it
+     * is used instead of detecting the CPU's features; an empty value disables
+     * variant bundles.
+     * @return the variants supported by the runtime CPU
+     */
+    public static List<CpuVariant> getSystemVariants() {
+        String configured = System.getProperty(CPU_VARIANTS_PROPERTY);
+        if (configured != null) {
+            return parseVariants(configured);
+        }
+        return Detected.VARIANTS;
+    }
+
+    /**
+     * Parses a comma separated list of variant names.
+     * @param names the variant names
+     * @return the named variants, in order
+     */
+    static List<CpuVariant> parseVariants(final String names) {
+        List<CpuVariant> variants = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                CpuVariant variant = forName(name);
+                if (variant != null) {
+                    variants.add(variant);
+                } else {
+                    LOG.warn("Ignoring unknown CPU variant \"{}\" in {}", name.trim(), CPU_VARIANTS_PROPERTY);
+                }
+            }
+        }
+        return Collections.unmodifiableList(variants);
+    }
+
+    /**
+     * Finds the variants supported by a set of CPU features.
+     * @param arch the architecture
+     * @param flags the CPU feature flags
+     * @return the supported variants, from the most to the least specific
+     */
+    static List<CpuVariant> forFeatures(final Architecture arch, final Collection<String> flags) {
+        List<CpuVariant> variants = new ArrayList<>();
+        for (CpuVariant variant : values()) {
+            if (variant.appliesTo(arch) && flags.containsAll(variant.requiredFlags)) {
+                variants.add(variant);
+            }
+        }
+        return Collections.unmodifiableList(variants);
+    }
+
+    /**
+     * Reads the feature flags of the first CPU from <code>/proc/cpuinfo</code>.
+     * @param cpuInfo the cpuinfo file
+     * @return the feature flags
+     * @throws IOException if the file cannot be read
+     */
+    static Set<String> readCpuFlags(final File cpuInfo) throws IOException {
+        Set<String> flags = new HashSet<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cpuInfo), StandardCharsets.US_ASCII))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                int separator = line.indexOf(':');
+                if (separator > 0 && line.substring(0, separator).trim().equals("flags")) {
+                    flags.addAll(Arrays.asList(line.substring(separator + 1).trim().split("\\s+")));
+                    break;
+                }
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Detects the variants supported by the runtime CPU once, when first used.
+     */
+    private static final class Detected {
+        static final List<CpuVariant> VARIANTS = detect();
+
+        private static List<CpuVariant> detect() {
+            Architecture arch = getSystemArchitecture();
+            if (arch == null || OperatingSystem.getSystemOS() != OperatingSystem.LINUX || !CPU_INFO.canRead()) {
+                return Collections.emptyList();
+            }
+            try {
+                List<CpuVariant> variants = forFeatures(arch, readCpuFlags(CPU_INFO));
+                LOG.debug("Detected CPU variants {}", variants);
+                return variants;
+            } catch (IOException ioe) {
+                LOG.warn("Unable to read CPU features from {}", CPU_INFO.getPath(), ioe);
+                return Collections.emptyList();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.shankyank.jniloader;
+
+import com.shankyank.jniloader.JNILoader.Platform;
+
+/**
+ * A completed phase of loading a bundle of native libraries.
+ */
+public final class ExtractionEvent {
+    private final ExtractionPhase phase;
+    private final String resourcePath;
+    private final String libPackage;
+    private final Platform platform;
+    private final Platform archivePlatform;
+    private final String entryName;
+    private final long durationNanos;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final boolean successful;
+
+    /**
+     * Creates a new ExtractionEvent.
+     * @param phs the phase that completed
+     * @param resPath the classpath directory containing the bundle or <code>null</code> if the phase is not bundle specific
+     * @param lPkg the basename of the bundle or <code>null</code> if the phase is not bundle specific
+     * @param pform the platform of the loader
+     * @param nanos the duration of the phase, in nanoseconds
+     * @param read the number of bytes read during the phase
+     * @param written the number of bytes written during the phase
+     * @param success <code>true</code> if the phase completed successfully
+     */
+    public ExtractionEvent(final ExtractionPhase phs, final String resPath, final String lPkg, final Platform pform,
+                           final long nanos, final long read, final long written, final boolean success) {
+        this(phs, resPath, lPkg, pform, null, null, nanos, read, written, success);
+    }
+
+    /**
+     * Creates a new ExtractionEvent for a phase that resolved a bundle archive or
+     * processed a single file of the bundle.
+     * @param phs the phase that completed
+     * @param resPath the classpath directory containing the bundle or <code>null</code> if the phase is not bundle specific
+     * @param lPkg the basename of the bundle or <code>null</code> if the phase is not bundle specific
+     * @param pform the platform of the loader
+     * @param archivePform the platform of the archive that was found or <code>null</code> if it is not known
+     * @param entry the name of the file in the bundle or <code>null</code> if the phase is not file specific
+     * @param nanos the duration of the phase, in nanoseconds
+     * @param read the number of bytes read during the phase
+     * @param written the number of bytes written during the phase
+     * @param success <code>true</code> if the phase completed successfully
+     */
+    public ExtractionEvent(final ExtractionPhase phs, final String resPath, final String lPkg, final Platform pform,
+                           final Platform archivePform, final String entry, final long nanos, final long read,
+                           final long written, final boolean success) {
+        phase = phs;
+        resourcePath = resPath;
+        libPackage = lPkg;
+        platform = pform;
+        archivePlatform = archivePform;
+        entryName = entry;
+        durationNanos = nanos;
+        bytesRead = read;
+        bytesWritten = written;
+        successful = success;
+    }
+
+    /**
+     * @return the phase that completed
+     */
+    public ExtractionPhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the classpath directory containing the bundle or <code>null</code> for path updates
+     */
+    public String getResourcePath() {
+        return resourcePath;
+    }
+
+    /**
+     * @return the basename of the bundle or <code>null</code> for path updates
+     */
+    public String getLibPackage() {
+        return libPackage;
+    }
+
+    /**
+     * @return the platform of the loader
+     */
+    public Platform getPlatform() {
+        return platform;
+    }
+
+    /**
+     * @return the platform of the archive found by an {@link ExtractionPhase#ARCHIVE_LOOKUP} phase,
+     * which differs from the loader's platform if a fallback platform was used, or <code>null</code>
+     * if it is not known
+     */
+    public Platform getArchivePlatform() {
+        return archivePlatform;
+    }
+
+    /**
+     * @return the name of the file in the bundle for {@link ExtractionPhase#CHECKSUM} and
+     * {@link ExtractionPhase#EXTRACT_ENTRY} phases or <code>null</code> for other phases
+     */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /**
+     * @return the duration of the phase, in nanoseconds
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the number of bytes read from the archive or the extracted files during the phase
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of bytes written to the extraction directory during the phase
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return <code>true</code> if the phase completed successfully; an unsuccessful
+     * {@link ExtractionPhase#VERIFY} phase is a cache miss
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s [%s%s] on %s: %d ns, %d bytes read, %d bytes written%s", phase, libPackage, resourcePath,
+                entryName != null ? entryName : "", platform, durationNanos, bytesRead, bytesWritten, successful ? "" : " (failed)");
+    }
+}
@@ -0,0 +1,21 @@
+package com.shankyank.jniloader;
+
+/**
+ * Receives the timings of each phase of loading native library bundles, for
+ * instance to feed an application's metrics system. Listeners are added with
+ * {@link ExtractionMetrics#addListener(ExtractionListener)} or discovered with
+ * the {@link java.util.ServiceLoader} when the JNILoader is first used, by
+ * naming the implementation in
+ * <code>META-INF/services/com.shankyank.jniloader.ExtractionListener</code>.
+ * <p>
+ * Listeners are called synchronously on the extracting thread, which may be an
+ * extraction or executor thread, so they must be thread safe and should return
+ * quickly. Exceptions thrown by listeners are logged and ignored.
+ */
+public interface ExtractionListener {
+    /**
+     * Called when a phase of loading a bundle completes, successfully or not.
+     * @param event the phase that completed
+     */
+    void phaseCompleted(ExtractionEvent event);
+}
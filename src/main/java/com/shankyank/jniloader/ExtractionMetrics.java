@@ -0,0 +1,259 @@
+package com.shankyank.jniloader;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the time spent in each phase of loading native library bundles, the
+ * bytes read and written and the number of cache hits and misses, for every
+ * JNILoader in the JVM. The metrics are registered with the platform MBean
+ * server as {@value #OBJECT_NAME} when the JNILoader is first used.
+ * <p>
+ * The metrics are also the registry of {@link ExtractionListener}s; every
+ * completed phase is delivered to the metrics and then to each listener.
+ */
+public final class ExtractionMetrics implements ExtractionMetricsMXBean {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractionMetrics.class);
+
+    /** The name of the metrics MBean. */
+    public static final String OBJECT_NAME = "com.shankyank.jniloader:type=ExtractionMetrics";
+
+    /** The phases that are recorded. */
+    private static final ExtractionPhase[] PHASES = ExtractionPhase.values();
+
+    /** The metrics for the JVM. */
+    private static final ExtractionMetrics INSTANCE = new ExtractionMetrics();
+
+    /** The registered listeners. */
+    private static final List<ExtractionListener> LISTENERS = new CopyOnWriteArrayList<>(loadListeners());
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException iaee) {
+            LOG.debug("{} is already registered by another class loader", OBJECT_NAME);
+        } catch (JMException | SecurityException e) {
+            LOG.warn("Unable to register {}", OBJECT_NAME, e);
+        }
+    }
+
+    /** The totals for all bundles. */
+    private final Stats totals = new Stats();
+
+    /** The metrics of each bundle, keyed on bundle and platform. */
+    private final ConcurrentMap<String, BundleStats> bundles = new ConcurrentHashMap<>();
+
+    private ExtractionMetrics() {
+    }
+
+    /**
+     * @return the metrics for the JVM
+     */
+    public static ExtractionMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a listener that is notified when each phase of loading a bundle completes.
+     * @param listener the listener
+     */
+    public static void addListener(final ExtractionListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("Listener is required");
+        }
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener
+     * @return <code>true</code> if the listener was registered
+     */
+    public static boolean removeListener(final ExtractionListener listener) {
+        return LISTENERS.remove(listener);
+    }
+
+    /**
+     * Records a completed phase and delivers it to all listeners.
+     * @param event the completed phase
+     */
+    static void publish(final ExtractionEvent event) {
+        INSTANCE.record(event);
+        for (ExtractionListener listener : LISTENERS) {
+            try {
+                listener.phaseCompleted(event);
+            } catch (RuntimeException re) {
+                LOG.warn("Extraction listener {} failed", listener, re);
+            }
+        }
+    }
+
+    /**
+     * Finds the listeners registered with the ServiceLoader.
+     * @return the listeners
+     */
+    private static List<ExtractionListener> loadListeners() {
+        List<ExtractionListener> listeners = new ArrayList<>();
+        try {
+            for (ExtractionListener listener : ServiceLoader.load(ExtractionListener.class, ExtractionListener.class.getClassLoader())) {
+                LOG.debug("Registering extraction listener {}", listener);
+                listeners.add(listener);
+            }
+        } catch (ServiceConfigurationError sce) {
+            LOG.warn("Unable to load extraction listeners", sce);
+        }
+        return listeners;
+    }
+
+    /**
+     * Records a completed phase.
+     * @param event the completed phase
+     */
+    private void record(final ExtractionEvent event) {
+        totals.record(event);
+        if (event.getLibPackage() != null) {
+            String key = String.format("%s%s@%s", event.getResourcePath(), event.getLibPackage(), event.getPlatform());
+            BundleStats stats = bundles.get(key);
+            if (stats == null) {
+                BundleStats newStats = new BundleStats(event);
+                stats = bundles.putIfAbsent(key, newStats);
+                if (stats == null) {
+                    stats = newStats;
+                }
+            }
+            stats.record(event);
+        }
+    }
+
+    @Override
+    public long getCacheHits() {
+        return totals.cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return totals.cacheMisses.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return totals.bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return totals.bytesWritten.get();
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return totals.phaseNanos.get(ExtractionPhase.LOCK_WAIT.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseNanos() {
+        return toMap(totals.phaseNanos);
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        return toMap(totals.phaseCounts);
+    }
+
+    @Override
+    public List<BundleMetrics> getBundles() {
+        List<BundleMetrics> snapshot = new ArrayList<>();
+        for (BundleStats stats : bundles.values()) {
+            snapshot.add(new BundleMetrics(stats.resourcePath, stats.libPackage, stats.platform, toMap(stats.phaseNanos),
+                    toMap(stats.phaseCounts), stats.bytesRead.get(), stats.bytesWritten.get(), stats.cacheHits.get(),
+                    stats.cacheMisses.get()));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        totals.reset();
+        bundles.clear();
+    }
+
+    /**
+     * @param values the value for each phase
+     * @return the values keyed on phase name
+     */
+    private static Map<String, Long> toMap(final AtomicLongArray values) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (ExtractionPhase phase : PHASES) {
+            map.put(phase.name(), values.get(phase.ordinal()));
+        }
+        return map;
+    }
+
+    /**
+     * Running totals of completed phases.
+     */
+    private static class Stats {
+        final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+        final AtomicLongArray phaseCounts = new AtomicLongArray(PHASES.length);
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong cacheMisses = new AtomicLong();
+
+        void record(final ExtractionEvent event) {
+            int phase = event.getPhase().ordinal();
+            phaseNanos.addAndGet(phase, event.getDurationNanos());
+            phaseCounts.incrementAndGet(phase);
+            // the bytes of a single file are also counted by the enclosing phase
+            if (event.getEntryName() == null) {
+                bytesRead.addAndGet(event.getBytesRead());
+                bytesWritten.addAndGet(event.getBytesWritten());
+            }
+            if (event.getPhase() == ExtractionPhase.VERIFY) {
+                (event.isSuccessful() ? cacheHits : cacheMisses).incrementAndGet();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < PHASES.length; i++) {
+                phaseNanos.set(i, 0L);
+                phaseCounts.set(i, 0L);
+            }
+            bytesRead.set(0L);
+            bytesWritten.set(0L);
+            cacheHits.set(0L);
+            cacheMisses.set(0L);
+        }
+    }
+
+    /**
+     * Running totals of completed phases for one bundle and platform.
+     */
+    private static class BundleStats extends Stats {
+        final String resourcePath;
+        final String libPackage;
+        final String platform;
+
+        BundleStats(final ExtractionEvent event) {
+            resourcePath = event.getResourcePath();
+            libPackage = event.getLibPackage();
+            platform = String.valueOf(event.getPlatform());
+        }
+    }
+}
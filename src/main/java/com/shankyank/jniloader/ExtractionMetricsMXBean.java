@@ -0,0 +1,56 @@
+package com.shankyank.jniloader;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of the {@link ExtractionMetrics}, registered with the
+ * platform MBean server as {@value ExtractionMetrics#OBJECT_NAME}. All totals
+ * cover every JNILoader in the JVM since it started or the metrics were last reset.
+ */
+public interface ExtractionMetricsMXBean {
+    /**
+     * @return the number of bundles whose extracted libraries were verified without being extracted
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of bundles that had to be extracted
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the number of bytes read from archives and extracted files
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of bytes written to extraction directories
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the total time spent waiting for extraction locks, in nanoseconds
+     */
+    long getLockWaitNanos();
+
+    /**
+     * @return the total time spent in each phase, in nanoseconds, keyed on phase name
+     */
+    Map<String, Long> getPhaseNanos();
+
+    /**
+     * @return the number of times each phase completed, keyed on phase name
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return the metrics of each bundle and platform
+     */
+    List<BundleMetrics> getBundles();
+
+    /**
+     * Clears all metrics.
+     */
+    void reset();
+}
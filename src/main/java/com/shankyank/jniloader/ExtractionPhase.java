@@ -0,0 +1,40 @@
+package com.shankyank.jniloader;
+
+/**
+ * The phases of loading a bundle of native libraries that are reported to
+ * {@link ExtractionListener}s.
+ */
+public enum ExtractionPhase {
+    /** Finding the bundle archive on the classpath, once per bundle and loader. */
+    ARCHIVE_LOOKUP,
+    /**
+     * Verifying previously extracted libraries against the bundle. A successful
+     * verification is a cache hit; an unsuccessful one is a miss and is followed
+     * by an extraction.
+     */
+    VERIFY,
+    /**
+     * Hashing a single extracted file while verifying a bundle. These events name
+     * the file; their time and bytes are also included in the enclosing phase.
+     */
+    CHECKSUM,
+    /** Waiting for the extraction lock held by other threads and processes. */
+    LOCK_WAIT,
+    /**
+     * Extracting the bundle while holding the extraction lock, including the
+     * verification repeated under the lock and the Darwin alias copy.
+     */
+    EXTRACT,
+    /**
+     * Extracting a single file of the bundle. These events name the file; their
+     * time and bytes are also included in the enclosing {@link #EXTRACT} phase.
+     */
+    EXTRACT_ENTRY,
+    /** Copying OS X libraries to their alternate .dylib or .jnilib names. */
+    DARWIN_ALIASES,
+    /**
+     * Adding extracted directories to the java.library.path. Path updates are made
+     * once per batch of bundles, so these events do not identify a bundle.
+     */
+    PATH_UPDATE
+}
@@ -0,0 +1,214 @@
+package com.shankyank.jniloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A record of a bundle whose extracted files have been verified, written to the
+ * extraction directory so later loaders can trust the files without reading them.
+ * The receipt identifies the archive the files came from by its location, size and
+ * modification time, and records the size, modification time and file key (the
+ * device and inode on Unix) of each extracted file. If the archive and every file
+ * still match, the bundle is verified with a handful of <code>stat</code> calls.
+ * <p>
+ * A file modified shortly before the receipt was written could be modified again
+ * without changing its recorded modification time, on file systems with coarse
+ * timestamps. Receipts do not vouch for such files, so a bundle is verified in full
+ * until its files are older than its receipt by a safe margin.
+ * <p>
+ * The receipt is a UTF-8 text file. Its first line after the header is the archive
+ * identity; the rest have one tab-separated line per file:
+ * <code>[size] [mtime] [file key] [path]</code>, with the path relative to the
+ * extraction directory. Lines starting with <code>#</code> are ignored.
+ */
+final class ExtractionReceipt {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractionReceipt.class);
+
+    /** The receipt header. */
+    private static final String HEADER = "# jni-loader extraction receipt";
+
+    /** The coarsest timestamp resolution of common file systems (FAT), in milliseconds. */
+    private static final long TIMESTAMP_RESOLUTION = 2000L;
+
+    /** The identity of the archive the files were extracted from. */
+    private final String archive;
+
+    /** The state of each extracted file, keyed on its path relative to the extraction directory. */
+    private final Map<String, String> files;
+
+    /** When the receipt was written, in milliseconds, or -1 if it has not been written. */
+    private final long written;
+
+    /**
+     * Creates a new receipt.
+     * @param archiveId the identity of the archive
+     * @param fileStates the state of each extracted file, keyed on its relative path
+     * @param writtenTime when the receipt was written, or -1 if it has not been written
+     */
+    private ExtractionReceipt(final String archiveId, final Map<String, String> fileStates, final long writtenTime) {
+        archive = archiveId;
+        files = Collections.unmodifiableMap(new LinkedHashMap<>(fileStates));
+        written = writtenTime;
+    }
+
+    /**
+     * @return the identity of the archive the files were extracted from
+     */
+    String getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return the relative paths of the extracted files
+     */
+    Collection<String> getFiles() {
+        return files.keySet();
+    }
+
+    /**
+     * Identifies an archive by its location, size and modification time. Archives in
+     * a jar are identified by the jar entry and the jar file itself, so rebuilding
+     * the jar invalidates receipts even if the bundle's entry has the same size. A
+     * missing archive or jar entry throws an exception rather than being identified.
+     * @param location the location of the archive
+     * @param layout describes how the archive was extracted, so receipts are not shared between layouts
+     * @return the identity of the archive
+     * @throws IOException if the archive cannot be found
+     */
+    static String identify(final URL location, final String layout) throws IOException {
+        return String.format("%s\t%s\t%s", location, IOHelper.identifyArchive(location, false), layout);
+    }
+
+    /**
+     * Creates a receipt for files that have just been verified or extracted.
+     * @param archiveId the identity of the archive, from {@link #identify(URL, String)}
+     * @param dir the extraction directory
+     * @param extracted the extracted files
+     * @return the receipt
+     * @throws IOException if the files cannot be read
+     */
+    static ExtractionReceipt create(final String archiveId, final File dir, final Collection<File> extracted) throws IOException {
+        return create(archiveId, dir, extracted, null);
+    }
+
+    /**
+     * Creates a receipt for files that were verified without holding the extraction lock.
+     * Each file was stat'ed before it was read; another process may have replaced it
+     * since, in which case the receipt would vouch for a file that was never verified,
+     * so no receipt is created.
+     * @param archiveId the identity of the archive, from {@link #identify(URL, String)}
+     * @param dir the extraction directory
+     * @param extracted the verified files
+     * @param verifiedStates the state of each file before it was verified, from {@link #stat(File)},
+     *                       or <code>null</code> if the files cannot have changed since
+     * @return the receipt or <code>null</code> if a file changed while it was verified
+     * @throws IOException if the files cannot be read
+     */
+    static ExtractionReceipt create(final String archiveId, final File dir, final Collection<File> extracted,
+                                    final Map<File, String> verifiedStates) throws IOException {
+        Map<String, String> fileStates = new LinkedHashMap<>();
+        for (File file : extracted) {
+            String path = dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            String state = IOHelper.stat(file);
+            if (verifiedStates != null && !state.equals(verifiedStates.get(file))) {
+                LOG.debug("{} changed while it was verified", path);
+                return null;
+            }
+            fileStates.put(path, state);
+        }
+        return new ExtractionReceipt(archiveId, fileStates, -1L);
+    }
+
+    /**
+     * Checks that the receipt was written for an archive and that none of the
+     * extracted files have changed since. Files modified too close to the time the
+     * receipt was written do not match.
+     * @param archiveId the identity of the archive, from {@link #identify(URL, String)}
+     * @param dir the extraction directory
+     * @return <code>true</code> if the receipt matches the archive and the extracted files
+     */
+    boolean matches(final String archiveId, final File dir) {
+        if (!archive.equals(archiveId)) {
+            LOG.debug("Receipt in {} is for a different archive", dir.getPath());
+            return false;
+        }
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            try {
+                if (!file.getValue().equals(IOHelper.stat(new File(dir, file.getKey())))) {
+                    LOG.debug("{} has changed since its receipt was written", file.getKey());
+                    return false;
+                }
+                if (Long.parseLong(file.getValue().split("\t")[1]) + TIMESTAMP_RESOLUTION >= written) {
+                    LOG.debug("{} was modified too recently to trust its receipt", file.getKey());
+                    return false;
+                }
+            } catch (IOException ioe) {
+                LOG.debug("Unable to read {}: {}", file.getKey(), ioe.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes this receipt, atomically replacing any existing receipt.
+     * @param receiptFile the receipt file
+     * @throws IOException if the receipt cannot be written
+     */
+    void write(final File receiptFile) throws IOException {
+        StringBuilder text = new StringBuilder(HEADER).append('\n').append(archive).append('\n');
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            text.append(String.format("%s\t%s\n", file.getValue(), file.getKey()));
+        }
+        IOHelper.replace(receiptFile, text);
+    }
+
+    /**
+     * Reads a receipt.
+     * @param receiptFile the receipt file
+     * @return the receipt or <code>null</code> if it does not exist or is malformed
+     */
+    static ExtractionReceipt read(final File receiptFile) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(receiptFile), StandardCharsets.UTF_8))) {
+            String archiveId = null;
+            Map<String, String> fileStates = new LinkedHashMap<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (archiveId == null) {
+                    archiveId = line;
+                    continue;
+                }
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4 || !fields[1].matches("-?\\d+")) {
+                    LOG.warn("Ignoring malformed receipt {}: {}", receiptFile.getPath(), line);
+                    return null;
+                }
+                fileStates.put(fields[3], String.format("%s\t%s\t%s", fields[0], fields[1], fields[2]));
+            }
+            return archiveId != null ? new ExtractionReceipt(archiveId, fileStates, receiptFile.lastModified()) : null;
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        } catch (IOException ioe) {
+            LOG.warn("Unable to read receipt {}", receiptFile.getPath(), ioe);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The directory below which the JNILoader extracts native libraries, chosen once per
+ * JVM from an ordered list of candidates. Each candidate is probed by creating an
+ * executable file in it; the first candidate that can be written, allows files to be
+ * executed (is not mounted <code>noexec</code>) and has enough free space is used.
+ * <p>
+ * The candidates can be listed, separated by commas or the path separator, in the
+ * system property <code>jniloader.extraction.roots</code>. By default, RAM-backed
+ * directories are tried before <code>java.io.tmpdir</code> on Linux:
+ * <code>$XDG_RUNTIME_DIR</code> and then <code>/dev/shm</code>. If no candidate is
+ * usable, libraries are extracted below <code>java.io.tmpdir</code>.
+ */
+public final class ExtractionRoot {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractionRoot.class);
+
+    /** The system property listing the candidate extraction roots, in order of preference. */
+    public static final String EXTRACTION_ROOTS_PROPERTY = "jniloader.extraction.roots";
+
+    /** The minimum usable space, in bytes, of a candidate extraction root. */
+    static final long MIN_USABLE_SPACE = 64L * 1024L * 1024L;
+
+    /** The file system types that keep their files in memory. */
+    private static final List<String> RAM_FILE_SYSTEMS = Collections.unmodifiableList(Arrays.asList("tmpfs", "ramfs"));
+
+    /** The default root, java.io.tmpdir. */
+    private static final File JAVA_TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+
+    /** The directory below which libraries are extracted. */
+    private final File directory;
+    /** The type of the file system containing the directory, or <code>null</code> if it is not known. */
+    private final String fileSystemType;
+    /** Why the directory was chosen. */
+    private final String reason;
+    /** Why each of the candidates that were not chosen was rejected, keyed on candidate. */
+    private final Map<File, String> rejected;
+
+    private ExtractionRoot(final File dir, final String fsType, final String why, final Map<File, String> rejects) {
+        directory = dir;
+        fileSystemType = fsType;
+        reason = why;
+        rejected = Collections.unmodifiableMap(new LinkedHashMap<>(rejects));
+    }
+
+    /**
+     * @return the directory below which libraries are extracted
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the type of the file system containing the directory, or <code>null</code> if it is not known
+     */
+    public String getFileSystemType() {
+        return fileSystemType;
+    }
+
+    /**
+     * @return <code>true</code> if the directory is on a file system that keeps its files in memory
+     */
+    public boolean isRamBacked() {
+        return fileSystemType != null && RAM_FILE_SYSTEMS.contains(fileSystemType);
+    }
+
+    /**
+     * @return why the directory was chosen
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return why each of the candidates that were not chosen was rejected, in order of preference
+     */
+    public Map<File, String> getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", directory.getPath(), reason);
+    }
+
+    /**
+     * Chooses the extraction root from the candidates listed in the
+     * <code>jniloader.extraction.roots</code> system property or the default candidates.
+     * @return the extraction root
+     */
+    static ExtractionRoot select() {
+        String configured = System.getProperty(EXTRACTION_ROOTS_PROPERTY);
+        List<File> candidates = configured != null && !configured.trim().isEmpty() ? parseCandidates(configured) :
+                getDefaultCandidates(OperatingSystem.getSystemOS(), System.getenv("XDG_RUNTIME_DIR"));
+        ExtractionRoot root = select(candidates);
+        LOG.debug("Extracting native libraries below {}", root);
+        return root;
+    }
+
+    /**
+     * Chooses the first usable extraction root.
+     * @param candidates the candidate directories, in order of preference
+     * @return the extraction root
+     */
+    static ExtractionRoot select(final List<File> candidates) {
+        Map<File, String> rejects = new LinkedHashMap<>();
+        for (File candidate : candidates) {
+            String problem = probe(candidate);
+            if (problem == null) {
+                String fsType = getFileSystemType(candidate);
+                String why = String.format("%s%s", rejects.isEmpty() ? "first candidate" : "first usable candidate",
+                        fsType != null ? String.format(", %s", fsType) : "");
+                return new ExtractionRoot(candidate, fsType, why, rejects);
+            }
+            LOG.debug("Not extracting native libraries below {}: {}", candidate.getPath(), problem);
+            rejects.put(candidate, problem);
+        }
+        if (!rejects.isEmpty()) {
+            LOG.warn("None of the extraction roots {} can be used, extracting native libraries below {}", rejects, JAVA_TMP_DIR);
+        }
+        return new ExtractionRoot(JAVA_TMP_DIR, getFileSystemType(JAVA_TMP_DIR),
+                candidates.isEmpty() ? "java.io.tmpdir" : "no usable candidate, java.io.tmpdir", rejects);
+    }
+
+    /**
+     * Gets the default candidate extraction roots for an operating system.
+     * @param os the operating system
+     * @param runtimeDir the value of <code>$XDG_RUNTIME_DIR</code>, or <code>null</code> if it is not set
+     * @return the candidates, in order of preference
+     */
+    static List<File> getDefaultCandidates(final OperatingSystem os, final String runtimeDir) {
+        List<File> candidates = new ArrayList<>();
+        if (os == OperatingSystem.LINUX) {
+            if (runtimeDir != null && !runtimeDir.trim().isEmpty()) {
+                candidates.add(new File(runtimeDir.trim()));
+            }
+            candidates.add(new File("/dev/shm"));
+        }
+        candidates.add(JAVA_TMP_DIR);
+        return candidates;
+    }
+
+    /**
+     * Parses a list of candidate directories separated by commas or the path separator.
+     * @param roots the candidate directories
+     * @return the candidates, in order
+     */
+    static List<File> parseCandidates(final String roots) {
+        List<File> candidates = new ArrayList<>();
+        for (String root : roots.split(String.format("[,%s]", File.pathSeparator))) {
+            if (!root.trim().isEmpty()) {
+                candidates.add(new File(root.trim()));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Checks that libraries can be extracted to, and loaded from, a directory by
+     * creating an executable file in it.
+     * @param candidate the candidate directory
+     * @return why the directory cannot be used, or <code>null</code> if it can
+     */
+    static String probe(final File candidate) {
+        if (!candidate.isDirectory()) {
+            return "not a directory";
+        }
+        File probe = null;
+        try {
+            probe = Files.createTempFile(candidate.toPath(), ".jni-loader-probe-", ".tmp").toFile();
+            if (candidate.getUsableSpace() < MIN_USABLE_SPACE) {
+                return String.format("less than %d MB free", MIN_USABLE_SPACE / (1024L * 1024L));
+            }
+            // access(X_OK) fails on file systems mounted noexec, even for root
+            if (!(probe.setExecutable(true, true) && probe.canExecute())) {
+                return "mounted noexec";
+            }
+            return null;
+        } catch (IOException | SecurityException e) {
+            LOG.debug("Unable to write to {}", candidate.getPath(), e);
+            return "not writable";
+        } finally {
+            if (probe != null && !probe.delete()) {
+                probe.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @param dir a directory
+     * @return the type of the file system containing the directory, or <code>null</code> if it cannot be found
+     */
+    private static String getFileSystemType(final File dir) {
+        try {
+            FileStore store = Files.getFileStore(dir.toPath());
+            return store.type();
+        } catch (IOException | SecurityException e) {
+            LOG.debug("Unable to find the file system of {}", dir.getPath(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.jar.JarEntry;
+import java.util.zip.Checksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Allocation-light I/O used to extract and verify native libraries. Stream
+ * copies share a per-thread buffer, file copies are made with
+ * <code>FileChannel.transferTo()</code> and files are hashed through
+ * memory-mapped buffers where that is safe.
+ */
+final class IOHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(IOHelper.class);
+
+    /** The size of the pooled copy buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The largest region of a file mapped at once. */
+    private static final long MAX_MAPPING = 64L * 1024L * 1024L;
+
+    /**
+     * Memory-mapped files cannot be replaced on Windows until the mapping is garbage
+     * collected, which would break re-extraction of a verified file, so they are only
+     * used on other platforms.
+     */
+    private static final boolean USE_MAPPED_FILES = OperatingSystem.getSystemOS() != OperatingSystem.WINDOWS;
+
+    /** Recorded for files without a file key, such as those on Windows. */
+    private static final String NO_KEY = "-";
+
+    /** The per-thread copy buffers. */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private IOHelper() {
+    }
+
+    /**
+     * @param location the location of an archive
+     * @return the archive file or <code>null</code> if the archive is not in the local file system
+     */
+    static File toFile(final URL location) {
+        if ("file".equals(location.getProtocol())) {
+            try {
+                return new File(location.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                LOG.debug("Unable to resolve {} to a file", location, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Identifies an archive without reading it. Archives in the local file system are
+     * identified by their size and modification time. Archives in a jar are identified
+     * by their jar entry: if the identity must be stable across jar rebuilds, by the
+     * size and CRC-32 of the entry, which are read from the jar's central directory;
+     * otherwise by the size and time of the entry and the state of the jar itself, so
+     * rebuilding the jar changes the identity even if the entry has the same size.
+     * @param location the location of the archive
+     * @param stableAcrossJarRebuilds <code>true</code> if rebuilding a jar with the same
+     *                                archive must not change the identity
+     * @return the identity of the archive
+     * @throws IOException if the archive or its jar entry cannot be found
+     */
+    static String identifyArchive(final URL location, final boolean stableAcrossJarRebuilds) throws IOException {
+        File file = toFile(location);
+        if (file != null) {
+            String state = stat(file);
+            return stableAcrossJarRebuilds ? state.substring(0, state.lastIndexOf('\t')) : state;
+        }
+        URLConnection connection = location.openConnection();
+        if (connection instanceof JarURLConnection) {
+            JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+            if (stableAcrossJarRebuilds) {
+                return String.format("%d\t%08x", entry.getSize(), entry.getCrc());
+            }
+            File jar = toFile(((JarURLConnection) connection).getJarFileURL());
+            return String.format("%d\t%d\t%s", entry.getSize(), entry.getTime(), jar != null ? stat(jar) : NO_KEY);
+        }
+        connection.getInputStream().close();
+        return String.format("%d\t%d", connection.getContentLengthLong(), connection.getLastModified());
+    }
+
+    /**
+     * @param file the file
+     * @return the size, modification time and file key (the device and inode on Unix) of the file,
+     * separated by tabs
+     * @throws IOException if the file cannot be read or is not a regular file
+     */
+    static String stat(final File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            throw new FileNotFoundException(String.format("%s is not a file", file.getPath()));
+        }
+        Object key = attributes.fileKey();
+        return String.format("%d\t%d\t%s", attributes.size(), attributes.lastModifiedTime().toMillis(),
+                key != null ? key.toString().replaceAll("\\s", "") : NO_KEY);
+    }
+
+    /**
+     * Writes a UTF-8 text file to a temporary file next to it, then atomically
+     * replaces the file, so readers never see a partially written file.
+     * @param target the file to write
+     * @param text the contents of the file
+     * @throws IOException if the file cannot be written
+     */
+    static void replace(final File target, final CharSequence text) throws IOException {
+        File tmpFile = Files.createTempFile(target.getParentFile().toPath(), String.format("%s-", target.getName()), "").toFile();
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                writer.append(text);
+            }
+            try {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Copies the input to the output using the pooled buffer for the current thread.
+     * Neither stream is closed.
+     * @param input the input stream
+     * @param output the output stream
+     * @return the number of bytes copied
+     * @throws IOException if the copy fails
+     */
+    static long copy(final InputStream input, final OutputStream output) throws IOException {
+        byte[] buffer = BUFFERS.get();
+        long count = 0L;
+        for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+            output.write(buffer, 0, read);
+            count += read;
+        }
+        return count;
+    }
+
+    /**
+     * Hashes the input, closing it when complete.
+     * @param input the input stream
+     * @param digest the digest used to hash the input
+     * @return the hash of the input
+     * @throws IOException if the input cannot be read
+     */
+    static byte[] digest(final InputStream input, final MessageDigest digest) throws IOException {
+        try {
+            byte[] buffer = BUFFERS.get();
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Computes the checksum of the input, closing it when complete.
+     * @param input the input stream
+     * @param checksum the checksum, which is reset before use
+     * @return the checksum value
+     * @throws IOException if the input cannot be read
+     */
+    static long checksum(final InputStream input, final Checksum checksum) throws IOException {
+        try {
+            checksum.reset();
+            byte[] buffer = BUFFERS.get();
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                checksum.update(buffer, 0, read);
+            }
+            return checksum.getValue();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Hashes a file, feeding memory-mapped regions of the file directly to the digest.
+     * @param file the file
+     * @param digest the digest used to hash the file
+     * @return the hash of the file
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] digest(final File file, final MessageDigest digest) throws IOException {
+        return digest(file, digest, null);
+    }
+
+    /**
+     * Computes the checksum of a file.
+     * @param file the file
+     * @param checksum the checksum, which is reset before use
+     * @return the checksum value
+     * @throws IOException if the file cannot be read
+     */
+    static long checksum(final File file, final Checksum checksum) throws IOException {
+        digest(file, null, checksum);
+        return checksum.getValue();
+    }
+
+    /**
+     * Hashes a file and computes its checksum in a single pass.
+     * @param file the file
+     * @param digest the digest used to hash the file or <code>null</code> to skip hashing
+     * @param checksum the checksum, which is reset before use, or <code>null</code> to skip it
+     * @return the hash of the file or <code>null</code> if it was not hashed
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] digest(final File file, final MessageDigest digest, final Checksum checksum) throws IOException {
+        if (checksum != null) {
+            checksum.reset();
+        }
+        byte[] buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (USE_MAPPED_FILES) {
+                long size = channel.size();
+                for (long position = 0L; position < size; position += MAX_MAPPING) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING, size - position));
+                    if (checksum == null) {
+                        digest.update(mapped);
+                        continue;
+                    }
+                    // the java.util.zip checksums only accept arrays on Java 7
+                    while (mapped.hasRemaining()) {
+                        int length = Math.min(buffer.length, mapped.remaining());
+                        mapped.get(buffer, 0, length);
+                        update(buffer, length, digest, checksum);
+                    }
+                }
+            } else {
+                ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+                for (int read = channel.read(wrapper); read != -1; read = channel.read(wrapper)) {
+                    update(buffer, read, digest, checksum);
+                    wrapper.clear();
+                }
+            }
+        }
+        return digest != null ? digest.digest() : null;
+    }
+
+    /**
+     * Feeds a block of bytes to a digest and a checksum.
+     * @param buffer the bytes
+     * @param length the number of bytes to use
+     * @param digest the digest or <code>null</code>
+     * @param checksum the checksum or <code>null</code>
+     */
+    private static void update(final byte[] buffer, final int length, final MessageDigest digest, final Checksum checksum) {
+        if (digest != null) {
+            digest.update(buffer, 0, length);
+        }
+        if (checksum != null) {
+            checksum.update(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Copies a file, letting the operating system move the bytes between the channels.
+     * @param source the file to copy
+     * @param target the file to create or replace
+     * @return the number of bytes copied
+     * @throws IOException if the copy fails
+     */
+    static long transfer(final File source, final File target) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            return transfer(in, 0L, in.size(), target);
+        }
+    }
+
+    /**
+     * Copies a region of a channel to a file, letting the operating system move the
+     * bytes between the channels.
+     * @param source the source channel
+     * @param position the position of the region in the source channel
+     * @param count the size of the region
+     * @param target the file to create or replace
+     * @return the number of bytes copied
+     * @throws IOException if the copy fails or the source is shorter than expected
+     */
+    static long transfer(final FileChannel source, final long position, final long count, final File target) throws IOException {
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long transferred = 0L;
+            while (transferred < count) {
+                long sent = source.transferTo(position + transferred, count - transferred, out);
+                if (sent <= 0L) {
+                    throw new IOException(String.format("Unexpected end of input copying to %s after %d of %d bytes",
+                            target.getPath(), transferred, count));
+                }
+                transferred += sent;
+            }
+            return transferred;
+        }
+    }
+}
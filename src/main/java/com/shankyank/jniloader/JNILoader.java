@@ -5,36 +5,66 @@ import static com.shankyank.jniloader.OperatingSystem.*;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +73,8 @@ import org.slf4j.LoggerFactory;
  * on the application classpath to a temporary directory and triggers a
  * refresh of the JVM's cached java.library.path so those libraries can
  * be loaded. This must be done before any calls to System.loadLibrary().
+ * Extracted libraries can also be loaded by absolute path with
+ * {@link #loadLibrary(String)}, which does not need the java.library.path.
  *
  * It also provides a command line utility that outputs the architecture
  * and library suffix used to identify the appropriate files on the current
@@ -91,196 +123,2015 @@ public final class JNILoader {
     /** The pattern used to check for parent directory indicators in the temporary library path. */
     private static final Pattern PARENT_DIR = Pattern.compile("(^|/)\\.\\.(/|$)");
 
-    /** The system temp directory. */
-    private static final File TMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+    /** The directory below which libraries are extracted, chosen once per JVM. */
+    private static final ExtractionRoot EXTRACTION_ROOT = ExtractionRoot.select();
 
-    /** A filter that returns only directories. */
+    /** The extraction root directory. */
+    private static final File TMP_DIR = EXTRACTION_ROOT.getDirectory();
+
+    /** A filter that returns only files, skipping hidden lock files. */
+    private static final FileFilter LIB_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+            return file.isFile() && !file.getName().startsWith(".");
+        }
+    };
+
+    /** A filter that returns only directories, skipping hidden extraction staging directories. */
     private static final FileFilter DIR_FILTER = new FileFilter() {
         @Override
         public boolean accept(final File file) {
-            return file.isDirectory();
+            return file.isDirectory() && !file.getName().startsWith(".");
         }
     };
 
+    /** The in-process monitors guarding each extraction lock file. */
+    private static final ConcurrentMap<File, Object> EXTRACTION_MONITORS = new ConcurrentHashMap<>();
+
     /** The canonical Platform for the current runtime. */
     public static final Platform RUNTIME_PLATFORM = new Platform(getSystemOS(), getSystemArchitecture());
 
     /** The system path lock. */
     private static final Object SYS_PATH_LOCK = new Object();
 
+    /** The system property that sets the default number of threads used to extract each bundle. */
+    public static final String EXTRACTION_THREADS_PROPERTY = "jniloader.extraction.threads";
+
+    /** The system property that enables the shared, content-addressed native library cache. */
+    public static final String CACHE_PROPERTY = "jniloader.cache";
+
+    /** The system property that sets the default maximum size of the native library cache, in bytes. */
+    public static final String CACHE_MAX_BYTES_PROPERTY = "jniloader.cache.maxBytes";
+
+    /** The system property that sets the default number of days a cached bundle can go unused before it is evicted. */
+    public static final String CACHE_MAX_AGE_DAYS_PROPERTY = "jniloader.cache.maxAgeDays";
+
+    /** The system property that sets whether extracted bundles are added to the java.library.path by default. */
+    public static final String UPDATE_LIBRARY_PATH_PROPERTY = "jniloader.updateLibraryPath";
+
+    /** The system property that sets whether the files of each bundle are extracted to a single directory by default. */
+    public static final String FLATTEN_PROPERTY = "jniloader.flatten";
+
+    /** The system property that sets whether files removed from a bundle are deleted when it is extracted again by default. */
+    public static final String PRUNE_PROPERTY = "jniloader.prune";
+
+    /** The system property that sets the default policy for verifying previously extracted libraries. */
+    public static final String VERIFICATION_PROPERTY = VerificationPolicy.VERIFICATION_PROPERTY;
+
+    /** The system property listing the extensions of the bundle formats searched by default, in order. */
+    public static final String BUNDLE_FORMATS_PROPERTY = "jniloader.bundle.formats";
+
+    /** The system property that sets the directory of bundles prepared ahead of time. */
+    public static final String PREPARED_DIRECTORY_PROPERTY = "jniloader.prepared";
+
+    /** The bundle formats searched by default: ZIP, tar and any registered formats, unless set with BUNDLE_FORMATS_PROPERTY. */
+    private static final List<BundleFormat> DEFAULT_BUNDLE_FORMATS = loadBundleFormats();
+
+    /** Set once the JVM has been found not to support refreshing its cached java.library.path. */
+    private static volatile boolean sysPathsUnsupported = false;
+
+    /** The canonical paths of all directories in the java.library.path, guarded by SYS_PATH_LOCK. */
+    private static final Set<String> REGISTERED_PATHS = new HashSet<>();
+
+    /** The value of the java.library.path that REGISTERED_PATHS was built from, guarded by SYS_PATH_LOCK. */
+    private static String registeredLibraryPath = null;
+
+    /** Creates the daemon threads used for parallel extraction. */
+    private static final ThreadFactory EXTRACTION_THREAD_FACTORY = newDaemonThreadFactory("jni-loader-extract-%d");
+
     /** The platform used by this loader. */
     private final Platform platform;
 
     /** The temporary directory where native libraries will be extracted. */
     private final File libraryPath;
 
-    /** The set of library names that have been initialized. */
-    private final Set<NativeLib> extractedLibs;
+    /** The root of the shared native library cache. */
+    private final File cacheRoot;
+
+    /**
+     * The extractions of each library, in flight or complete, which produce the
+     * directories containing the library's files.
+     */
+    private final ConcurrentMap<NativeLib, FutureTask<Set<File>>> extractedLibs;
+
+    /** The cache directories of the bundles loaded by this loader, keyed on the bundle. */
+    private final ConcurrentMap<NativeLib, File> cachedBundleDirs;
+
+    /** The archives chosen for the bundles loaded by this loader, including bundles with no archive, keyed on the bundle. */
+    private final ConcurrentMap<NativeLib, ResolvedArchive> resolvedArchives;
+
+    /** The extracted libraries, keyed on file name. */
+    private final ConcurrentMap<String, File> libraryIndex;
+
+    /** The bundles registered for lazy extraction. */
+    private final Set<NativeLib> registeredBundles;
+
+    /** The libraries in bundles registered for lazy extraction, keyed on file name. */
+    private final ConcurrentMap<String, LazyLibrary> registeredLibraries;
+
+    /** The extractions of each lazily extracted library, in flight or complete, which produce the extracted file. */
+    private final ConcurrentMap<LazyLibrary, FutureTask<File>> lazyExtractions;
+
+    /** The bundled libraries each lazily extracted library depends on, keyed on library. */
+    private final ConcurrentMap<File, List<File>> libraryDependencies;
+
+    /** Whether the files of each bundle are extracted to a single directory, ignoring archive subdirectories. */
+    private volatile boolean flattenLibraries = Boolean.getBoolean(FLATTEN_PROPERTY);
+
+    /** Whether files extracted from an earlier version of a bundle that are not in the current version are deleted. */
+    private volatile boolean pruneStaleFiles = Boolean.getBoolean(PRUNE_PROPERTY);
+
+    /** Whether extracted bundles are added to the java.library.path. */
+    private volatile boolean updateLibraryPath = Boolean.parseBoolean(System.getProperty(UPDATE_LIBRARY_PATH_PROPERTY, "true"));
+
+    /** The executor used for asynchronous extraction or <code>null</code> to use the default executor. */
+    private volatile Executor executor = null;
+
+    /** The maximum number of threads used to extract the files in a bundle. */
+    private volatile int extractionThreads = Math.max(1, Integer.getInteger(EXTRACTION_THREADS_PROPERTY, 1));
+
+    /** Whether bundles are extracted to the shared, content-addressed cache. */
+    private volatile boolean cacheEnabled = Boolean.getBoolean(CACHE_PROPERTY);
+
+    /** The maximum size of the native library cache, in bytes, or 0 for no limit. */
+    private volatile long cacheMaxBytes = Math.max(0L, Long.getLong(CACHE_MAX_BYTES_PROPERTY, 0L));
+
+    /** The maximum time, in milliseconds, a cached bundle can go unused before it is evicted, or 0 for no limit. */
+    private volatile long cacheMaxAge = TimeUnit.DAYS.toMillis(Math.max(0L, Long.getLong(CACHE_MAX_AGE_DAYS_PROPERTY, 0L)));
+
+    /** The CPU variants whose bundles are preferred over the generic bundle, from the most to the least specific. */
+    private volatile List<CpuVariant> cpuVariants;
+
+    /** The formats of the bundles searched for, in order. */
+    private volatile List<BundleFormat> bundleFormats = DEFAULT_BUNDLE_FORMATS;
+
+    /** How thoroughly previously extracted libraries are checked before they are reused. */
+    private volatile VerificationPolicy verificationPolicy = VerificationPolicy.getSystemPolicy();
+
+    /** The directory of bundles prepared ahead of time, or <code>null</code> if bundles are not prepared. */
+    private volatile File preparedDirectory = getSystemPreparedDirectory();
+
+    /**
+     * Create a new JNILoader for the current runtime platform that
+     * extracts libraries to ${root}/jni-loader/${os}/${arch}, where root
+     * is the {@link #getExtractionRoot() extraction root}.
+     */
+    public JNILoader() {
+        this("", RUNTIME_PLATFORM);
+    }
+
+    /**
+     * Create a new JNILoader for the current runtime platform that extracts
+     * libraries to ${root}/${tmpPath}/jni-loader/${os}/${arch}.
+     * @param tmpPath a subdirectory below the extraction root where native libraries will be extracted
+     */
+    public JNILoader(final String tmpPath) {
+        this(tmpPath, RUNTIME_PLATFORM);
+    }
+
+    /**
+     * Creates a new JNILoader for the specified runtime platform that
+     * extracts libraries to ${root}/${tmpPath}/jni-loader/${os}/${arch}.
+     * @param tmpPath a subdirectory below the extraction root where native libraries will be extracted
+     * @param pform the target platform
+     */
+    protected JNILoader(final String tmpPath, final Platform pform) {
+        this(pform, getExtractionDir(tmpPath), null);
+    }
+
+    /**
+     * Creates a new JNILoader for the specified platform.
+     * @param pform the target platform
+     * @param extractionDir the directory below which libraries and the cache are extracted
+     * @param libDir the directory where libraries are extracted, or <code>null</code> to extract
+     * them to ${extractionDir}/jni-loader/${os}/${arch}
+     */
+    private JNILoader(final Platform pform, final File extractionDir, final File libDir) {
+        if (pform == null) {
+            throw new NullPointerException("Platform is required");
+        }
+        platform = pform;
+        libraryPath = libDir != null ? libDir : new File(extractionDir, String.format("jni-loader/%s", platform.getSubdirectory()));
+        cacheRoot = new File(extractionDir, String.format("jni-loader/cache/%s", platform.getSubdirectory()));
+
+        extractedLibs = new ConcurrentHashMap<>();
+        cachedBundleDirs = new ConcurrentHashMap<>();
+        resolvedArchives = new ConcurrentHashMap<>();
+        libraryIndex = new ConcurrentHashMap<>();
+        registeredBundles = Collections.newSetFromMap(new ConcurrentHashMap<NativeLib, Boolean>());
+        registeredLibraries = new ConcurrentHashMap<>();
+        lazyExtractions = new ConcurrentHashMap<>();
+        libraryDependencies = new ConcurrentHashMap<>();
+        setCpuVariants(pform.equals(RUNTIME_PLATFORM) ? CpuVariant.getSystemVariants() : Collections.<CpuVariant>emptyList());
+    }
+
+    /**
+     * @param tmpPath a subdirectory below the extraction root
+     * @return the subdirectory
+     * @throws IllegalArgumentException if the subdirectory is outside of the extraction root
+     */
+    private static File getExtractionDir(final String tmpPath) {
+        // remove leading slashes
+        String subDir = (tmpPath != null ? tmpPath.trim() : "").replaceFirst("^/*", "");
+        if (PARENT_DIR.matcher(subDir).find()) {
+            throw new IllegalArgumentException(String.format("Extraction path [%s] cannot traverse parent directories", subDir));
+        }
+        return new File(TMP_DIR, subDir);
+    }
+
+    /**
+     * Extracts the requested native libraries for the runtime platform and
+     * updates the java.library.path so they can be loaded. This method must
+     * be called for a particular set of libraries before any calls to
+     * System.loadLibrary() or {@link #loadLibrary(String)} referencing the
+     * extracted files. The java.library.path is not modified if
+     * <code>updateLibraryPath</code> is <code>false</code>.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackage the basename of the archive containing the desired native libraries
+     * @return <code>true</code> if the native libraries are successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    public boolean extractLibs(final String resourcePath, final String libPackage) throws IOException {
+        return extractLibs(resourcePath, Collections.singletonList(libPackage));
+    }
+
+    /**
+     * Extracts several packages of native libraries for the runtime platform and
+     * updates the java.library.path once, after all of them have been extracted.
+     * Packages that cannot be extracted do not prevent the others from being added
+     * to the path.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackages the basenames of the archives containing the desired native libraries
+     * @return <code>true</code> if all of the native libraries are successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    public boolean extractLibs(final String resourcePath, final Collection<String> libPackages) throws IOException {
+        Set<File> libDirs = new LinkedHashSet<>();
+        boolean extracted = true;
+        for (String libPackage : libPackages) {
+            Set<File> bundleLibDirs = extractBundle(new NativeLib(resourcePath, libPackage));
+            if (bundleLibDirs != null) {
+                libDirs.addAll(bundleLibDirs);
+            } else {
+                extracted = false;
+            }
+        }
+        return (!updateLibraryPath || updateSystemPath(libDirs)) && extracted;
+    }
+
+    /**
+     * Registers a package of native libraries for lazy extraction. The files in
+     * the bundle are indexed but none are extracted; each library, and the bundled
+     * libraries it declares as dependencies, is extracted when it is first requested
+     * with {@link #extractLibrary(String)}, {@link #findLibrary(String)} or
+     * {@link #loadLibrary(String)}. Libraries that have already been extracted take
+     * precedence, and if several registered bundles contain a library with the same
+     * name, the library in the first bundle registered is used.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackage the basename of the archive containing the desired native libraries
+     * @throws IOException if the bundle cannot be found or read
+     */
+    public void registerLibs(final String resourcePath, final String libPackage) throws IOException {
+        registerLibs(resourcePath, Collections.singletonList(libPackage));
+    }
+
+    /**
+     * Registers several packages of native libraries for lazy extraction.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackages the basenames of the archives containing the desired native libraries
+     * @throws IOException if a bundle cannot be found or read
+     * @see #registerLibs(String, String)
+     */
+    public void registerLibs(final String resourcePath, final Collection<String> libPackages) throws IOException {
+        List<NativeLib> nativeLibs = new ArrayList<>();
+        for (String libPackage : libPackages) {
+            nativeLibs.add(new NativeLib(resourcePath, libPackage));
+        }
+        for (NativeLib nativeLib : nativeLibs) {
+            registerBundle(nativeLib);
+        }
+    }
+
+    /**
+     * Indexes the files in a bundle for lazy extraction, reading the bundle manifest
+     * if there is one. Bundles are only indexed once.
+     * @param nativeLib the package of libraries to register
+     * @throws IOException if the bundle cannot be found or read
+     */
+    private void registerBundle(final NativeLib nativeLib) throws IOException {
+        if (!registeredBundles.add(nativeLib)) {
+            return;
+        }
+        boolean registered = false;
+        try {
+            if (findPrepared(nativeLib) == null) {
+                registerArchive(nativeLib);
+            }
+            registered = true;
+        } finally {
+            if (!registered) {
+                registeredBundles.remove(nativeLib);
+            }
+        }
+    }
+
+    /**
+     * Indexes the files in a bundle archive for lazy extraction.
+     * @param nativeLib the package of libraries to register
+     * @throws IOException if the bundle cannot be found or read
+     */
+    private void registerArchive(final NativeLib nativeLib) throws IOException {
+        try (NativeArchive packaged = openNativeArchive(nativeLib)) {
+            Map<String, BundleManifest.Entry> manifest = null;
+            if (packaged.isRandomAccess()) {
+                ZipEntry manifestEntry = packaged.getEntry(BundleManifest.ENTRY_NAME);
+                if (manifestEntry != null) {
+                    try (InputStream in = packaged.getInputStream(manifestEntry)) {
+                        manifest = indexManifest(BundleManifest.read(in));
+                    }
+                }
+            }
+            int count = 0;
+            for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
+                if (BundleManifest.ENTRY_NAME.equals(entry.getName())) {
+                    if (manifest == null) {
+                        try (InputStream in = packaged.getInputStream()) {
+                            manifest = indexManifest(BundleManifest.read(in));
+                        }
+                    }
+                } else if (!entry.isDirectory()) {
+                    LazyLibrary library = new LazyLibrary(nativeLib, entry, manifest, packaged.hasChecksums());
+                    if (registeredLibraries.putIfAbsent(library.getFileName(), library) == null) {
+                        count++;
+                    }
+                }
+            }
+            LOG.info("Registered {} native libraries from {} for lazy extraction", count, nativeLib.libPackage);
+        }
+    }
+
+    /**
+     * Extracts the requested native libraries for the runtime platform in the
+     * background. The java.library.path is updated, as it is by
+     * {@link #extractLibs(String, String)}, before the returned future completes,
+     * so the application only needs to wait for the future before its first
+     * native call.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackage the basename of the archive containing the desired native libraries
+     * @return a future that completes with <code>true</code> if the native libraries are successfully
+     * extracted, or fails with the IOException thrown extracting them
+     */
+    public Future<Boolean> extractLibsAsync(final String resourcePath, final String libPackage) {
+        return extractAll(resourcePath, Collections.singletonList(libPackage));
+    }
+
+    /**
+     * Extracts several packages of native libraries for the runtime platform in the
+     * background. Each package is extracted by a separate task on the loader's executor,
+     * and the java.library.path is updated once, after all of them have completed.
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackages the basenames of the archives containing the desired native libraries
+     * @return a future that completes with <code>true</code> if all of the native libraries are successfully
+     * extracted, or fails with the first IOException thrown extracting them, or with the
+     * RejectedExecutionException thrown if the executor does not accept all of the tasks
+     */
+    public Future<Boolean> extractAll(final String resourcePath, final Collection<String> libPackages) {
+        List<NativeLib> nativeLibs = new ArrayList<>();
+        for (String libPackage : libPackages) {
+            nativeLibs.add(new NativeLib(resourcePath, libPackage));
+        }
+        final List<Future<Set<File>>> bundles = new ArrayList<>();
+        final FutureTask<Boolean> commit = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                Set<File> libDirs = new LinkedHashSet<>();
+                boolean extracted = true;
+                for (Future<Set<File>> bundle : bundles) {
+                    Set<File> bundleLibDirs = getResult(bundle, "Error extracting native libraries");
+                    if (bundleLibDirs != null) {
+                        libDirs.addAll(bundleLibDirs);
+                    } else {
+                        extracted = false;
+                    }
+                }
+                return (!updateLibraryPath || updateSystemPath(libDirs)) && extracted;
+            }
+        });
+        // the last bundle to finish commits the java.library.path on its own thread
+        final AtomicInteger remaining = new AtomicInteger(nativeLibs.size());
+        for (final NativeLib nativeLib : nativeLibs) {
+            bundles.add(new FutureTask<Set<File>>(new Callable<Set<File>>() {
+                @Override
+                public Set<File> call() throws IOException {
+                    return extractBundle(nativeLib);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (remaining.decrementAndGet() == 0) {
+                        commit.run();
+                    }
+                }
+            });
+        }
+        if (bundles.isEmpty()) {
+            commit.run();
+        }
+        Executor exec = getExecutor();
+        try {
+            for (Future<Set<File>> bundle : bundles) {
+                exec.execute((Runnable) bundle);
+            }
+        } catch (final RejectedExecutionException ree) {
+            // the bundles that were never submitted cannot finish, so the batch is abandoned without committing
+            LOG.warn("Executor rejected the extraction of {} from {}", libPackages, resourcePath);
+            commit.cancel(false);
+            for (Future<Set<File>> bundle : bundles) {
+                bundle.cancel(false);
+            }
+            FutureTask<Boolean> rejected = new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    throw ree;
+                }
+            });
+            rejected.run();
+            return rejected;
+        }
+        return commit;
+    }
+
+    /**
+     * Prepares packages of native libraries ahead of time, for instance while
+     * building a container image, by extracting them for this loader's platform and
+     * CPU variants into a directory and adding them to the directory's index.
+     * Loaders whose {@link #setPreparedDirectory(File) prepared directory} is set
+     * to that directory load the prepared libraries without extracting them or
+     * reading the bundle archives; the directory can be read-only. The bundles are
+     * verified with the {@link VerificationPolicy#CHECKSUM checksum} policy, and the
+     * java.library.path is not updated.
+     * @param dir the directory where the libraries are prepared
+     * @param resourcePath the path (relative to the classpath root) containing the native library packages
+     * @param libPackages the basenames of the archives containing the desired native libraries
+     * @return <code>true</code> if all of the native libraries are successfully prepared
+     * @throws IOException if the libraries cannot be extracted or the index cannot be written
+     */
+    public boolean prepare(final File dir, final String resourcePath, final Collection<String> libPackages) throws IOException {
+        if (dir == null) {
+            throw new NullPointerException("Prepared directory is required");
+        }
+        File preparedDir = dir.getCanonicalFile();
+        if (!(preparedDir.isDirectory() || preparedDir.mkdirs())) {
+            throw new FileNotFoundException(String.format("Unable to create prepared directory: %s", preparedDir.getPath()));
+        }
+        JNILoader preparer = new JNILoader(platform, preparedDir, preparedDir);
+        preparer.updateLibraryPath = false;
+        preparer.cacheEnabled = false;
+        preparer.flattenLibraries = flattenLibraries;
+        preparer.pruneStaleFiles = pruneStaleFiles;
+        preparer.extractionThreads = extractionThreads;
+        preparer.cpuVariants = cpuVariants;
+        preparer.bundleFormats = bundleFormats;
+        preparer.verificationPolicy = VerificationPolicy.CHECKSUM;
+        preparer.preparedDirectory = null;
+
+        PreparedIndex index = PreparedIndex.read(preparedDir);
+        if (index == null) {
+            index = PreparedIndex.create();
+        }
+        boolean prepared = true;
+        for (String libPackage : libPackages) {
+            NativeLib nativeLib = new NativeLib(resourcePath, libPackage);
+            if (preparer.extractBundle(nativeLib) == null) {
+                prepared = false;
+                continue;
+            }
+            // the receipt lists the extracted files of this bundle, which may share the directory with others
+            ExtractionReceipt receipt = ExtractionReceipt.read(getReceiptFile(nativeLib, preparedDir));
+            if (receipt == null) {
+                throw new IOException(String.format("Unable to index %s: its extraction receipt was not written", nativeLib.libPackage));
+            }
+            List<File> files = new ArrayList<>();
+            for (String path : receipt.getFiles()) {
+                File file = new File(preparedDir, path);
+                files.add(file);
+                // the OS X aliases are not in the receipt
+                if (platform.getOperatingSystem() == DARWIN && file.getName().matches(".*\\.(dylib|jnilib)$")) {
+                    String altExt = file.getName().endsWith(".dylib") ? ".jnilib" : ".dylib";
+                    File alias = new File(file.getParentFile(), file.getName().replaceAll("\\.(dylib|jnilib)$", altExt));
+                    if (alias.isFile()) {
+                        files.add(alias);
+                    }
+                }
+            }
+            ResolvedArchive archive = preparer.resolveArchive(nativeLib);
+            index.add(archive.archivePath, IOHelper.identifyArchive(archive.url, true), preparedDir, files);
+            LOG.info("Prepared {} native libraries from {} in {}", nativeLib.libPackage, archive.archivePath, preparedDir.getPath());
+        }
+        index.write(preparedDir);
+        return prepared;
+    }
+
+    /**
+     * Extracts a package of native libraries if it has not already been extracted
+     * by this loader. Each package is extracted by the first thread to request it;
+     * other threads requesting the same package wait for that extraction to complete,
+     * while packages that are not being extracted are never blocked. Failed
+     * extractions are forgotten so they can be retried.
+     * @param nativeLib the package of libraries to extract
+     * @return the directories containing the extracted libraries or <code>null</code> if they could not be extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private Set<File> extractBundle(final NativeLib nativeLib) throws IOException {
+        FutureTask<Set<File>> extraction = extractedLibs.get(nativeLib);
+        if (extraction == null) {
+            FutureTask<Set<File>> task = new FutureTask<>(new Callable<Set<File>>() {
+                @Override
+                public Set<File> call() throws IOException {
+                    return verifyOrExtract(nativeLib);
+                }
+            });
+            extraction = extractedLibs.putIfAbsent(nativeLib, task);
+            if (extraction == null) {
+                extraction = task;
+                task.run();
+            } else {
+                LOG.debug("[{}] Waiting for extraction in progress", nativeLib.libPackage);
+            }
+        }
+        Set<File> libDirs = null;
+        try {
+            libDirs = getResult(extraction, String.format("Error extracting %s native libraries", nativeLib.libPackage));
+        } finally {
+            if (libDirs == null && extraction.isDone()) {
+                extractedLibs.remove(nativeLib, extraction);
+            }
+        }
+        return libDirs;
+    }
+
+    /**
+     * Verifies the extracted libraries of a package, extracting them if they are
+     * missing or damaged, and indexes the libraries. Each bundle is verified once per
+     * JVM; if a loader in any class loader has already verified the same archive in
+     * the same directory with the same policy, its libraries are indexed without
+     * being checked, and if one is verifying it, this loader waits for it. If that
+     * verification fails, this loader verifies the bundle itself.
+     * @param nativeLib the package of libraries to extract
+     * @return the directories containing the extracted libraries or <code>null</code> if they could not be extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private Set<File> verifyOrExtract(final NativeLib nativeLib) throws IOException {
+        Set<File> prepared = findPrepared(nativeLib);
+        if (prepared != null) {
+            return prepared;
+        }
+        ResolvedArchive archive = resolveArchive(nativeLib);
+        File bundleDir = getBundleDir(nativeLib);
+        String key = BundleRegistry.key(identifyArchive(nativeLib), bundleDir.getCanonicalFile(), verificationPolicy);
+        BundleRegistry registry = BundleRegistry.getInstance();
+        while (!registry.claim(key)) {
+            if (registry.await(key)) {
+                if (bundleDir.isDirectory()) {
+                    LOG.debug("[{}] Using the bundle verified by another loader in {}", nativeLib.libPackage, bundleDir.getPath());
+                    return indexLibraries(bundleDir);
+                }
+                LOG.debug("[{}] {} has been removed since it was verified", nativeLib.libPackage, bundleDir.getPath());
+                registry.release(key);
+            } else if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException(String.format("Interrupted waiting for %s native libraries to be verified",
+                        nativeLib.libPackage));
+            }
+        }
+        boolean verified = false;
+        try {
+            verified = verifyOrExtractBundle(nativeLib, archive, bundleDir);
+        } finally {
+            registry.complete(key, verified);
+        }
+        return verified ? indexLibraries(bundleDir) : null;
+    }
+
+    /**
+     * Indexes the libraries of a package in the prepared directory, if the package
+     * was prepared from the archive this loader would extract. The archive is found
+     * but not read, and the prepared files are only checked for their size.
+     * @param nativeLib the package of libraries
+     * @return the directories containing the prepared libraries or <code>null</code> if there is no
+     * prepared directory or the package was not prepared from the archive
+     * @throws IOException if the bundle archive cannot be found
+     */
+    private Set<File> findPrepared(final NativeLib nativeLib) throws IOException {
+        File dir = preparedDirectory;
+        if (dir == null) {
+            return null;
+        }
+        ResolvedArchive archive = resolveArchive(nativeLib);
+        try (PhaseRecorder verify = startPhase(nativeLib, ExtractionPhase.VERIFY)) {
+            List<File> files = PreparedIndex.forDirectory(dir).validate(archive.archivePath, IOHelper.identifyArchive(archive.url, true), dir);
+            if (files == null) {
+                LOG.info("[{}] {} was not prepared in {}; extracting it", nativeLib.libPackage, archive.archivePath, dir.getPath());
+                return null;
+            }
+            Set<File> libDirs = new LinkedHashSet<>();
+            for (File file : files) {
+                libDirs.add(file.getParentFile().getCanonicalFile());
+                libraryIndex.putIfAbsent(file.getName(), file);
+            }
+            LOG.info("Using {} native libraries prepared in {}", nativeLib.libPackage, dir.getPath());
+            verify.complete(true);
+            return Collections.unmodifiableSet(libDirs);
+        }
+    }
+
+    /**
+     * Verifies the extracted libraries of a package, extracting them if they are
+     * missing or damaged.
+     * @param nativeLib the package of libraries to extract
+     * @param archive the archive containing the package
+     * @param bundleDir the directory where the libraries are extracted
+     * @return <code>true</code> if the native libraries are verified or successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private boolean verifyOrExtractBundle(final NativeLib nativeLib, final ResolvedArchive archive, final File bundleDir)
+            throws IOException {
+        String libPath = bundleDir.getPath();
+        LOG.info("Extracting {} native libraries from {} to {}", nativeLib.libPackage, archive.archivePath, libPath);
+        if (!(bundleDir.isDirectory() || bundleDir.mkdirs())) {
+            throw new FileNotFoundException(String.format("Unable to create library directory: %s", libPath));
+        }
+        boolean cached = !bundleDir.equals(libraryPath);
+        boolean verified;
+        try (PhaseRecorder verify = startPhase(nativeLib, ExtractionPhase.VERIFY)) {
+            verified = verify.complete(verifyLibs(nativeLib, bundleDir, new BundleDiff(false), verify));
+        }
+        if (verified) {
+            LOG.info("{} native libraries already exist.", nativeLib.libPackage);
+            if (cached) {
+                getCache().touch(bundleDir);
+            }
+            return true;
+        } else if (extractLocked(nativeLib, bundleDir)) {
+            if (cached) {
+                NativeLibCache cache = getCache();
+                cache.touch(bundleDir);
+                cache.evict(bundleDir);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Loads a native library extracted by this loader using its absolute path,
+     * without searching or modifying the java.library.path. The library file is
+     * found with a single lookup, however many bundles have been extracted. The
+     * bundle containing the library must be extracted with
+     * {@link #extractLibs(String, String)} or registered with
+     * {@link #registerLibs(String, String)} first. The bundled libraries a lazily
+     * extracted library depends on are loaded before it.
+     * <p>
+     * Like all native libraries loaded with System.load(), the library is bound
+     * to the class loader of the JNILoader class. Applications that load their
+     * native classes in a different class loader should call System.load() with
+     * the file returned by {@link #findLibrary(String)} themselves.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary()
+     * @throws UnsatisfiedLinkError if the library has not been extracted or cannot be loaded
+     */
+    public void loadLibrary(final String libName) {
+        File library;
+        try {
+            library = extractLibrary(libName);
+        } catch (IOException ioe) {
+            UnsatisfiedLinkError error = new UnsatisfiedLinkError(String.format("Unable to extract %s: %s", libName, ioe.getMessage()));
+            error.initCause(ioe);
+            throw error;
+        }
+        if (library == null) {
+            throw new UnsatisfiedLinkError(String.format("no %s in the native libraries extracted for %s", libName, platform));
+        }
+        load(library, new HashSet<File>());
+    }
+
+    /**
+     * Loads a library after the bundled libraries it depends on.
+     * @param library the library
+     * @param loaded the libraries already loaded
+     */
+    private void load(final File library, final Set<File> loaded) {
+        if (loaded.add(library)) {
+            List<File> dependencies = libraryDependencies.get(library);
+            if (dependencies != null) {
+                for (File dependency : dependencies) {
+                    load(dependency, loaded);
+                }
+            }
+            LOG.debug("Loading native library {}", library.getPath());
+            System.load(library.getPath());
+        }
+    }
+
+    /**
+     * Finds a native library extracted by this loader. The platform-specific file
+     * names of the library are tried first, then the name itself. Libraries in
+     * bundles registered for lazy extraction are extracted, as they are by
+     * {@link #extractLibrary(String)}; if they cannot be extracted the error is logged.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary(), or its file name
+     * @return the absolute path of the library or <code>null</code> if it has not been extracted
+     */
+    public File findLibrary(final String libName) {
+        try {
+            return extractLibrary(libName);
+        } catch (IOException ioe) {
+            LOG.error("Unable to extract native library {}", libName, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Finds a native library, extracting it if it is in a bundle registered with
+     * {@link #registerLibs(String, String)} and has not been extracted yet. The
+     * bundled libraries it declares as dependencies are extracted with it, and the
+     * directories of the extracted libraries are added to the java.library.path if
+     * <code>updateLibraryPath</code> is <code>true</code>.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary(), or its file name
+     * @return the absolute path of the library or <code>null</code> if it is not in any extracted or registered bundle
+     * @throws IOException if the library or its dependencies cannot be extracted
+     */
+    public File extractLibrary(final String libName) throws IOException {
+        File library = findExtracted(libName);
+        if (library != null || registeredLibraries.isEmpty()) {
+            return library;
+        }
+        LazyLibrary registered = findRegistered(libName);
+        if (registered == null) {
+            return null;
+        }
+
+        // extract the library and the registered libraries it depends on, breadth first
+        Map<File, List<String>> extracted = new LinkedHashMap<>();
+        Set<LazyLibrary> visited = new HashSet<>();
+        Deque<LazyLibrary> pending = new ArrayDeque<>();
+        pending.add(registered);
+        while (!pending.isEmpty()) {
+            LazyLibrary next = pending.remove();
+            if (!visited.add(next)) {
+                continue;
+            }
+            File file = extractRegistered(next);
+            if (file == null) {
+                throw new IOException(String.format("Unable to extract %s from %s native libraries", next.entry.getName(),
+                        next.nativeLib.libPackage));
+            }
+            List<String> declared = LibraryDependencies.read(file);
+            extracted.put(file, declared);
+            for (String dependency : declared) {
+                LazyLibrary needed = libraryIndex.containsKey(dependency) ? null : findRegisteredDependency(dependency);
+                if (needed != null) {
+                    LOG.debug("[{}] {} depends on {}", next.nativeLib.libPackage, file.getName(), dependency);
+                    pending.add(needed);
+                }
+            }
+        }
+
+        Map<String, File> byName = new HashMap<>();
+        for (File file : extracted.keySet()) {
+            byName.put(file.getName(), file);
+        }
+        Set<File> libDirs = new LinkedHashSet<>();
+        for (Map.Entry<File, List<String>> file : extracted.entrySet()) {
+            List<File> dependencies = new ArrayList<>();
+            for (String dependency : file.getValue()) {
+                LazyLibrary needed = findRegisteredDependency(dependency);
+                File dependencyFile = needed != null && byName.containsKey(needed.getFileName()) ? byName.get(needed.getFileName()) :
+                        libraryIndex.get(dependency);
+                if (dependencyFile != null) {
+                    dependencies.add(dependencyFile);
+                }
+            }
+            libraryDependencies.putIfAbsent(file.getKey(), Collections.unmodifiableList(dependencies));
+            libraryIndex.putIfAbsent(file.getKey().getName(), file.getKey());
+            libDirs.add(file.getKey().getParentFile().getCanonicalFile());
+        }
+        if (updateLibraryPath) {
+            updateSystemPath(libDirs);
+        }
+        return findExtracted(libName);
+    }
+
+    /**
+     * Finds a native library that has already been extracted by this loader.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary(), or its file name
+     * @return the absolute path of the library or <code>null</code> if it has not been extracted
+     */
+    private File findExtracted(final String libName) {
+        if (libName == null || libName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Library name cannot be empty");
+        }
+        for (String fileName : platform.getOperatingSystem().mapLibraryName(libName)) {
+            File library = libraryIndex.get(fileName);
+            if (library != null) {
+                return library;
+            }
+        }
+        return libraryIndex.get(libName);
+    }
+
+    /**
+     * Finds a library in the bundles registered for lazy extraction.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary(), or its file name
+     * @return the library or <code>null</code> if it is not in any registered bundle
+     */
+    private LazyLibrary findRegistered(final String libName) {
+        for (String fileName : platform.getOperatingSystem().mapLibraryName(libName)) {
+            LazyLibrary library = registeredLibraries.get(fileName);
+            if (library != null) {
+                return library;
+            }
+        }
+        return registeredLibraries.get(libName);
+    }
+
+    /**
+     * Finds a dependency declared by a library in the bundles registered for lazy
+     * extraction. DLL names are not case sensitive.
+     * @param fileName the file name of the dependency
+     * @return the library or <code>null</code> if it is not in any registered bundle
+     */
+    private LazyLibrary findRegisteredDependency(final String fileName) {
+        LazyLibrary library = registeredLibraries.get(fileName);
+        if (library == null && fileName.toLowerCase().endsWith(".dll")) {
+            for (Map.Entry<String, LazyLibrary> registered : registeredLibraries.entrySet()) {
+                if (registered.getKey().equalsIgnoreCase(fileName)) {
+                    return registered.getValue();
+                }
+            }
+        }
+        return library;
+    }
+
+    /**
+     * Adds the files in an extracted bundle to the library index. Libraries are
+     * indexed in java.library.path order and the first library with each name wins,
+     * so {@link #findLibrary(String)} finds the library System.loadLibrary() would.
+     * The extraction directory is only walked once per bundle; the directories found
+     * are reused every time the bundle is added to the java.library.path.
+     * @param bundleDir the directory where the libraries were extracted
+     * @return the canonical directories containing at least one library
+     * @throws IOException if errors occur identifying the canonical directories
+     */
+    private Set<File> indexLibraries(final File bundleDir) throws IOException {
+        Set<File> libDirs = new LinkedHashSet<>();
+        for (File libDir : buildLibTree(bundleDir, new TreeSet<File>())) {
+            File[] libs = libDir.listFiles(LIB_FILTER);
+            if (libs != null && libs.length > 0) {
+                libDirs.add(libDir);
+                for (File lib : libs) {
+                    libraryIndex.putIfAbsent(lib.getName(), lib);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(libDirs);
+    }
+
+    /**
+     * Identifies the contents of an archive for its cache directory without reading
+     * the whole archive on every start: by the hash of its manifest if it has one,
+     * by the size and CRC-32 of its jar entry or by the location, size and modification
+     * time of its file. Only archives found elsewhere are hashed in full.
+     * @param nativeLib the package of libraries
+     * @param archive the archive
+     * @return the hash identifying the contents of the archive
+     * @throws IOException if the archive cannot be read
+     */
+    private byte[] identifyContents(final NativeLib nativeLib, final ResolvedArchive archive) throws IOException {
+        MessageDigest digest = newDigest(BundleManifest.DIGEST_ALGORITHM);
+        byte[] manifestHash = digestManifest(nativeLib);
+        String identity;
+        if (manifestHash != null) {
+            identity = String.format("manifest\t%s", BundleManifest.toHexString(manifestHash));
+        } else if (IOHelper.toFile(archive.url) != null) {
+            identity = String.format("file\t%s\t%s", archive.url, IOHelper.identifyArchive(archive.url, true));
+        } else if (archive.url.openConnection() instanceof JarURLConnection) {
+            identity = String.format("entry\t%s", IOHelper.identifyArchive(archive.url, true));
+        } else {
+            return IOHelper.digest(archive.url.openStream(), digest);
+        }
+        return digest.digest(identity.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hashes the manifest of a bundle, reading nothing else from the archive.
+     * @param nativeLib the package of libraries
+     * @return the hash of the manifest or <code>null</code> if the bundle does not have one
+     * @throws IOException if the archive cannot be read
+     */
+    private byte[] digestManifest(final NativeLib nativeLib) throws IOException {
+        NativeArchive packaged = openNativeArchive(nativeLib);
+        try {
+            InputStream in = null;
+            if (packaged.isRandomAccess()) {
+                ZipEntry entry = packaged.getEntry(BundleManifest.ENTRY_NAME);
+                in = entry != null ? packaged.getInputStream(entry) : null;
+            } else {
+                // the manifest is always the first entry
+                ZipEntry entry = packaged.getNextEntry();
+                in = entry != null && BundleManifest.ENTRY_NAME.equals(entry.getName()) ? packaged.getInputStream() : null;
+            }
+            return in != null ? IOHelper.digest(in, newDigest(BundleManifest.DIGEST_ALGORITHM)) : null;
+        } finally {
+            packaged.close();
+        }
+    }
+
+    /**
+     * Gets the directory where a bundle is extracted. This is the library path of
+     * this loader unless the cache is enabled, in which case it is the cache
+     * directory for the contents of the bundle's archive.
+     * @param nativeLib the package of libraries
+     * @return the directory where the bundle is extracted
+     * @throws IOException if the bundle archive cannot be found or read
+     */
+    private File getBundleDir(final NativeLib nativeLib) throws IOException {
+        if (!cacheEnabled) {
+            return libraryPath;
+        }
+        File bundleDir = cachedBundleDirs.get(nativeLib);
+        if (bundleDir == null) {
+            ResolvedArchive archive = resolveArchive(nativeLib);
+            String contentHash = BundleManifest.toHexString(identifyContents(nativeLib, archive));
+            NativeLibCache cache = getCache();
+            bundleDir = cache.getBundleDir(nativeLib.libPackage, contentHash);
+            // hold the bundle before it is verified, so no other process evicts it before its libraries are loaded
+            cache.markInUse(bundleDir);
+            LOG.debug("[{}] Using cache directory {} for {}", nativeLib.libPackage, bundleDir.getPath(), archive);
+            cachedBundleDirs.put(nativeLib, bundleDir);
+        }
+        return bundleDir;
+    }
+
+    /**
+     * @return the shared native library cache, with the current quota and maximum age
+     */
+    private NativeLibCache getCache() {
+        return new NativeLibCache(cacheRoot, cacheMaxBytes, cacheMaxAge);
+    }
+
+    /**
+     * Extracts the native libraries while holding an exclusive lock on the bundle,
+     * shared by all loaders and processes extracting to the same directory. If
+     * another process finished extracting the bundle while this loader was waiting
+     * for the lock, the libraries are verified and not extracted again. Otherwise
+     * only the files that are missing or differ from the archive are extracted, so
+     * upgrading a bundle in which a few files have changed only rewrites those files.
+     * Libraries are extracted to a private staging directory and each file is atomically
+     * renamed into place, so other processes never see a partially written file and
+     * libraries already loaded by running processes are replaced, not overwritten.
+     * @param nativeLib the package of libraries to extract
+     * @param bundleDir the directory where the libraries will be extracted
+     * @return <code>true</code> if the native libraries are successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private boolean extractLocked(final NativeLib nativeLib, final File bundleDir) throws IOException {
+        return withExtractionLock(nativeLib, bundleDir, new LockedExtraction() {
+            @Override
+            public boolean extract(final PhaseRecorder recorder) throws IOException {
+                BundleDiff diff = new BundleDiff(true);
+                if (verifyLibs(nativeLib, bundleDir, diff, recorder)) {
+                    LOG.info("{} native libraries were extracted by another process.", nativeLib.libPackage);
+                    return true;
+                }
+                // if none of the files are unchanged, the whole bundle is extracted
+                return extractStaged(nativeLib, bundleDir, diff.unchanged.isEmpty() ? null : diff, recorder);
+            }
+        });
+    }
+
+    /**
+     * Runs an extraction while holding the exclusive lock on a bundle, timing the
+     * wait for the lock and the extraction.
+     * @param nativeLib the package of libraries to extract
+     * @param bundleDir the directory where the libraries will be extracted
+     * @param work the extraction
+     * @return <code>true</code> if the native libraries are successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private boolean withExtractionLock(final NativeLib nativeLib, final File bundleDir, final LockedExtraction work)
+            throws IOException {
+        File lockFile = (bundleDir.equals(libraryPath) ? new File(libraryPath, String.format(".%s.lock", nativeLib.libPackage)) :
+                getCache().getLockFile(bundleDir)).getCanonicalFile();
+        Object monitor = EXTRACTION_MONITORS.get(lockFile);
+        if (monitor == null) {
+            Object newMonitor = new Object();
+            monitor = EXTRACTION_MONITORS.putIfAbsent(lockFile, newMonitor);
+            if (monitor == null) {
+                monitor = newMonitor;
+            }
+        }
+        long lockStart = System.nanoTime();
+        try (PhaseRecorder lockWait = startPhase(nativeLib, ExtractionPhase.LOCK_WAIT)) {
+            // FileChannel locks are held by the process, so threads in this JVM must also be excluded
+            synchronized (monitor) {
+                try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    lockWait.complete(true);
+                    try (PhaseRecorder extraction = startPhase(nativeLib, ExtractionPhase.EXTRACT)) {
+                        LOG.debug("[{}] Acquired extraction lock {} in {} ms", nativeLib.libPackage, lockFile.getPath(),
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lockStart));
+                        return extraction.complete(work.extract(extraction));
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts a library registered for lazy extraction if it has not already been
+     * extracted by this loader. Each library is extracted by the first thread to
+     * request it; other threads requesting the same library wait for that extraction
+     * to complete. Failed extractions are forgotten so they can be retried.
+     * @param library the library to extract
+     * @return the extracted library or <code>null</code> if it could not be extracted
+     * @throws IOException if the library cannot be extracted
+     */
+    private File extractRegistered(final LazyLibrary library) throws IOException {
+        FutureTask<File> extraction = lazyExtractions.get(library);
+        if (extraction == null) {
+            FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return verifyOrExtractLibrary(library);
+                }
+            });
+            extraction = lazyExtractions.putIfAbsent(library, task);
+            if (extraction == null) {
+                extraction = task;
+                task.run();
+            } else {
+                LOG.debug("[{}] Waiting for extraction of {} in progress", library.nativeLib.libPackage, library.entry.getName());
+            }
+        }
+        File extracted = null;
+        try {
+            extracted = getResult(extraction, String.format("Error extracting %s from %s native libraries", library.entry.getName(),
+                    library.nativeLib.libPackage));
+        } finally {
+            if (extracted == null && extraction.isDone()) {
+                lazyExtractions.remove(library, extraction);
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * Verifies a single library registered for lazy extraction, extracting it if it
+     * is missing or damaged.
+     * @param library the library to extract
+     * @return the extracted library or <code>null</code> if it could not be extracted
+     * @throws IOException if the library cannot be extracted
+     */
+    private File verifyOrExtractLibrary(final LazyLibrary library) throws IOException {
+        final NativeLib nativeLib = library.nativeLib;
+        final File bundleDir = getBundleDir(nativeLib);
+        final File target = getExtractedFile(bundleDir, library.entry.getName());
+        File libDir = target.getParentFile();
+        if (!(libDir.isDirectory() || libDir.mkdirs())) {
+            throw new FileNotFoundException(String.format("Unable to create library directory: %s", libDir.getPath()));
+        }
+        boolean verified;
+        try (PhaseRecorder verify = startPhase(nativeLib, ExtractionPhase.VERIFY)) {
+            verified = verify.complete(verifyLibrary(library, target, verify));
+        }
+        if (!verified) {
+            LOG.info("Extracting {} from {} native libraries to {}", library.entry.getName(), nativeLib.libPackage, libDir.getPath());
+            boolean extracted = withExtractionLock(nativeLib, bundleDir, new LockedExtraction() {
+                @Override
+                public boolean extract(final PhaseRecorder recorder) throws IOException {
+                    return verifyLibrary(library, target, recorder) || extractLibraryStaged(library, target, recorder);
+                }
+            });
+            if (!extracted) {
+                return null;
+            }
+        }
+        if (!bundleDir.equals(libraryPath)) {
+            getCache().touch(bundleDir);
+        }
+        return target;
+    }
+
+    /**
+     * Verifies a single extracted library, as thoroughly as the loader's verification
+     * policy requires.
+     * @param library the library to verify
+     * @param target the extracted library
+     * @param recorder the recorder of the current phase
+     * @return <code>true</code> if the library has been successfully extracted
+     * @throws IOException if errors occur verifying the library
+     */
+    private boolean verifyLibrary(final LazyLibrary library, final File target, final PhaseRecorder recorder) throws IOException {
+        VerificationPolicy policy = verificationPolicy;
+        String name = library.entry.getName();
+        if (!target.isFile()) {
+            return false;
+        }
+        if (policy.checksSize() && library.entry.getSize() >= 0L && target.length() != library.entry.getSize()) {
+            LOG.warn("[{}] bad size: {}", library.nativeLib.libPackage, name);
+            return false;
+        }
+        if (!policy.checksContents()) {
+            return true;
+        }
+        BundleManifest.Entry expected = library.manifest != null && policy.usesManifest() ? library.manifest.get(name) : null;
+        if (expected != null) {
+            return verifyManifestEntry(library.nativeLib, expected, target, recorder);
+        }
+        if (library.checksummed && policy != VerificationPolicy.SHA256) {
+            // the CRC-32 recorded when the bundle was registered is enough, the archive does not need to be opened
+            return verifyContents(library.nativeLib, null, library.entry, target, policy, recorder);
+        }
+        try (NativeArchive packaged = openNativeArchive(library.nativeLib)) {
+            ZipEntry entry = findEntry(packaged, name);
+            return entry != null && verifyContents(library.nativeLib, packaged, entry, target, policy, recorder);
+        }
+    }
+
+    /**
+     * Extracts a single library to a staging file next to it, then atomically
+     * moves it into place. Must be called while holding the bundle's extraction lock.
+     * @param library the library to extract
+     * @param target the file the library is extracted to
+     * @param recorder the recorder of the extraction phase
+     * @return <code>true</code> if the library is successfully extracted
+     * @throws IOException if the library cannot be extracted
+     */
+    private boolean extractLibraryStaged(final LazyLibrary library, final File target, final PhaseRecorder recorder)
+            throws IOException {
+        NativeLib nativeLib = library.nativeLib;
+        String stagingPrefix = String.format(".%s.staging-", target.getName());
+        // remove anything left behind by a process that died while extracting
+        for (File stale : target.getParentFile().listFiles()) {
+            if (stale.getName().startsWith(stagingPrefix)) {
+                LOG.debug("[{}] Removing stale staging file {}", nativeLib.libPackage, stale.getPath());
+                FileUtils.deleteQuietly(stale);
+            }
+        }
+        try (NativeArchive packaged = openNativeArchive(nativeLib)) {
+            ZipEntry entry = findEntry(packaged, library.entry.getName());
+            if (entry == null) {
+                throw new FileNotFoundException(String.format("%s is not in %s", library.entry.getName(), packaged));
+            }
+            File staged = Files.createTempFile(target.getParentFile().toPath(), stagingPrefix, "").toFile();
+            try {
+                FileDigest digest = extractFile(nativeLib, packaged, entry, staged, library.manifest, recorder);
+                moveIntoPlace(staged, target);
+                if (platform.getOperatingSystem() == DARWIN) {
+                    try (PhaseRecorder aliases = startPhase(nativeLib, ExtractionPhase.DARWIN_ALIASES)) {
+                        copyDarwinAliases(nativeLib, Collections.singletonMap(target, digest), Collections.<File>emptySet(), aliases);
+                        aliases.complete(true);
+                    }
+                }
+            } finally {
+                FileUtils.deleteQuietly(staged);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds an entry in an archive, scanning sequential archives from their current entry.
+     * @param packaged the archive
+     * @param name the name of the entry
+     * @return the entry, which is the current entry of a sequential archive, or <code>null</code> if it does not exist
+     * @throws IOException if the archive cannot be read
+     */
+    private static ZipEntry findEntry(final NativeArchive packaged, final String name) throws IOException {
+        if (packaged.isRandomAccess()) {
+            return packaged.getEntry(name);
+        }
+        for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the native libraries to a new staging directory below the bundle directory,
+     * then moves them into place. Must be called while holding the bundle's extraction lock.
+     * If stale files are pruned, the files listed in the bundle's previous extraction
+     * receipt that are no longer in the archive are deleted.
+     * @param nativeLib the package of libraries to extract
+     * @param bundleDir the directory where the libraries will be extracted
+     * @param diff the entries that are missing or differ, or <code>null</code> to extract every entry
+     * @param recorder the recorder of the extraction phase
+     * @return <code>true</code> if the native libraries are successfully extracted
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private boolean extractStaged(final NativeLib nativeLib, final File bundleDir, final BundleDiff diff, final PhaseRecorder recorder)
+            throws IOException {
+        String stagingPrefix = String.format(".%s.staging-", nativeLib.libPackage);
+        // remove anything left behind by a process that died while extracting
+        for (File stale : bundleDir.listFiles()) {
+            if (stale.getName().startsWith(stagingPrefix)) {
+                LOG.debug("[{}] Removing stale staging directory {}", nativeLib.libPackage, stale.getPath());
+                FileUtils.deleteQuietly(stale);
+            }
+        }
+        File receiptFile = getReceiptFile(nativeLib, bundleDir);
+        ExtractionReceipt previous = pruneStaleFiles ? ExtractionReceipt.read(receiptFile) : null;
+        Files.deleteIfExists(receiptFile.toPath());
+        String archiveId = verificationPolicy.usesReceipts() ? identifyArchive(nativeLib) : null;
+        Set<String> entries = diff != null ? diff.changed : null;
+        if (diff != null) {
+            LOG.info("[{}] Extracting {} changed files; {} files are unchanged", nativeLib.libPackage, entries.size(),
+                    diff.unchanged.size());
+        }
+        File stagingDir = Files.createTempDirectory(bundleDir.toPath(), stagingPrefix).toFile();
+        try {
+            Map<File, FileDigest> extractedFiles;
+            try (NativeArchive packaged = openNativeArchive(nativeLib)) {
+                if (packaged.isRandomAccess() && extractionThreads > 1) {
+                    extractedFiles = extractParallel(nativeLib, packaged, stagingDir, entries, recorder);
+                } else {
+                    extractedFiles = extract(nativeLib, packaged, stagingDir, entries, recorder);
+                }
+            }
+            if (extractedFiles == null) {
+                return false;
+            }
+            List<File> unchanged = diff != null ? diff.unchanged : Collections.<File>emptyList();
+            // if running on OS X, ensure both .dylib and .jnilib files exist
+            // Java 6 expects .jnilib, Java 7+ expects .dylib
+            if (platform.getOperatingSystem() == DARWIN) {
+                // unchanged libraries are not replaced by aliases of the changed libraries
+                Set<File> packaged = new HashSet<>();
+                for (File file : unchanged) {
+                    packaged.add(new File(stagingDir, bundleDir.toPath().relativize(file.toPath()).toString()));
+                }
+                try (PhaseRecorder aliases = startPhase(nativeLib, ExtractionPhase.DARWIN_ALIASES)) {
+                    copyDarwinAliases(nativeLib, extractedFiles, packaged, aliases);
+                    aliases.complete(true);
+                }
+            }
+            LOG.debug("[{}] Moving extracted libraries from {} to {}", nativeLib.libPackage, stagingDir.getPath(), bundleDir.getPath());
+            if (!publish(stagingDir, bundleDir)) {
+                return false;
+            }
+            List<File> published = new ArrayList<>(unchanged);
+            for (File staged : extractedFiles.keySet()) {
+                published.add(new File(bundleDir, stagingDir.toPath().relativize(staged.toPath()).toString()));
+            }
+            if (previous != null) {
+                pruneRemovedFiles(nativeLib, bundleDir, previous, published);
+            }
+            if (archiveId != null) {
+                writeReceipt(nativeLib, archiveId, bundleDir, published, null);
+            }
+            return true;
+        } finally {
+            FileUtils.deleteQuietly(stagingDir);
+        }
+    }
+
+    /**
+     * Deletes the files extracted from an earlier version of a bundle that are not in the current version.
+     * The receipt is in a shared directory, so its paths are only trusted if they stay inside the
+     * bundle directory.
+     * @param nativeLib the package of libraries
+     * @param bundleDir the directory where the libraries were extracted
+     * @param previous the extraction receipt of the earlier version
+     * @param current the files extracted from the current version
+     */
+    private void pruneRemovedFiles(final NativeLib nativeLib, final File bundleDir, final ExtractionReceipt previous,
+                                   final Collection<File> current) {
+        Set<File> retained = new HashSet<>(current);
+        String root;
+        try {
+            root = bundleDir.getCanonicalPath() + File.separator;
+        } catch (IOException ioe) {
+            LOG.warn("[{}] Unable to resolve {}, not removing stale files", nativeLib.libPackage, bundleDir.getPath(), ioe);
+            return;
+        }
+        for (String path : previous.getFiles()) {
+            File stale = new File(bundleDir, path);
+            if (retained.contains(stale)) {
+                continue;
+            }
+            try {
+                if (!isRelativePath(path) || !stale.getCanonicalPath().startsWith(root)) {
+                    LOG.warn("[{}] Not removing {}, which is outside of {}", nativeLib.libPackage, path, bundleDir.getPath());
+                    continue;
+                }
+            } catch (IOException ioe) {
+                LOG.warn("[{}] Unable to resolve {}, not removing it", nativeLib.libPackage, stale.getPath(), ioe);
+                continue;
+            }
+            if (stale.isFile()) {
+                LOG.info("[{}] Removing {}, which is no longer in the bundle", nativeLib.libPackage, stale.getPath());
+                if (!stale.delete()) {
+                    LOG.warn("[{}] Unable to remove {}", nativeLib.libPackage, stale.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param path a path from an extraction receipt
+     * @return <code>true</code> if the path is relative and has no <code>..</code> segments
+     */
+    private static boolean isRelativePath(final String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.startsWith("\\") || new File(path).isAbsolute()) {
+            return false;
+        }
+        for (String segment : path.split("[/\\\\]")) {
+            if ("..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the contents of a staging directory into the target directory, atomically
+     * replacing any existing files.
+     * @param stagingDir the staging directory
+     * @param targetDir the target directory
+     * @return <code>true</code> if all files were moved
+     * @throws IOException if a file cannot be moved
+     */
+    private boolean publish(final File stagingDir, final File targetDir) throws IOException {
+        for (File staged : stagingDir.listFiles()) {
+            File target = new File(targetDir, staged.getName());
+            if (staged.isDirectory()) {
+                if (!(createDirectory(target) && publish(staged, target))) {
+                    return false;
+                }
+            } else {
+                moveIntoPlace(staged, target);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves a staged file into place, atomically replacing any existing file.
+     * @param staged the staged file
+     * @param target the target file
+     * @throws IOException if the file cannot be moved
+     */
+    private static void moveIntoPlace(final File staged, final File target) throws IOException {
+        try {
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            LOG.debug("Atomic move not supported, replacing {}", target.getPath());
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Extracts the contents of the packaged archive, one entry at a time, in archive order.
+     * All directories are created, whichever files are extracted.
+     * @param nativeLib the package of libraries to extract
+     * @param packaged the archive
+     * @param targetDir the directory where the libraries will be extracted
+     * @param entries the names of the entries to extract, or <code>null</code> to extract every entry
+     * @param recorder the recorder of the extraction phase
+     * @return the digests of the extracted files or <code>null</code> if a directory could not be created
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private Map<File, FileDigest> extract(final NativeLib nativeLib, final NativeArchive packaged, final File targetDir,
+                                          final Set<String> entries, final PhaseRecorder recorder) throws IOException {
+        Map<File, FileDigest> extractedFiles = new LinkedHashMap<>();
+        Map<String, BundleManifest.Entry> manifest = null;
+        for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
+            File tmpFile = getExtractedFile(targetDir, entry.getName());
+            if (BundleManifest.ENTRY_NAME.equals(entry.getName())) {
+                try (InputStream in = packaged.getInputStream()) {
+                    manifest = indexManifest(BundleManifest.read(in));
+                }
+            } else if (entry.isDirectory()) {
+                if (!createDirectory(tmpFile)) {
+                    return null;
+                }
+            } else if (entries == null || entries.contains(entry.getName())) {
+                checkFlattenedName(nativeLib, entry, tmpFile, extractedFiles.keySet());
+                extractedFiles.put(tmpFile, extractFile(nativeLib, packaged, entry, tmpFile, manifest, recorder));
+            }
+        }
+        return extractedFiles;
+    }
+
+    /**
+     * Extracts the contents of a random access archive, inflating, writing and hashing
+     * its files concurrently on up to <code>extractionThreads</code> threads. All
+     * directories are created before any files are extracted. If any file cannot be
+     * extracted, the remaining work is cancelled and the first error is thrown.
+     * @param nativeLib the package of libraries to extract
+     * @param packaged the random access archive
+     * @param targetDir the directory where the libraries will be extracted
+     * @param entries the names of the entries to extract, or <code>null</code> to extract every entry
+     * @param recorder the recorder of the extraction phase
+     * @return the digests of the extracted files or <code>null</code> if a directory could not be created
+     * @throws IOException if the libraries cannot be extracted
+     */
+    private Map<File, FileDigest> extractParallel(final NativeLib nativeLib, final NativeArchive packaged, final File targetDir,
+                                                  final Set<String> entries, final PhaseRecorder recorder) throws IOException {
+        ZipEntry manifestEntry = packaged.getEntry(BundleManifest.ENTRY_NAME);
+        Map<String, BundleManifest.Entry> index = null;
+        if (manifestEntry != null) {
+            try (InputStream in = packaged.getInputStream(manifestEntry)) {
+                index = indexManifest(BundleManifest.read(in));
+            }
+        }
+        final Map<String, BundleManifest.Entry> manifest = index;
+
+        List<ZipEntry> files = new ArrayList<>();
+        for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
+            if (entry.isDirectory()) {
+                if (!createDirectory(getExtractedFile(targetDir, entry.getName()))) {
+                    return null;
+                }
+            } else if (BundleManifest.ENTRY_NAME.equals(entry.getName())) {
+                // the manifest is not extracted
+                continue;
+            } else if (entries == null || entries.contains(entry.getName())) {
+                files.add(entry);
+            }
+        }
+
+        int threads = Math.max(1, Math.min(extractionThreads, files.size()));
+        LOG.debug("[{}] Extracting {} files on {} threads", nativeLib.libPackage, files.size(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, EXTRACTION_THREAD_FACTORY);
+        try {
+            Map<File, Future<FileDigest>> pending = new LinkedHashMap<>();
+            for (final ZipEntry entry : files) {
+                final File tmpFile = getExtractedFile(targetDir, entry.getName());
+                checkFlattenedName(nativeLib, entry, tmpFile, pending.keySet());
+                pending.put(tmpFile, executor.submit(new Callable<FileDigest>() {
+                    @Override
+                    public FileDigest call() throws IOException {
+                        return extractFile(nativeLib, packaged, entry, tmpFile, manifest, recorder);
+                    }
+                }));
+            }
+            Map<File, FileDigest> extractedFiles = new LinkedHashMap<>();
+            for (Map.Entry<File, Future<FileDigest>> extracted : pending.entrySet()) {
+                extractedFiles.put(extracted.getKey(), getResult(extracted.getValue(),
+                        String.format("Error extracting %s", extracted.getKey().getPath())));
+            }
+            return extractedFiles;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the result of an extraction task, rethrowing the exception that
+     * caused it to fail.
+     * @param task the task
+     * @param message the message used to wrap checked exceptions other than IOException
+     * @param <T> the type of the result
+     * @return the result of the task
+     * @throws IOException if the task failed with an IOException or the current thread is interrupted
+     */
+    private static <T> T getResult(final Future<T> task, final String message) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(message, cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted waiting for extraction: %s", message));
+        }
+    }
+
+    /**
+     * Extracts a single file from the packaged archive, verifying it against the
+     * bundle manifest if there is one.
+     * @param nativeLib the package of libraries being extracted
+     * @param packaged the packaged archive, positioned at the entry if it is read sequentially
+     * @param entry the entry to extract
+     * @param tmpFile the file to write
+     * @param manifest the bundle manifest, indexed by file name, or <code>null</code> if the bundle does not have one
+     * @param recorder the recorder of the extraction phase
+     * @return the digest of the extracted file
+     * @throws IOException if the file cannot be extracted or does not match the manifest
+     */
+    private FileDigest extractFile(final NativeLib nativeLib, final NativeArchive packaged, final ZipEntry entry, final File tmpFile,
+                                   final Map<String, BundleManifest.Entry> manifest, final PhaseRecorder recorder)
+            throws IOException {
+        LOG.debug("Extracting native library: {}", tmpFile.getPath());
+        try (PhaseRecorder entryRecorder = recorder.startEntry(ExtractionPhase.EXTRACT_ENTRY, entry.getName())) {
+            FileDigest digest;
+            try {
+                digest = extractEntry(packaged, entry, tmpFile, manifest != null ? newDigest(BundleManifest.DIGEST_ALGORITHM) : null);
+            } catch (IOException ioe) {
+                throw new IOException(String.format("Error extracting native library [%s] to %s", entry.getName(), tmpFile.getParent()), ioe);
+            }
+            entryRecorder.read(entry.getCompressedSize() >= 0L ? entry.getCompressedSize() : tmpFile.length());
+            entryRecorder.written(tmpFile.length());
+            if (manifest != null) {
+                BundleManifest.Entry expected = manifest.get(entry.getName());
+                if (expected == null || !expected.getSha256().equals(BundleManifest.toHexString(digest.digest))) {
+                    throw new IOException(String.format("%s does not match the %s manifest. Bad checksum.", entry.getName(),
+                            nativeLib.libPackage));
+                }
+            }
+            entryRecorder.complete(true);
+            return digest;
+        }
+    }
+
+    /**
+     * Gets the file an archive entry is extracted to. If libraries are flattened, all
+     * files are extracted to the target directory and directory entries are mapped to
+     * the target directory itself.
+     * @param targetDir the directory where the libraries are extracted
+     * @param entryName the name of the archive entry
+     * @return the extracted file
+     */
+    private File getExtractedFile(final File targetDir, final String entryName) {
+        if (!flattenLibraries) {
+            return new File(targetDir, entryName);
+        }
+        String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return fileName.isEmpty() ? targetDir : new File(targetDir, fileName);
+    }
+
+    /**
+     * Ensures two archive entries are not flattened to the same file.
+     * @param nativeLib the package of libraries being extracted
+     * @param entry the entry being extracted
+     * @param tmpFile the file the entry is extracted to
+     * @param extractedFiles the files already extracted
+     * @throws IOException if another entry has been extracted to the same file
+     */
+    private void checkFlattenedName(final NativeLib nativeLib, final ZipEntry entry, final File tmpFile,
+                                    final Set<File> extractedFiles) throws IOException {
+        if (extractedFiles.contains(tmpFile)) {
+            throw new IOException(String.format("Unable to flatten %s native libraries: more than one entry is named %s",
+                    nativeLib.libPackage, tmpFile.getName()));
+        }
+    }
+
+    /**
+     * Creates a directory found in the packaged archive.
+     * @param dir the directory to create
+     * @return <code>true</code> if the directory exists
+     */
+    private boolean createDirectory(final File dir) {
+        LOG.debug("Creating directory: {}", dir.getPath());
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            LOG.error("Unable to create directory {}", dir.getPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the entries in a bundle manifest by file name.
+     * @param manifest the manifest
+     * @return the manifest entries, indexed by name
+     */
+    private static Map<String, BundleManifest.Entry> indexManifest(final BundleManifest manifest) {
+        Map<String, BundleManifest.Entry> index = new HashMap<>();
+        for (BundleManifest.Entry file : manifest.getEntries()) {
+            index.put(file.getName(), file);
+        }
+        return index;
+    }
+
+    /**
+     * Ensures both .dylib and .jnilib versions of every extracted OS X library exist,
+     * copying the extracted file if the bundle only contains one of the two.
+     * @param nativeLib the package of libraries that was extracted
+     * @param extractedFiles the extracted files and their digests
+     * @param packaged the packaged files that were not extracted, which are never replaced by an alias
+     * @param recorder the recorder of the alias phase
+     * @throws IOException if a library cannot be copied
+     */
+    private void copyDarwinAliases(final NativeLib nativeLib, final Map<File, FileDigest> extractedFiles, final Set<File> packaged,
+                                   final PhaseRecorder recorder) throws IOException {
+        for (Map.Entry<File, FileDigest> extracted : extractedFiles.entrySet()) {
+            File lib = extracted.getKey();
+            String altExt;
+            if (lib.getName().endsWith(".dylib")) {
+                altExt = ".jnilib";
+            } else if (lib.getName().endsWith(".jnilib")) {
+                altExt = ".dylib";
+            } else {
+                // skip all non-library files in the archive
+                continue;
+            }
+            File target = new File(lib.getParentFile(), lib.getName().replaceAll("\\.(dylib|jnilib)$", altExt));
+            if (!(target.exists() || packaged.contains(target))) {
+                LOG.info("[{}] (OS X) Copying {} to {}", nativeLib.libPackage, lib.getName(), target.getName());
+                long copied = IOHelper.transfer(lib, target);
+                recorder.read(2 * copied);
+                recorder.written(copied);
+                if (!extracted.getValue().matches(target)) {
+                    LOG.error("[{}] Error copying {} to {}. Bad checksum", nativeLib.libPackage, lib.getName(), target.getName());
+                    throw new IOException(String.format("Error copying %s to %s. Bad checksum.", lib.getName(), target.getName()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the directory below which all loaders extract native libraries, and why it
+     * was chosen. The root is chosen once per JVM from the directories listed in the
+     * jniloader.extraction.roots system property, or by default from
+     * $XDG_RUNTIME_DIR, /dev/shm and java.io.tmpdir on Linux and java.io.tmpdir
+     * elsewhere, preferring the first that is writable, allows libraries to be
+     * loaded and has enough free space.
+     * @return the extraction root
+     */
+    public static ExtractionRoot getExtractionRoot() {
+        return EXTRACTION_ROOT;
+    }
+
+    /**
+     * @return the executor used for asynchronous extraction
+     */
+    public Executor getExecutor() {
+        Executor exec = executor;
+        return exec != null ? exec : DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Sets the executor used by {@link #extractLibsAsync(String, String)} and
+     * {@link #extractAll(String, Collection)}. By default, bundles are extracted on
+     * virtual threads when the JVM supports them and on a shared pool of daemon
+     * threads when it does not.
+     * @param exec the executor or <code>null</code> to use the default executor
+     */
+    public void setExecutor(final Executor exec) {
+        executor = exec;
+    }
+
+    /**
+     * @return the maximum number of threads used to extract the files in a bundle
+     */
+    public int getExtractionThreads() {
+        return extractionThreads;
+    }
+
+    /**
+     * Sets the maximum number of threads used to extract the files in a bundle.
+     * When greater than 1, bundles found in the local file system are inflated,
+     * written and verified in parallel. Bundles that must be read sequentially
+     * are always extracted on the calling thread. Defaults to the value of the
+     * jniloader.extraction.threads system property, or 1 if it is not set.
+     * @param threads the maximum number of extraction threads
+     */
+    public void setExtractionThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one extraction thread is required");
+        }
+        extractionThreads = threads;
+    }
+
+    /**
+     * @return <code>true</code> if bundles are extracted to the shared, content-addressed cache
+     */
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * Enables or disables the shared, content-addressed native library cache. When
+     * enabled, each bundle is extracted to its own directory below
+     * ${root}/${tmpPath}/jni-loader/cache/${os}/${arch}, named for the
+     * bundle and the hash of its archive, so different versions of a bundle used by
+     * different applications on the same host do not overwrite each other. Defaults
+     * to the value of the jniloader.cache system property.
+     * @param enabled <code>true</code> to use the cache
+     */
+    public void setCacheEnabled(final boolean enabled) {
+        cacheEnabled = enabled;
+    }
+
+    /**
+     * @return the maximum size of the native library cache, in bytes, or 0 if it is unlimited
+     */
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the maximum size of the native library cache. When a bundle is added to
+     * the cache, the least recently used bundles are evicted until the cache fits.
+     * Defaults to the value of the jniloader.cache.maxBytes system property.
+     * @param maxBytes the maximum size of the cache, in bytes, or 0 for no limit
+     */
+    public void setCacheMaxBytes(final long maxBytes) {
+        if (maxBytes < 0L) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        cacheMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the maximum time, in milliseconds, a cached bundle can go unused before it is evicted, or 0 if there is no limit
+     */
+    public long getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * Sets the maximum time a cached bundle can go unused before it is evicted.
+     * Defaults to the number of days in the jniloader.cache.maxAgeDays system property.
+     * @param maxAge the maximum age, or 0 for no limit
+     * @param unit the unit of the maximum age
+     */
+    public void setCacheMaxAge(final long maxAge, final TimeUnit unit) {
+        if (maxAge < 0L) {
+            throw new IllegalArgumentException("Cache age cannot be negative");
+        }
+        cacheMaxAge = unit.toMillis(maxAge);
+    }
+
+    /**
+     * @return <code>true</code> if extracted bundles are added to the java.library.path
+     */
+    public boolean isUpdateLibraryPath() {
+        return updateLibraryPath;
+    }
+
+    /**
+     * Sets whether extracted bundles are added to the java.library.path. Applications
+     * that only load libraries with {@link #loadLibrary(String)} can disable this to
+     * leave the java.library.path and the JVM's cached copy of it untouched.
+     * @param update <code>true</code> to add extracted bundles to the java.library.path
+     */
+    public void setUpdateLibraryPath(final boolean update) {
+        updateLibraryPath = update;
+    }
+
+    /**
+     * @return <code>true</code> if the files of each bundle are extracted to a single directory
+     */
+    public boolean isFlattenLibraries() {
+        return flattenLibraries;
+    }
+
+    /**
+     * Sets whether the files of each bundle are extracted to a single directory,
+     * ignoring the subdirectories in the archive, so each bundle adds only one
+     * directory to the java.library.path. Bundles with more than one file of the
+     * same name cannot be flattened. All loaders sharing an extraction directory
+     * should use the same setting.
+     * @param flatten <code>true</code> to extract the files of each bundle to a single directory
+     */
+    public void setFlattenLibraries(final boolean flatten) {
+        flattenLibraries = flatten;
+    }
+
+    /**
+     * @return <code>true</code> if files removed from a bundle are deleted when the bundle is extracted again
+     */
+    public boolean isPruneStaleFiles() {
+        return pruneStaleFiles;
+    }
+
+    /**
+     * Sets whether files extracted from an earlier version of a bundle are deleted
+     * when a version that no longer contains them is extracted. The files of the
+     * earlier version are found in its extraction receipt, so files are only pruned
+     * if the verification policy writes receipts. Files belonging to other bundles
+     * in the same directory are never deleted.
+     * @param prune <code>true</code> to delete files removed from a bundle
+     */
+    public void setPruneStaleFiles(final boolean prune) {
+        pruneStaleFiles = prune;
+    }
+
+    /**
+     * @return the CPU variants whose bundles are preferred over the generic bundle, from the most to the least specific
+     */
+    public List<CpuVariant> getCpuVariants() {
+        return cpuVariants;
+    }
+
+    /**
+     * Sets the CPU variants whose bundles are preferred over the generic bundle for
+     * the loader's platform. A bundle named for the first variant that exists is
+     * extracted; if there is none, the generic bundle is used. Variants that do not
+     * apply to the platform's architecture are ignored. Loaders for the runtime
+     * platform default to the variants supported by the CPU; loaders targeting other
+     * platforms default to none. Must be set before the bundles are extracted.
+     * @param variants the CPU variants, from the most to the least specific
+     */
+    public void setCpuVariants(final List<CpuVariant> variants) {
+        if (variants == null) {
+            throw new NullPointerException("CPU variants are required");
+        }
+        List<CpuVariant> applicable = new ArrayList<>();
+        for (CpuVariant variant : variants) {
+            if (variant.appliesTo(platform.getArchitecture())) {
+                applicable.add(variant);
+            }
+        }
+        cpuVariants = Collections.unmodifiableList(applicable);
+        resolvedArchives.clear();
+    }
+
+    /**
+     * @return the formats of the bundles searched for, in order
+     */
+    public List<BundleFormat> getBundleFormats() {
+        return bundleFormats;
+    }
+
+    /**
+     * Sets the formats of the bundles searched for. For each platform and CPU variant,
+     * a bundle is searched for in each format in order, so the first format is used
+     * if a bundle exists in more than one. Defaults to ZIP, tar and any formats
+     * registered with the ServiceLoader, or the formats listed in the
+     * <code>jniloader.bundle.formats</code> system property. Must be set before the
+     * bundles are extracted.
+     * @param formats the bundle formats
+     */
+    public void setBundleFormats(final List<BundleFormat> formats) {
+        if (formats == null) {
+            throw new NullPointerException("Bundle formats are required");
+        }
+        if (formats.isEmpty()) {
+            throw new IllegalArgumentException("At least one bundle format is required");
+        }
+        bundleFormats = Collections.unmodifiableList(new ArrayList<>(formats));
+        resolvedArchives.clear();
+    }
+
+    /**
+     * @return the policy used to verify previously extracted libraries
+     */
+    public VerificationPolicy getVerificationPolicy() {
+        return verificationPolicy;
+    }
+
+    /**
+     * Sets how thoroughly previously extracted libraries are checked before they are
+     * reused. Defaults to {@link VerificationPolicy#CHECKSUM}, or the policy named in
+     * the <code>jniloader.verification</code> system property.
+     * @param policy the verification policy
+     */
+    public void setVerificationPolicy(final VerificationPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("Verification policy is required");
+        }
+        verificationPolicy = policy;
+    }
+
+    /**
+     * @return the directory of bundles prepared ahead of time, or <code>null</code> if bundles are not prepared
+     */
+    public File getPreparedDirectory() {
+        return preparedDirectory;
+    }
 
     /**
-     * Create a new JNILoader for the current runtime platform that
-     * extracts libraries to ${java.io.tmpdir}/jni-loader/${os}/${arch}.
+     * Sets the directory of bundles prepared ahead of time with
+     * {@link #prepare(File, String, Collection)}. Bundles that were prepared from
+     * the archives this loader would extract are loaded from the directory, after
+     * checking the index and the sizes of the prepared files, without reading the
+     * archives or writing to the directory. Bundles that were not prepared, or whose
+     * archives or files have changed since, are extracted as usual. Defaults to the
+     * value of the jniloader.prepared system property.
+     * @param dir the prepared directory or <code>null</code> to extract every bundle
      */
-    public JNILoader() {
-        this("", RUNTIME_PLATFORM);
+    public void setPreparedDirectory(final File dir) {
+        preparedDirectory = dir != null ? dir.getAbsoluteFile() : null;
     }
 
     /**
-     * Create a new JNILoader for the current runtime platform that extracts
-     * libraries to ${java.io.tmpdir}/${tmpPath}/jni-loader/${os}/${arch}.
-     * @param tmpPath a subdirectory below java.io.tmpdir where native libraries will be extracted
+     * @return the prepared directory set with the jniloader.prepared system property, or <code>null</code> if it is not set
      */
-    public JNILoader(final String tmpPath) {
-        this(tmpPath, RUNTIME_PLATFORM);
+    private static File getSystemPreparedDirectory() {
+        String configured = System.getProperty(PREPARED_DIRECTORY_PROPERTY);
+        return configured != null && !configured.trim().isEmpty() ? new File(configured.trim()).getAbsoluteFile() : null;
     }
 
     /**
-     * Creates a new JNILoader for the specified runtime platform that
-     * extracts libraries to ${java.io.tmpdir}/${tmpPath}/jni-loader/${os}/${arch}.
-     * @param tmpPath a subdirectory below java.io.tmpdir where native libraries will be extracted
-     * @param pform the target platform
+     * Finds the built-in bundle formats and those registered with the ServiceLoader,
+     * keeping only those listed in the <code>jniloader.bundle.formats</code> system
+     * property if it is set.
+     * @return the bundle formats, in order
      */
-    protected JNILoader(final String tmpPath, final Platform pform) {
-        if (pform == null) {
-            throw new NullPointerException("Platform is required");
+    private static List<BundleFormat> loadBundleFormats() {
+        Map<String, BundleFormat> available = new LinkedHashMap<>();
+        available.put(BundleFormat.ZIP.getExtension(), BundleFormat.ZIP);
+        available.put(BundleFormat.TAR.getExtension(), BundleFormat.TAR);
+        try {
+            for (BundleFormat format : ServiceLoader.load(BundleFormat.class, BundleFormat.class.getClassLoader())) {
+                LOG.debug("Registering bundle format {} ({})", format.getExtension(), format);
+                if (!available.containsKey(format.getExtension())) {
+                    available.put(format.getExtension(), format);
+                }
+            }
+        } catch (ServiceConfigurationError sce) {
+            LOG.warn("Unable to load bundle formats", sce);
         }
-        platform = pform;
-
-        // remove trailing slashes
-        String subDir = (tmpPath != null ? tmpPath.trim() : "").replaceFirst("^/*", "");
-        if (PARENT_DIR.matcher(subDir).find()) {
-            throw new IllegalArgumentException(String.format("Extraction path [%s] cannot traverse parent directories", subDir));
+        String configured = System.getProperty(BUNDLE_FORMATS_PROPERTY);
+        if (configured == null || configured.trim().isEmpty()) {
+            return Collections.unmodifiableList(new ArrayList<>(available.values()));
         }
-        String path = String.format("%s/jni-loader/%s", subDir, platform.getSubdirectory());
-        libraryPath = new File(TMP_DIR, path);
-
-        extractedLibs = Collections.synchronizedSet(new HashSet<NativeLib>());
+        List<BundleFormat> formats = new ArrayList<>();
+        for (String extension : configured.split(",")) {
+            BundleFormat format = available.get(extension.trim());
+            if (format != null) {
+                formats.add(format);
+            } else if (!extension.trim().isEmpty()) {
+                LOG.warn("Ignoring unknown bundle format \"{}\" in {}", extension.trim(), BUNDLE_FORMATS_PROPERTY);
+            }
+        }
+        if (formats.isEmpty()) {
+            LOG.warn("No known bundle formats in {}, using {}", BUNDLE_FORMATS_PROPERTY, available.keySet());
+            return Collections.unmodifiableList(new ArrayList<>(available.values()));
+        }
+        return Collections.unmodifiableList(formats);
     }
 
     /**
-     * Extracts the requested native libraries for the runtime platform and
-     * updates the java.library.path so they can be loaded. This method must
-     * be called for a particular set of libraries before any calls to
-     * System.loadLibrary() referencing the extracted files.
-     * @param resourcePath the path (relative to the classpath root) containing the native library packages
-     * @param libPackage the basename of the archive containing the desired native libraries
-     * @return <code>true</code> if the native libraries are successfully extracted
-     * @throws IOException if the libraries cannot be extracted
+     * Updates the system java.library.path to include the directories where
+     * native libraries were placed by this loader. The canonical paths already in
+     * the java.library.path are cached, so the path is only parsed again if it has
+     * been changed outside of the JNILoader. JVMs that do not cache the
+     * parsed path in <code>ClassLoader.sys_paths</code> (JDK 15+), or do not
+     * allow it to be cleared, still have the property updated but will not see
+     * the new directories; a warning is logged and libraries must be loaded
+     * with {@link #loadLibrary(String)}.
+     * @param libDirs the canonical directories containing the extracted native libraries
+     * @return <code>true</code> if the system path has been successfully updated
+     * @throws IOException if an error occurs updating the path
      */
-    public boolean extractLibs(final String resourcePath, final String libPackage) throws IOException {
-        NativeLib nativeLib = new NativeLib(resourcePath, libPackage);
-        String libPath = libraryPath.getPath();
-        synchronized (extractedLibs) {
-            if (!extractedLibs.contains(nativeLib)) {
-                LOG.info("Extracting {} native libraries from {} to {}", nativeLib.libPackage, nativeLib.getArchivePath(platform), libPath);
-                if (!(libraryPath.isDirectory() || libraryPath.mkdirs())) {
-                    throw new FileNotFoundException(String.format("Unable to create library directory: %s", libPath));
-                }
-                if (verifyLibs(nativeLib)) {
-                    LOG.info("{} native libraries already exist.", nativeLib.libPackage);
-                    extractedLibs.add(nativeLib);
-                } else {
-                    ZipInputStream packaged = openNativeArchive(nativeLib);
-                    try {
-                        List<File> extractedFiles = new ArrayList<>();
-                        for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
-                            File tmpFile = new File(libraryPath, entry.getName());
-                            if (entry.isDirectory()) {
-                                LOG.debug("Creating directory: {}", tmpFile.getPath());
-                                if (!(tmpFile.isDirectory() || tmpFile.mkdirs())) {
-                                    LOG.error("Unable to create directory {}", tmpFile.getPath());
-                                    return false;
-                                }
-                            } else {
-                                LOG.debug("Extracting native library: {}", tmpFile.getPath());
-                                try {
-                                    FileOutputStream out = new FileOutputStream(tmpFile);
-                                    IOUtils.copy(new EntryStream(packaged), out);
-                                    extractedFiles.add(tmpFile);
-                                } catch (IOException ioe) {
-                                    throw new IOException(String.format("Error extracting native library [%s] to %s", entry.getName(), libPath), ioe);
-                                }
-                            }
-                        }
-                        // if running on OS X, ensure both .dylib and .jnilib files exist
-                        // Java 6 expects .jnilib, Java 7+ expects .dylib
-                        if (platform.getOperatingSystem() == DARWIN) {
-                            for (File lib : extractedFiles) {
-                                String altExt;
-                                if (lib.getName().endsWith(".dylib")) {
-                                    altExt = ".jnilib";
-                                } else if (lib.getName().endsWith(".jnilib")) {
-                                    altExt = ".dylib";
-                                } else {
-                                    // skip all non-library files in the archive
-                                    continue;
-                                }
-                                File target = new File(lib.getParentFile(), lib.getName().replaceAll("\\.(dylib|jnilib)$", altExt));
-                                if (!target.exists()) {
-                                    LOG.info("[{}] (OS X) Copying {} to {}", libPackage, lib.getName(), target.getName());
-                                    IOUtils.copy(new FileInputStream(lib), new FileOutputStream(target));
-                                    String srcMd5 = md5sum(new FileInputStream(lib));
-                                    String destMd5 = md5sum(new FileInputStream(target));
-                                    if (!srcMd5.equals(destMd5)) {
-                                        LOG.error("[{}] Error copying {} to {}. Bad checksum", libPackage, lib.getName(), target.getName());
-                                        throw new IOException(String.format("Error copying %s to %s. Bad checksum.", lib.getName(), target.getName()));
-                                    }
-                                }
-                            }
-                        }
-                    } finally {
-                        packaged.close();
-                    }
-                    if (!verifyLibs(nativeLib)) {
-                        throw new IOException(String.format("%s native libraries were not properly extracted to %s", nativeLib.libPackage, libPath));
-                    }
-                }
-            }
+    private boolean updateSystemPath(final Set<File> libDirs) throws IOException {
+        try (PhaseRecorder pathUpdate = startPhase(null, ExtractionPhase.PATH_UPDATE)) {
+            return pathUpdate.complete(updateSystemPathLocked(libDirs));
         }
-        return updateSystemPath();
     }
 
     /**
-     * Updates the system java.library.path to include the directory where
-     * native libraries will be placed by this loader.
+     * Updates the system java.library.path while holding the lock shared by all loaders.
+     * @param libDirs the canonical directories containing the extracted native libraries
      * @return <code>true</code> if the system path has been successfully updated
      * @throws IOException if an error occurs updating the path
      */
-    private boolean updateSystemPath() throws IOException {
-        Set<File> libDirs = buildLibTree(libraryPath, new TreeSet<File>());
+    private boolean updateSystemPathLocked(final Set<File> libDirs) throws IOException {
         synchronized (SYS_PATH_LOCK) {
             String javaLibPath = System.getProperty(JAVA_LIBRARY_PATH);
             if (javaLibPath == null) {
                 javaLibPath = "";
             }
-            List<String> sysPaths = Arrays.asList(javaLibPath.split(File.pathSeparator));
-            for (String path : sysPaths) {
-                String cPath = new File(path).getCanonicalPath();
-                for (Iterator<File> libIter = libDirs.iterator(); libIter.hasNext();) {
-                    File libDir = libIter.next();
-                    if (libDir.getCanonicalPath().equals(cPath)) {
-                        libIter.remove();
+            if (!javaLibPath.equals(registeredLibraryPath)) {
+                REGISTERED_PATHS.clear();
+                for (String path : javaLibPath.split(File.pathSeparator)) {
+                    if (!path.isEmpty()) {
+                        REGISTERED_PATHS.add(new File(path).getCanonicalPath());
                     }
                 }
+                registeredLibraryPath = javaLibPath;
             }
-            LOG.debug("Adding {} directories to java.library.path", libDirs.size());
-            if (!libDirs.isEmpty()) {
-                StringBuilder pathBuilder = new StringBuilder(javaLibPath);
-                for (File libDir : libDirs) {
+            StringBuilder pathBuilder = new StringBuilder(javaLibPath);
+            int added = 0;
+            for (File libDir : libDirs) {
+                if (REGISTERED_PATHS.add(libDir.getPath())) {
                     if (pathBuilder.length() > 0) {
                         pathBuilder.append(File.pathSeparator);
                     }
-                    pathBuilder.append(libDir.getCanonicalPath());
+                    pathBuilder.append(libDir.getPath());
+                    added++;
                 }
+            }
+            LOG.debug("Adding {} directories to java.library.path", added);
+            if (added > 0) {
                 LOG.info("Updating java.library.path: {}", pathBuilder);
-                System.setProperty(JAVA_LIBRARY_PATH, pathBuilder.toString());
+                registeredLibraryPath = pathBuilder.toString();
+                System.setProperty(JAVA_LIBRARY_PATH, registeredLibraryPath);
 
-                try {
-                    Field fieldSysPath = ClassLoader.class.getDeclaredField("sys_paths");
-                    fieldSysPath.setAccessible(true);
-                    fieldSysPath.set(null, null);
-                } catch (IllegalAccessException | NoSuchFieldException e) {
-                    throw new IllegalStateException("Unable to clear system path cache", e);
+                if (!sysPathsUnsupported) {
+                    try {
+                        Field fieldSysPath = ClassLoader.class.getDeclaredField("sys_paths");
+                        fieldSysPath.setAccessible(true);
+                        fieldSysPath.set(null, null);
+                    } catch (IllegalAccessException | NoSuchFieldException | RuntimeException e) {
+                        // JDK 15+ removed the field and JDK 16+ does not allow it to be made accessible
+                        sysPathsUnsupported = true;
+                        LOG.warn("Unable to clear the system path cache on this JVM; System.loadLibrary() will not find "
+                                + "extracted libraries. Use JNILoader.loadLibrary() instead.", e);
+                    }
                 }
             }
             LOG.debug("java.library.path: {}", System.getProperty(JAVA_LIBRARY_PATH));
@@ -306,86 +2157,498 @@ public final class JNILoader {
     }
 
     /**
-     * Verifies that all native libraries have been successfully extracted.
+     * Verifies that all native libraries have been successfully extracted, as
+     * thoroughly as the loader's verification policy requires. If the policy allows
+     * it and the bundle's extraction receipt matches the archive and the extracted
+     * files, none of the files are read. A receipt is written when the libraries
+     * are verified, unless one of them changed while it was read.
+     * @param nativeLib the package of libraries to verify
+     * @param bundleDir the directory where the libraries were extracted
+     * @param diff collects the unchanged files and the entries that are missing or differ
+     * @param recorder the recorder of the current phase
+     * @return true if all native libraries have been successfully extracted
+     * @throws IOException if errors occur verifying the libraries
+     */
+    private boolean verifyLibs(final NativeLib nativeLib, final File bundleDir, final BundleDiff diff, final PhaseRecorder recorder)
+            throws IOException {
+        VerificationPolicy policy = verificationPolicy;
+        if (!policy.usesReceipts()) {
+            return verifyArchive(nativeLib, bundleDir, policy, diff, recorder);
+        }
+        String archiveId = identifyArchive(nativeLib);
+        File receiptFile = getReceiptFile(nativeLib, bundleDir);
+        ExtractionReceipt receipt = ExtractionReceipt.read(receiptFile);
+        if (receipt != null && receipt.matches(archiveId, bundleDir)) {
+            LOG.debug("[{}] {} files match the extraction receipt", nativeLib.libPackage, receipt.getFiles().size());
+            return true;
+        }
+        // the files are stat'ed before they are read, in case they are replaced while they are verified
+        diff.recordStates();
+        if (!verifyArchive(nativeLib, bundleDir, policy, diff, recorder)) {
+            return false;
+        }
+        writeReceipt(nativeLib, archiveId, bundleDir, diff.unchanged, diff.states);
+        return true;
+    }
+
+    /**
+     * Identifies the archive a bundle is extracted from, for its extraction receipt.
+     * @param nativeLib the package of libraries
+     * @return the identity of the archive and the layout of the extracted files
+     * @throws IOException if the archive cannot be found
+     */
+    private String identifyArchive(final NativeLib nativeLib) throws IOException {
+        return ExtractionReceipt.identify(resolveArchive(nativeLib).url, flattenLibraries ? "flat" : "tree");
+    }
+
+    /**
+     * @param nativeLib the package of libraries
+     * @param bundleDir the directory where the libraries are extracted
+     * @return the extraction receipt of the bundle
+     */
+    private static File getReceiptFile(final NativeLib nativeLib, final File bundleDir) {
+        return new File(bundleDir, String.format(".%s.receipt", nativeLib.libPackage));
+    }
+
+    /**
+     * Writes the extraction receipt of a bundle. Receipts only make later verification
+     * cheaper, so failing to write one is logged rather than thrown.
+     * @param nativeLib the package of libraries
+     * @param archiveId the identity of the archive
+     * @param bundleDir the directory where the libraries were extracted
+     * @param files the extracted files
+     * @param verifiedStates the state of each file before it was verified, or <code>null</code> if
+     *                       the files were just extracted
+     */
+    private void writeReceipt(final NativeLib nativeLib, final String archiveId, final File bundleDir, final Collection<File> files,
+                              final Map<File, String> verifiedStates) {
+        try {
+            ExtractionReceipt receipt = ExtractionReceipt.create(archiveId, bundleDir, files, verifiedStates);
+            if (receipt == null) {
+                LOG.debug("[{}] Files changed while they were verified, not writing an extraction receipt", nativeLib.libPackage);
+                return;
+            }
+            receipt.write(getReceiptFile(nativeLib, bundleDir));
+            LOG.debug("[{}] Wrote extraction receipt for {} files", nativeLib.libPackage, files.size());
+        } catch (IOException ioe) {
+            LOG.warn("[{}] Unable to write extraction receipt to {}", nativeLib.libPackage, bundleDir.getPath(), ioe);
+        }
+    }
+
+    /**
+     * Verifies the extracted libraries against the packaged archive, as thoroughly
+     * as the verification policy requires.
      * @param nativeLib the package of libraries to verify
+     * @param bundleDir the directory where the libraries were extracted
+     * @param policy the verification policy
+     * @param diff collects the unchanged files and the entries that are missing or differ
+     * @param recorder the recorder of the current phase
      * @return true if all native libraries have been successfully extracted
      * @throws IOException if errors occur verifying the libraries
      */
-    private boolean verifyLibs(final NativeLib nativeLib) throws IOException {
-        ZipInputStream packaged = openNativeArchive(nativeLib);
+    private boolean verifyArchive(final NativeLib nativeLib, final File bundleDir, final VerificationPolicy policy,
+                                  final BundleDiff diff, final PhaseRecorder recorder) throws IOException {
+        NativeArchive packaged = openNativeArchive(nativeLib);
         try {
-            for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
-                File extractedFile = new File(libraryPath, entry.getName());
-                if (entry.isDirectory()) {
+            if (packaged.isRandomAccess()) {
+                ZipEntry manifestEntry = policy.usesManifest() ? packaged.getEntry(BundleManifest.ENTRY_NAME) : null;
+                if (manifestEntry != null) {
+                    try (InputStream in = packaged.getInputStream(manifestEntry)) {
+                        return verifyManifest(nativeLib, BundleManifest.read(in), bundleDir, policy, diff, recorder);
+                    }
+                }
+                return verifyIndexed(nativeLib, packaged, bundleDir, policy, diff, recorder);
+            }
+            ZipEntry entry = packaged.getNextEntry();
+            if (entry != null && BundleManifest.ENTRY_NAME.equals(entry.getName()) && policy.usesManifest()) {
+                // the rest of the archive does not need to be read if it has a manifest
+                try (InputStream in = packaged.getInputStream()) {
+                    return verifyManifest(nativeLib, BundleManifest.read(in), bundleDir, policy, diff, recorder);
+                }
+            }
+            for (; entry != null; entry = packaged.getNextEntry()) {
+                File extractedFile = getExtractedFile(bundleDir, entry.getName());
+                if (BundleManifest.ENTRY_NAME.equals(entry.getName())) {
+                    // the manifest is not extracted
+                    continue;
+                } else if (entry.isDirectory()) {
                     if (!extractedFile.isDirectory()) {
                         LOG.warn("[{}] missing directory: {}", nativeLib.libPackage, entry.getName());
                     }
-                } else {
-                    if (!extractedFile.isFile()) {
-                        LOG.warn("[{}] missing file: {}", nativeLib.libPackage, entry.getName());
+                } else if (!extractedFile.isFile()) {
+                    LOG.warn("[{}] missing file: {}", nativeLib.libPackage, entry.getName());
+                    // if the first file is missing the bundle has not been extracted, so stop reading the archive
+                    if (!diff.change(entry.getName()) || diff.unchanged.isEmpty() && diff.changed.size() == 1) {
                         return false;
                     }
-
-                    String packagedMd5 = md5sum(new EntryStream(packaged));
-                    String extractedMd5 = md5sum(new FileInputStream(extractedFile));
-
-                    LOG.debug("[{}] {} (packaged):  {}", nativeLib.libPackage, entry.getName(), packagedMd5);
-                    LOG.debug("[{}] {} (extracted): {}", nativeLib.libPackage, entry.getName(), extractedMd5);
-
-                    if (!packagedMd5.equals(extractedMd5)) {
-                        LOG.warn("[{}] bad checksum: {}", nativeLib.libPackage, entry.getName());
-                        return false;
+                } else {
+                    diff.stat(extractedFile);
+                    if (policy.checksContents() && !verifyContents(nativeLib, packaged, entry, extractedFile, policy, recorder)) {
+                        if (!diff.change(entry.getName())) {
+                            return false;
+                        }
+                    } else if (!policy.checksContents() && policy.checksSize()
+                            && extractedFile.length() != packagedSize(packaged, entry)) {
+                        LOG.warn("[{}] bad size: {}", nativeLib.libPackage, entry.getName());
+                        if (!diff.change(entry.getName())) {
+                            return false;
+                        }
+                    } else {
+                        diff.unchanged.add(extractedFile);
                     }
                 }
             }
         } finally {
             packaged.close();
         }
-        return true;
+        return diff.changed.isEmpty();
+    }
+
+    /**
+     * @param packaged the sequential archive, positioned at the entry
+     * @param entry the packaged entry
+     * @return the size of the entry, which is read if the archive does not record it
+     * @throws IOException if the entry cannot be read
+     */
+    private static long packagedSize(final NativeArchive packaged, final ZipEntry entry) throws IOException {
+        // sequential archives may not know the size of an entry until it has been read
+        return entry.getSize() >= 0L ? entry.getSize() : IOHelper.copy(packaged.getInputStream(), NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    /**
+     * Verifies that all native libraries have been successfully extracted using
+     * the index of a random access archive. The sizes of all files are checked
+     * before any are read. If the archive records the CRC-32 of each entry, as the
+     * central directory of a ZIP archive does, none of the packaged entries are
+     * decompressed unless the policy requires SHA-256 hashes.
+     * @param nativeLib the package of libraries to verify
+     * @param packaged the random access archive
+     * @param bundleDir the directory where the libraries were extracted
+     * @param policy the verification policy
+     * @param diff collects the unchanged files and the entries that are missing or differ
+     * @param recorder the recorder of the current phase
+     * @return true if all native libraries have been successfully extracted
+     * @throws IOException if errors occur verifying the libraries
+     */
+    private boolean verifyIndexed(final NativeLib nativeLib, final NativeArchive packaged, final File bundleDir,
+                                  final VerificationPolicy policy, final BundleDiff diff, final PhaseRecorder recorder)
+            throws IOException {
+        Map<File, ZipEntry> files = new LinkedHashMap<>();
+        for (ZipEntry entry = packaged.getNextEntry(); entry != null; entry = packaged.getNextEntry()) {
+            File extractedFile = getExtractedFile(bundleDir, entry.getName());
+            if (BundleManifest.ENTRY_NAME.equals(entry.getName())) {
+                // the manifest is not extracted
+                continue;
+            } else if (entry.isDirectory()) {
+                if (!extractedFile.isDirectory()) {
+                    LOG.warn("[{}] missing directory: {}", nativeLib.libPackage, entry.getName());
+                }
+            } else if (!extractedFile.isFile()) {
+                LOG.warn("[{}] missing file: {}", nativeLib.libPackage, entry.getName());
+                if (!diff.change(entry.getName())) {
+                    return false;
+                }
+            } else if (policy.checksSize() && extractedFile.length() != entry.getSize()) {
+                LOG.warn("[{}] bad size: {}", nativeLib.libPackage, entry.getName());
+                if (!diff.change(entry.getName())) {
+                    return false;
+                }
+            } else {
+                diff.stat(extractedFile);
+                files.put(extractedFile, entry);
+            }
+        }
+        for (Map.Entry<File, ZipEntry> file : files.entrySet()) {
+            if (policy.checksContents() && !verifyContents(nativeLib, packaged, file.getValue(), file.getKey(), policy, recorder)) {
+                if (!diff.change(file.getValue().getName())) {
+                    return false;
+                }
+            } else {
+                diff.unchanged.add(file.getKey());
+            }
+        }
+        return diff.changed.isEmpty();
+    }
+
+    /**
+     * Verifies that all native libraries have been successfully extracted using
+     * the sizes and hashes recorded in the bundle manifest. The sizes of all files
+     * are checked before any are hashed so missing or truncated files are found
+     * without reading the others.
+     * @param nativeLib the package of libraries to verify
+     * @param manifest the bundle manifest
+     * @param bundleDir the directory where the libraries were extracted
+     * @param policy the verification policy
+     * @param diff collects the unchanged files and the entries that are missing or differ
+     * @param recorder the recorder of the current phase
+     * @return true if all native libraries have been successfully extracted
+     * @throws IOException if errors occur verifying the libraries
+     */
+    private boolean verifyManifest(final NativeLib nativeLib, final BundleManifest manifest, final File bundleDir,
+                                   final VerificationPolicy policy, final BundleDiff diff, final PhaseRecorder recorder)
+            throws IOException {
+        List<BundleManifest.Entry> files = new ArrayList<>();
+        for (BundleManifest.Entry file : manifest.getEntries()) {
+            File extractedFile = getExtractedFile(bundleDir, file.getName());
+            if (!extractedFile.isFile()) {
+                LOG.warn("[{}] missing file: {}", nativeLib.libPackage, file.getName());
+                if (!diff.change(file.getName())) {
+                    return false;
+                }
+            } else if (policy.checksSize() && extractedFile.length() != file.getSize()) {
+                LOG.warn("[{}] bad size: {}", nativeLib.libPackage, file.getName());
+                if (!diff.change(file.getName())) {
+                    return false;
+                }
+            } else {
+                diff.stat(extractedFile);
+                files.add(file);
+            }
+        }
+        for (BundleManifest.Entry file : files) {
+            File extractedFile = getExtractedFile(bundleDir, file.getName());
+            if (policy.checksContents() && !verifyManifestEntry(nativeLib, file, extractedFile, recorder)) {
+                if (!diff.change(file.getName())) {
+                    return false;
+                }
+            } else {
+                diff.unchanged.add(extractedFile);
+            }
+        }
+        return diff.changed.isEmpty();
+    }
+
+    /**
+     * Verifies a single extracted file against the SHA-256 hash recorded in the bundle manifest.
+     * @param nativeLib the package of libraries to verify
+     * @param file the manifest entry
+     * @param extractedFile the extracted file
+     * @param recorder the recorder of the current phase
+     * @return true if the file matches the manifest
+     * @throws IOException if errors occur hashing the file
+     */
+    private boolean verifyManifestEntry(final NativeLib nativeLib, final BundleManifest.Entry file, final File extractedFile,
+                                        final PhaseRecorder recorder) throws IOException {
+        try (PhaseRecorder checksum = recorder.startEntry(ExtractionPhase.CHECKSUM, file.getName())) {
+            String extractedSha = BundleManifest.toHexString(
+                    IOHelper.digest(extractedFile, newDigest(BundleManifest.DIGEST_ALGORITHM)));
+            checksum.read(file.getSize());
+
+            LOG.debug("[{}] {} (manifest):  {}", nativeLib.libPackage, file.getName(), file.getSha256());
+            LOG.debug("[{}] {} (extracted): {}", nativeLib.libPackage, file.getName(), extractedSha);
+
+            if (!checksum.complete(file.getSha256().equals(extractedSha))) {
+                LOG.warn("[{}] bad checksum: {}", nativeLib.libPackage, file.getName());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Verifies the contents of a single extracted file against the packaged entry.
+     * The SHA256 policy compares the SHA-256 hashes of the packaged and extracted
+     * files. Other policies compare the CRC-32 of the extracted file with the value
+     * recorded in the archive, only reading the packaged entry if the archive does
+     * not record checksums.
+     * @param nativeLib the package of libraries to verify
+     * @param packaged the packaged archive, positioned at the entry if it is read sequentially, or
+     *                 <code>null</code> if the entry was registered from an archive that records checksums
+     * @param entry the packaged entry
+     * @param extractedFile the extracted file
+     * @param policy the verification policy
+     * @param recorder the recorder of the current phase
+     * @return true if the extracted file matches the packaged entry
+     * @throws IOException if errors occur reading the files
+     */
+    private boolean verifyContents(final NativeLib nativeLib, final NativeArchive packaged, final ZipEntry entry,
+                                   final File extractedFile, final VerificationPolicy policy, final PhaseRecorder recorder)
+            throws IOException {
+        try (PhaseRecorder checksum = recorder.startEntry(ExtractionPhase.CHECKSUM, entry.getName())) {
+            String packagedSum;
+            String extractedSum;
+            if (policy == VerificationPolicy.SHA256) {
+                packagedSum = BundleManifest.toHexString(IOHelper.digest(packagedStream(packaged, entry),
+                        newDigest(BundleManifest.DIGEST_ALGORITHM)));
+                extractedSum = BundleManifest.toHexString(IOHelper.digest(extractedFile, newDigest(BundleManifest.DIGEST_ALGORITHM)));
+                checksum.read(entry.getCompressedSize() >= 0L ? entry.getCompressedSize() : extractedFile.length());
+            } else {
+                long packagedCrc = packaged == null || packaged.hasChecksums() ? entry.getCrc() : -1L;
+                if (packagedCrc == -1L) {
+                    packagedCrc = IOHelper.checksum(packagedStream(packaged, entry), new CRC32());
+                    checksum.read(entry.getCompressedSize() >= 0L ? entry.getCompressedSize() : extractedFile.length());
+                }
+                packagedSum = Long.toHexString(packagedCrc);
+                extractedSum = Long.toHexString(IOHelper.checksum(extractedFile, new CRC32()));
+            }
+            checksum.read(extractedFile.length());
+
+            LOG.debug("[{}] {} (packaged):  {}", nativeLib.libPackage, entry.getName(), packagedSum);
+            LOG.debug("[{}] {} (extracted): {}", nativeLib.libPackage, entry.getName(), extractedSum);
+
+            if (!checksum.complete(packagedSum.equals(extractedSum))) {
+                LOG.warn("[{}] bad checksum: {}", nativeLib.libPackage, entry.getName());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param packaged the packaged archive, positioned at the entry if it is read sequentially
+     * @param entry the packaged entry
+     * @return the contents of the entry
+     * @throws IOException if the entry cannot be read
+     */
+    private static InputStream packagedStream(final NativeArchive packaged, final ZipEntry entry) throws IOException {
+        return packaged.isRandomAccess() ? packaged.getInputStream(entry) : packaged.getInputStream();
+    }
+
+    /**
+     * Extracts an entry of the packaged archive to the target file in a single
+     * pass, hashing the bytes as they are written. The CRC-32 of the written bytes
+     * is checked against the value recorded in the archive, so the packaged bytes
+     * do not need to be read a second time to verify the extracted file. Stored
+     * entries of random access archives are copied directly from the archive file
+     * by the operating system and hashed from the page cache.
+     * @param packaged the packaged archive, positioned at the entry if it is read sequentially
+     * @param entry the entry to extract
+     * @param target the file to write
+     * @param digest the digest used to hash the extracted file or <code>null</code> to only compute its CRC-32
+     * @return the hash of the extracted file, or its CRC-32 if it was not hashed
+     * @throws IOException if errors occur extracting the entry
+     */
+    private FileDigest extractEntry(final NativeArchive packaged, final ZipEntry entry, final File target, final MessageDigest digest)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        long written = -1L;
+        byte[] hash = null;
+        if (packaged.isRandomAccess() && entry.getMethod() == ZipEntry.STORED) {
+            long offset = packaged.getDataOffset(entry);
+            if (offset >= 0L) {
+                written = IOHelper.transfer(packaged.getChannel(), offset, entry.getSize(), target);
+                hash = IOHelper.digest(target, digest, crc);
+            }
+        }
+        if (written < 0L) {
+            OutputStream file = new FileOutputStream(target);
+            try (InputStream in = packagedStream(packaged, entry);
+                 OutputStream out = new CheckedOutputStream(digest != null ? new DigestOutputStream(file, digest) : file, crc)) {
+                written = IOHelper.copy(in, out);
+            }
+            hash = digest != null ? digest.digest() : null;
+        }
+        if (target.length() != written) {
+            throw new IOException(String.format("Expected %d bytes in %s, found %d", written, target.getPath(), target.length()));
+        }
+        // sequential archives may not know the CRC-32 of an entry until it has been read
+        if (entry.getCrc() != -1 && entry.getCrc() != crc.getValue()) {
+            throw new IOException(String.format("Invalid CRC-32 for %s: expected %x, found %x", entry.getName(), entry.getCrc(),
+                    crc.getValue()));
+        }
+        return hash != null ? new FileDigest(digest.getAlgorithm(), hash) : new FileDigest(crc.getValue());
     }
 
     /**
-     * Generates an MD5 hash for the provided InputStream.
-     * @param input the input stream
-     * @return the MD5 hash of the input
-     * @throws IOException if errors occur processing the stream
+     * @param algorithm the digest algorithm
+     * @return a new MessageDigest for the algorithm
      */
-    private String md5sum(final InputStream input) throws IOException {
+    private static MessageDigest newDigest(final String algorithm) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            DigestOutputStream digestStream = new DigestOutputStream(new SinkOutputStream(), digest);
-            IOUtils.copy(input, digestStream);
-            StringBuilder hash = new StringBuilder();
-            for (byte b : digest.digest()) {
-                hash.append(Integer.toHexString(b & 0xff));
-            }
-            return hash.toString();
+            return MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException nsae) {
-            throw new IllegalStateException("MD5 algorithm is not available.", nsae);
-        } finally {
-            input.close();
+            throw new IllegalStateException(String.format("%s algorithm is not available.", algorithm), nsae);
         }
     }
 
     /**
      * Opens the packaged archive containing the native libraries for the current platform.
      * @param nativeLib the package of libraries to open
-     * @return a ZipFile for reading the archive
+     * @return the opened archive
+     * @throws IOException if the library package for the runtime platform is not available or cannot be opened
+     */
+    private NativeArchive openNativeArchive(final NativeLib nativeLib) throws IOException {
+        ResolvedArchive archive = resolveArchive(nativeLib);
+        try {
+            return archive.format.open(archive.url);
+        } catch (IOException ioe) {
+            throw new IOException(String.format("Unable to open %s native libraries for %s from %s", nativeLib.libPackage,
+                    platform, archive), ioe);
+        }
+    }
+
+    /**
+     * Resolves the packaged archive containing the native libraries for the current
+     * platform. The archive is only searched for the first time a package is resolved;
+     * the result, including a missing archive, is reused until the CPU variants of this
+     * loader are changed.
+     * @param nativeLib the package of libraries to resolve
+     * @return the resolved archive
      * @throws FileNotFoundException if the library package for the runtime platform is not available
      */
-    private ZipInputStream openNativeArchive(final NativeLib nativeLib) throws FileNotFoundException {
-        InputStream nativeArchive = null;
-        // iterate over all available fallback platforms to find archive
-        for (Platform pform = platform; nativeArchive == null && pform != null; pform = FALLBACK_PLATFORMS.get(pform)) {
-            String archive = nativeLib.getArchivePath(pform);
-            LOG.debug("[{}] Opening archive {}", nativeLib.libPackage, archive);
-            nativeArchive = JNILoader.class.getResourceAsStream(archive);
+    private ResolvedArchive resolveArchive(final NativeLib nativeLib) throws FileNotFoundException {
+        ResolvedArchive archive = resolvedArchives.get(nativeLib);
+        if (archive == null) {
+            try (PhaseRecorder lookup = startPhase(nativeLib, ExtractionPhase.ARCHIVE_LOOKUP)) {
+                archive = findNativeArchive(nativeLib);
+                lookup.setArchivePlatform(archive.platform);
+                lookup.complete(archive.url != null);
+            }
+            ResolvedArchive existing = resolvedArchives.putIfAbsent(nativeLib, archive);
+            if (existing != null) {
+                archive = existing;
+            }
+        }
+        if (archive.url == null) {
+            throw new FileNotFoundException(String.format("Unable to find %s native libraries for %s; searched %s",
+                    nativeLib.libPackage, platform, archive.searched));
         }
-        if (nativeArchive == null) {
-            throw new FileNotFoundException(String.format("Unable to find native library for %s [%s]", RUNTIME_PLATFORM.getArchiveSuffix(),
-                    nativeLib.getArchivePath(platform)));
+        return archive;
+    }
+
+    /**
+     * Starts timing a phase of loading a bundle.
+     * @param nativeLib the package of libraries or <code>null</code> if the phase is not bundle specific
+     * @param phase the phase
+     * @return the recorder of the phase
+     */
+    private PhaseRecorder startPhase(final NativeLib nativeLib, final ExtractionPhase phase) {
+        return nativeLib != null ? new PhaseRecorder(phase, nativeLib.resourcePath, nativeLib.libPackage, platform) :
+                new PhaseRecorder(phase, null, null, platform);
+    }
+
+    /**
+     * Finds the packaged archive containing the native libraries for the current platform.
+     * @param nativeLib the package of libraries to find
+     * @return the archive that was found or, if there is none, the archives that were searched
+     */
+    private ResolvedArchive findNativeArchive(final NativeLib nativeLib) {
+        List<String> searched = new ArrayList<>();
+        List<CpuVariant> variants = cpuVariants;
+        List<BundleFormat> formats = bundleFormats;
+        // iterate over all available fallback platforms, and the CPU variants and formats of each, to find archive
+        for (Platform pform = platform; pform != null; pform = FALLBACK_PLATFORMS.get(pform)) {
+            for (int i = 0; i <= variants.size(); i++) {
+                CpuVariant variant = i < variants.size() ? variants.get(i) : null;
+                for (BundleFormat format : formats) {
+                    String archive = nativeLib.getArchivePath(pform, variant, format);
+                    LOG.debug("[{}] Opening archive {}", nativeLib.libPackage, archive);
+                    URL nativeArchive = JNILoader.class.getResource(archive);
+                    if (nativeArchive != null) {
+                        if (variant != null) {
+                            LOG.info("[{}] Using {} optimized bundle {}", nativeLib.libPackage, variant.getCanonicalName(), archive);
+                        }
+                        if (!pform.equals(platform)) {
+                            LOG.info("[{}] Using {} bundle {} for {}", nativeLib.libPackage, pform, archive, platform);
+                        }
+                        return new ResolvedArchive(pform, variant, format, archive, nativeArchive, searched);
+                    }
+                    searched.add(archive);
+                }
+            }
         }
-        return new ZipInputStream(nativeArchive);
+        LOG.debug("[{}] No archive found for {}; searched {}", nativeLib.libPackage, platform, searched);
+        return new ResolvedArchive(null, null, null, null, null, searched);
     }
 
     public static void main(final String[] args) {
@@ -412,11 +2675,32 @@ public final class JNILoader {
                         withLongOpt("lib-name").
                         hasArg(true).
                         withArgName("lib_package").
-                        withDescription("The base name of the library bundles. Bundles must be named ${basename}-${os}-${arch}.zip").
+                        withDescription("The base name of the library bundles. Bundles must be named ${basename}-${os}-${arch}.zip " +
+                                "or .tar, with an optional -${cpu_variant} before the extension").
                         create('l')
         );
+        opts.addOption(OptionBuilder.
+                        withLongOpt("write-manifest").
+                        hasArgs().
+                        withArgName("archive").
+                        withDescription("Writes a manifest of the files in each bundle archive into the archive so extracted libraries " +
+                                "can be verified without decompressing it. Run when the bundles are built.").
+                        create('m')
+        );
+        opts.addOption(OptionBuilder.
+                        withLongOpt("prepare").
+                        hasArg(true).
+                        withArgName("dir").
+                        withDescription("Extracts the library bundle named by -l into dir and adds it to the index there, so loaders " +
+                                "started with -Djniloader.prepared=dir use it without extracting. Run when the application image is built.").
+                        create('P')
+        );
+        opts.addOption(OptionBuilder.withLongOpt("extraction-root").
+                withDescription("Display the directory below which native libraries are extracted, why it was chosen " +
+                        "and why any preferred candidates were rejected.").
+                create('t'));
 
-        String usage = "JNILoader -? | -p | -l <lib_package> [-r <path>] [-a] [-o] [-i]";
+        String usage = "JNILoader -? | -p | -t | -m <archive>... | -l <lib_package> [-r <path>] [-a] [-o] [-i | -P <dir>]";
         HelpFormatter help = new HelpFormatter();
         help.setWidth(120);
         CommandLine commandLine = null;
@@ -440,6 +2724,27 @@ public final class JNILoader {
             System.exit(0);
         }
 
+        if (commandLine.hasOption('t')) {
+            System.out.printf("Extraction Root: %s%n", EXTRACTION_ROOT);
+            for (Map.Entry<File, String> rejected : EXTRACTION_ROOT.getRejected().entrySet()) {
+                System.out.printf("Rejected:        %s (%s)%n", rejected.getKey().getPath(), rejected.getValue());
+            }
+            System.exit(0);
+        }
+
+        if (commandLine.hasOption('m')) {
+            for (String archive : commandLine.getOptionValues('m')) {
+                try {
+                    BundleManifest manifest = BundleManifest.addTo(new File(archive));
+                    System.out.printf("%s: %d files%n", archive, manifest.getEntries().size());
+                } catch (IOException ioe) {
+                    System.out.printf("Error writing manifest to %s: %s%n", archive, ioe.getMessage());
+                    System.exit(1);
+                }
+            }
+            System.exit(0);
+        }
+
         if (!commandLine.hasOption('l')) {
             System.out.println("Missing required option: -l");
             help.printHelp(usage, opts);
@@ -458,14 +2763,36 @@ public final class JNILoader {
         }
 
         JNILoader loader = new JNILoader();
+        if (commandLine.hasOption('P')) {
+            File preparedDir = new File(commandLine.getOptionValue('P'));
+            try {
+                boolean prepared = loader.prepare(preparedDir, resourcePath, Collections.singletonList(libPackage));
+                System.out.printf("Prepared %s in %s: %s%n", lib, preparedDir.getAbsolutePath(), prepared);
+                System.exit(prepared ? 0 : 1);
+            } catch (IOException ioe) {
+                System.out.printf("Error preparing native libraries [%s]: %s%n", lib, ioe.getMessage());
+                System.exit(1);
+            }
+        }
         if (commandLine.hasOption('o')) {
             System.out.printf("OS:   %s%n", loader.platform.getOperatingSystem().getNativeString());
         }
         if (commandLine.hasOption('a')) {
             System.out.printf("Arch: %s%n", loader.platform.getArchitecture().getCanonicalName());
+            for (CpuVariant variant : loader.getCpuVariants()) {
+                System.out.printf("CPU:  %s%n", variant.getCanonicalName());
+            }
         }
-        System.out.printf("Native Lib Archive: %s%n", lib.getArchivePath(loader.platform));
+        try {
+            System.out.printf("Native Lib Archive: %s%n", loader.resolveArchive(lib));
+        } catch (FileNotFoundException fnfe) {
+            System.out.printf("Native Lib Archive: %s%n", fnfe.getMessage());
+        }
+        System.out.printf("Extraction Root:    %s%n", EXTRACTION_ROOT);
         System.out.printf("Temp Directory:     %s%n", loader.libraryPath.getAbsolutePath());
+        if (loader.getPreparedDirectory() != null) {
+            System.out.printf("Prepared Directory: %s%n", loader.getPreparedDirectory().getPath());
+        }
         if (commandLine.hasOption('i')) {
             try {
                 System.out.printf("Init? %s%n", loader.extractLibs(resourcePath, libPackage));
@@ -477,6 +2804,41 @@ public final class JNILoader {
         }
     }
 
+    /**
+     * Creates a factory for named daemon threads.
+     * @param nameFormat the format of the thread names, given the thread number
+     * @return the thread factory
+     */
+    private static ThreadFactory newDaemonThreadFactory(final String nameFormat) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable task) {
+                Thread thread = new Thread(task, String.format(nameFormat, count.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Holds the default executor for asynchronous extraction, which is only created
+     * if it is used. Virtual threads are used on JVMs that support them (JDK 21+).
+     */
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("Virtual threads are not available, using platform threads for asynchronous extraction");
+                return Executors.newCachedThreadPool(newDaemonThreadFactory("jni-loader-async-%d"));
+            }
+        }
+    }
+
     /**
      * Wrapper for a combination of resource path and library name.
      */
@@ -499,8 +2861,10 @@ public final class JNILoader {
             libPackage = lPkg.trim();
         }
 
-        public String getArchivePath(final Platform pform) {
-            return String.format("%s%s-%s.zip", resourcePath, libPackage, pform.getArchiveSuffix());
+        public String getArchivePath(final Platform pform, final CpuVariant variant, final BundleFormat format) {
+            return variant != null ? String.format("%s%s-%s-%s.%s", resourcePath, libPackage, pform.getArchiveSuffix(),
+                    variant.getCanonicalName(), format.getExtension()) :
+                    String.format("%s%s-%s.%s", resourcePath, libPackage, pform.getArchiveSuffix(), format.getExtension());
         }
 
         @Override
@@ -530,76 +2894,154 @@ public final class JNILoader {
     }
 
     /**
-     * An input stream that delegates to a ZipInputStream, calling the closeEntry() method
-     * when reading is complete instead of closing the entire stream.
+     * The archive chosen for a package of libraries: the platform and CPU variant it
+     * was built for, its format and its location on the classpath. An archive that
+     * could not be found has no platform, format or location.
      */
-    private static class EntryStream extends InputStream {
-        private final ZipInputStream zipStream;
-
-        public EntryStream(final ZipInputStream zis) {
-            zipStream = zis;
+    private static class ResolvedArchive {
+        public final Platform platform;
+        public final CpuVariant variant;
+        public final BundleFormat format;
+        public final String archivePath;
+        public final URL url;
+        /** The archives that were searched before this one was found. */
+        public final List<String> searched;
+
+        public ResolvedArchive(final Platform pform, final CpuVariant cpuVariant, final BundleFormat bundleFormat, final String path,
+                               final URL location, final List<String> searchPaths) {
+            platform = pform;
+            variant = cpuVariant;
+            format = bundleFormat;
+            archivePath = path;
+            url = location;
+            searched = Collections.unmodifiableList(new ArrayList<>(searchPaths));
         }
 
         @Override
-        public int read() throws IOException {
-            return zipStream.read();
+        public String toString() {
+            return variant != null ? String.format("%s [%s, %s]", archivePath, platform, variant.getCanonicalName()) :
+                    String.format("%s [%s]", archivePath, platform);
         }
+    }
 
-        @Override
-        public int read(byte[] b) throws IOException {
-            return zipStream.read(b);
+    /**
+     * A library in a bundle registered for lazy extraction.
+     */
+    private static class LazyLibrary {
+        public final NativeLib nativeLib;
+        public final ZipEntry entry;
+        /** The bundle manifest, indexed by file name, or <code>null</code> if the bundle does not have one. */
+        public final Map<String, BundleManifest.Entry> manifest;
+        /** <code>true</code> if the archive recorded the CRC-32 of the entry when it was registered. */
+        public final boolean checksummed;
+
+        public LazyLibrary(final NativeLib lib, final ZipEntry zipEntry, final Map<String, BundleManifest.Entry> bundleManifest,
+                           final boolean hasChecksum) {
+            nativeLib = lib;
+            entry = zipEntry;
+            manifest = bundleManifest;
+            checksummed = hasChecksum;
         }
 
-        @Override
-        public int read(byte[] b, int off, int len) throws IOException {
-            return zipStream.read(b, off, len);
+        /**
+         * @return the file name of the library, without any archive directory
+         */
+        public String getFileName() {
+            return entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
         }
 
         @Override
-        public long skip(long n) throws IOException {
-            return zipStream.skip(n);
+        public String toString() {
+            return String.format("%s [%s]", entry.getName(), nativeLib);
         }
+    }
 
-        @Override
-        public int available() throws IOException {
-            return zipStream.available();
-        }
+    /**
+     * An extraction run while holding a bundle's extraction lock.
+     */
+    private interface LockedExtraction {
+        /**
+         * @param recorder the recorder of the extraction phase
+         * @return <code>true</code> if the native libraries are successfully extracted
+         * @throws IOException if the libraries cannot be extracted
+         */
+        boolean extract(PhaseRecorder recorder) throws IOException;
+    }
 
-        @Override
-        public void close() throws IOException {
-            zipStream.closeEntry();
+    /**
+     * The result of verifying extracted libraries against their bundle: the extracted
+     * files that match the archive and the names of the entries that are missing or differ.
+     */
+    private static class BundleDiff {
+        /** Whether verification continues past the first difference, to find every entry that differs. */
+        public final boolean complete;
+        public final List<File> unchanged = new ArrayList<>();
+        public final Set<String> changed = new LinkedHashSet<>();
+        /** The state of each file before it was verified, if they are recorded for an extraction receipt. */
+        public Map<File, String> states;
+
+        public BundleDiff(final boolean findAll) {
+            complete = findAll;
         }
 
-        @Override
-        public void mark(int readlimit) {
-            zipStream.mark(readlimit);
+        /**
+         * Records the state of each file before it is verified from now on.
+         */
+        public void recordStates() {
+            states = new HashMap<>();
         }
 
-        @Override
-        public void reset() throws IOException {
-            zipStream.reset();
+        /**
+         * Records the state of a file before it is verified, if states are being recorded.
+         * @param file the extracted file
+         * @throws IOException if the file cannot be read
+         */
+        public void stat(final File file) throws IOException {
+            if (states != null) {
+                states.put(file, IOHelper.stat(file));
+            }
         }
 
-        @Override
-        public boolean markSupported() {
-            return zipStream.markSupported();
+        /**
+         * Records an entry that is missing or differs from the extracted file.
+         * @param entryName the name of the entry
+         * @return <code>true</code> if verification should continue
+         */
+        public boolean change(final String entryName) {
+            changed.add(entryName);
+            return complete;
         }
     }
 
     /**
-     * OutputStream that ignores all writes.
+     * The digest of an extracted file and the algorithm used to compute it, or its
+     * CRC-32 if it was not hashed.
      */
-    private static class SinkOutputStream extends OutputStream {
-        @Override
-        public void write(int b) throws IOException {
+    private static class FileDigest {
+        public final String algorithm;
+        public final byte[] digest;
+        public final long crc;
+
+        public FileDigest(final String alg, final byte[] dgst) {
+            algorithm = alg;
+            digest = dgst;
+            crc = -1L;
         }
 
-        @Override
-        public void write(byte[] b) throws IOException {
+        public FileDigest(final long crc32) {
+            algorithm = null;
+            digest = null;
+            crc = crc32;
         }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
+        /**
+         * @param file the file to check
+         * @return <code>true</code> if the file has this digest
+         * @throws IOException if the file cannot be read
+         */
+        public boolean matches(final File file) throws IOException {
+            return digest != null ? MessageDigest.isEqual(digest, IOHelper.digest(file, newDigest(algorithm))) :
+                    crc == IOHelper.checksum(file, new CRC32());
         }
     }
 
@@ -0,0 +1,374 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the shared libraries a native library declares it depends on: the
+ * <code>DT_NEEDED</code> entries of an ELF library, the DLLs imported by a PE
+ * library and the dylibs loaded by a Mach-O library. Only the headers and the
+ * tables holding the names are read. Dependencies are returned as file names,
+ * without any directory or <code>@rpath</code> prefix, so they can be matched
+ * against the files in a bundle.
+ */
+final class LibraryDependencies {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(LibraryDependencies.class);
+
+    /** The ELF magic number, <code>\x7fELF</code>. */
+    private static final int ELF_MAGIC = 0x7f454c46;
+    /** The ELF program header type of the dynamic section. */
+    private static final int PT_DYNAMIC = 2;
+    /** The ELF program header type of a loadable segment. */
+    private static final int PT_LOAD = 1;
+    /** The ELF dynamic tag of a needed library. */
+    private static final long DT_NEEDED = 1L;
+    /** The ELF dynamic tag of the string table address. */
+    private static final long DT_STRTAB = 5L;
+
+    /** The 32 bit Mach-O magic number. */
+    private static final int MH_MAGIC = 0xfeedface;
+    /** The 64 bit Mach-O magic number. */
+    private static final int MH_MAGIC_64 = 0xfeedfacf;
+    /** The magic number of a universal (fat) Mach-O file. */
+    private static final int FAT_MAGIC = 0xcafebabe;
+    /** The Mach-O load commands that name a dylib the library depends on. */
+    private static final Set<Integer> LOAD_DYLIB_COMMANDS = Collections.unmodifiableSet(new LinkedHashSet<>(
+            Arrays.asList(0xc, 0x20, 0x80000018, 0x8000001f, 0x80000023)));
+
+    /** The DOS header magic number of a PE library, <code>MZ</code>. */
+    private static final short DOS_MAGIC = 0x5a4d;
+    /** The PE signature, <code>PE\0\0</code>. */
+    private static final int PE_SIGNATURE = 0x00004550;
+    /** The optional header magic of a 32 bit PE library. */
+    private static final short PE32_MAGIC = 0x10b;
+    /** The optional header magic of a 64 bit PE library. */
+    private static final short PE32_PLUS_MAGIC = 0x20b;
+
+    /** The longest library name that will be read. */
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    private LibraryDependencies() {
+    }
+
+    /**
+     * Reads the libraries a native library depends on. Files that are not ELF, PE
+     * or Mach-O libraries, or whose headers cannot be parsed, have no dependencies.
+     * @param library the native library
+     * @return the file names of the libraries it depends on, in the order they are declared
+     * @throws IOException if the library cannot be read
+     */
+    static List<String> read(final File library) throws IOException {
+        try (FileChannel channel = FileChannel.open(library.toPath(), StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+            ByteBuffer magic = reader.read(0L, 4, ByteOrder.BIG_ENDIAN);
+            if (magic == null) {
+                return Collections.emptyList();
+            }
+            int bigEndian = magic.getInt(0);
+            int littleEndian = Integer.reverseBytes(bigEndian);
+            if (bigEndian == ELF_MAGIC) {
+                return readElf(reader);
+            } else if ((short) littleEndian == DOS_MAGIC) {
+                return readPe(reader);
+            } else if (bigEndian == FAT_MAGIC) {
+                ByteBuffer firstArch = reader.read(8L, 20, ByteOrder.BIG_ENDIAN);
+                return firstArch != null ? readMachO(reader, firstArch.getInt(8) & 0xffffffffL) : Collections.<String>emptyList();
+            } else if (bigEndian == MH_MAGIC || bigEndian == MH_MAGIC_64 || littleEndian == MH_MAGIC || littleEndian == MH_MAGIC_64) {
+                return readMachO(reader, 0L);
+            }
+            return Collections.emptyList();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            LOG.warn("Unable to read the dependencies of {}", library.getPath(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Reads the <code>DT_NEEDED</code> entries of an ELF library.
+     * @param reader the library
+     * @return the needed libraries
+     * @throws IOException if the library cannot be read
+     */
+    private static List<String> readElf(final Reader reader) throws IOException {
+        ByteBuffer ident = reader.read(0L, 16, ByteOrder.BIG_ENDIAN);
+        if (ident == null) {
+            return Collections.emptyList();
+        }
+        boolean is64 = ident.get(4) == 2;
+        ByteOrder order = ident.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        ByteBuffer header = reader.read(0L, is64 ? 64 : 52, order);
+        if (header == null) {
+            return Collections.emptyList();
+        }
+        long phOffset = is64 ? header.getLong(32) : header.getInt(28) & 0xffffffffL;
+        int phSize = header.getShort(is64 ? 54 : 42) & 0xffff;
+        int phCount = header.getShort(is64 ? 56 : 44) & 0xffff;
+
+        // the dynamic section refers to the string table by address, which is mapped to a file offset through the segments
+        List<long[]> segments = new ArrayList<>();
+        long dynOffset = -1L;
+        long dynSize = 0L;
+        for (int i = 0; i < phCount; i++) {
+            ByteBuffer ph = reader.read(phOffset + (long) i * phSize, is64 ? 56 : 32, order);
+            if (ph == null) {
+                return Collections.emptyList();
+            }
+            int type = ph.getInt(0);
+            long offset = is64 ? ph.getLong(8) : ph.getInt(4) & 0xffffffffL;
+            long vaddr = is64 ? ph.getLong(16) : ph.getInt(8) & 0xffffffffL;
+            long fileSize = is64 ? ph.getLong(32) : ph.getInt(16) & 0xffffffffL;
+            if (type == PT_LOAD) {
+                segments.add(new long[] { vaddr, offset, fileSize });
+            } else if (type == PT_DYNAMIC) {
+                dynOffset = offset;
+                dynSize = fileSize;
+            }
+        }
+        if (dynOffset < 0L) {
+            return Collections.emptyList();
+        }
+
+        int entrySize = is64 ? 16 : 8;
+        ByteBuffer dynamic = reader.read(dynOffset, (int) Math.min(dynSize, 1024 * 1024), order);
+        if (dynamic == null) {
+            return Collections.emptyList();
+        }
+        List<Long> needed = new ArrayList<>();
+        long strtab = -1L;
+        for (int pos = 0; pos + entrySize <= dynamic.limit(); pos += entrySize) {
+            long tag = is64 ? dynamic.getLong(pos) : dynamic.getInt(pos);
+            long value = is64 ? dynamic.getLong(pos + 8) : dynamic.getInt(pos + 4) & 0xffffffffL;
+            if (tag == 0L) {
+                break;
+            } else if (tag == DT_NEEDED) {
+                needed.add(value);
+            } else if (tag == DT_STRTAB) {
+                strtab = value;
+            }
+        }
+        long strtabOffset = -1L;
+        for (long[] segment : segments) {
+            if (strtab >= segment[0] && strtab < segment[0] + segment[2]) {
+                strtabOffset = segment[1] + strtab - segment[0];
+            }
+        }
+        List<String> names = new ArrayList<>();
+        for (long name : needed) {
+            if (strtabOffset >= 0L) {
+                addName(names, reader.readString(strtabOffset + name));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads the DLLs imported by a PE library.
+     * @param reader the library
+     * @return the imported DLLs
+     * @throws IOException if the library cannot be read
+     */
+    private static List<String> readPe(final Reader reader) throws IOException {
+        ByteBuffer dos = reader.read(0L, 64, ByteOrder.LITTLE_ENDIAN);
+        if (dos == null) {
+            return Collections.emptyList();
+        }
+        long peOffset = dos.getInt(0x3c) & 0xffffffffL;
+        ByteBuffer coff = reader.read(peOffset, 24, ByteOrder.LITTLE_ENDIAN);
+        if (coff == null || coff.getInt(0) != PE_SIGNATURE) {
+            return Collections.emptyList();
+        }
+        int sectionCount = coff.getShort(6) & 0xffff;
+        int optionalSize = coff.getShort(20) & 0xffff;
+        long optionalOffset = peOffset + 24;
+        ByteBuffer optional = reader.read(optionalOffset, optionalSize, ByteOrder.LITTLE_ENDIAN);
+        if (optional == null || optionalSize < 2) {
+            return Collections.emptyList();
+        }
+        short magic = optional.getShort(0);
+        int directories = magic == PE32_PLUS_MAGIC ? 112 : magic == PE32_MAGIC ? 96 : -1;
+        // the import table is the second data directory
+        if (directories < 0 || optionalSize < directories + 16
+                || optional.getInt(directories - 4) < 2) {
+            return Collections.emptyList();
+        }
+        long importRva = optional.getInt(directories + 8) & 0xffffffffL;
+        if (importRva == 0L) {
+            return Collections.emptyList();
+        }
+
+        List<long[]> sections = new ArrayList<>();
+        long sectionOffset = optionalOffset + optionalSize;
+        for (int i = 0; i < sectionCount; i++) {
+            ByteBuffer section = reader.read(sectionOffset + 40L * i, 40, ByteOrder.LITTLE_ENDIAN);
+            if (section == null) {
+                return Collections.emptyList();
+            }
+            long virtualSize = section.getInt(8) & 0xffffffffL;
+            long virtualAddress = section.getInt(12) & 0xffffffffL;
+            long rawSize = section.getInt(16) & 0xffffffffL;
+            long rawOffset = section.getInt(20) & 0xffffffffL;
+            sections.add(new long[] { virtualAddress, rawOffset, Math.max(virtualSize, rawSize) });
+        }
+
+        List<String> names = new ArrayList<>();
+        for (long descriptor = toFileOffset(sections, importRva); descriptor >= 0L; descriptor += 20) {
+            ByteBuffer entry = reader.read(descriptor, 20, ByteOrder.LITTLE_ENDIAN);
+            long nameRva = entry != null ? entry.getInt(12) & 0xffffffffL : 0L;
+            if (nameRva == 0L) {
+                break;
+            }
+            long nameOffset = toFileOffset(sections, nameRva);
+            if (nameOffset >= 0L) {
+                addName(names, reader.readString(nameOffset));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Maps a relative virtual address of a PE library to a file offset.
+     * @param sections the virtual address, file offset and size of each section
+     * @param rva the relative virtual address
+     * @return the file offset or -1 if the address is not in any section
+     */
+    private static long toFileOffset(final List<long[]> sections, final long rva) {
+        for (long[] section : sections) {
+            if (rva >= section[0] && rva < section[0] + section[2]) {
+                return section[1] + rva - section[0];
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Reads the dylibs loaded by a Mach-O library.
+     * @param reader the library
+     * @param start the offset of the Mach-O header, which is not 0 in universal files
+     * @return the loaded dylibs
+     * @throws IOException if the library cannot be read
+     */
+    private static List<String> readMachO(final Reader reader, final long start) throws IOException {
+        ByteBuffer magic = reader.read(start, 4, ByteOrder.BIG_ENDIAN);
+        if (magic == null) {
+            return Collections.emptyList();
+        }
+        int value = magic.getInt(0);
+        ByteOrder order = value == MH_MAGIC || value == MH_MAGIC_64 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        int actual = order == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+        if (actual != MH_MAGIC && actual != MH_MAGIC_64) {
+            return Collections.emptyList();
+        }
+        ByteBuffer header = reader.read(start, 28, order);
+        if (header == null) {
+            return Collections.emptyList();
+        }
+        int commandCount = header.getInt(16);
+        long commandsSize = header.getInt(20) & 0xffffffffL;
+        long commandsOffset = start + (actual == MH_MAGIC_64 ? 32 : 28);
+        ByteBuffer commands = reader.read(commandsOffset, (int) Math.min(commandsSize, 16 * 1024 * 1024), order);
+        if (commands == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        int pos = 0;
+        for (int i = 0; i < commandCount && pos + 8 <= commands.limit(); i++) {
+            int command = commands.getInt(pos);
+            int size = commands.getInt(pos + 4);
+            if (size < 8 || pos + size > commands.limit()) {
+                break;
+            }
+            if (LOAD_DYLIB_COMMANDS.contains(command) && size >= 24) {
+                int nameOffset = commands.getInt(pos + 8);
+                int end = pos + nameOffset;
+                while (end < pos + size && commands.get(end) != 0) {
+                    end++;
+                }
+                if (nameOffset >= 24 && nameOffset < size) {
+                    byte[] name = new byte[end - pos - nameOffset];
+                    for (int b = 0; b < name.length; b++) {
+                        name[b] = commands.get(pos + nameOffset + b);
+                    }
+                    addName(names, new String(name, StandardCharsets.UTF_8));
+                }
+            }
+            pos += size;
+        }
+        return names;
+    }
+
+    /**
+     * Adds the file name of a dependency, removing any directory or <code>@rpath</code> prefix.
+     * @param names the dependencies
+     * @param path the path of the dependency
+     */
+    private static void addName(final List<String> names, final String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (!name.isEmpty() && !names.contains(name)) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Reads regions of a library with positional reads.
+     */
+    private static final class Reader {
+        private final FileChannel channel;
+
+        public Reader(final FileChannel fc) {
+            channel = fc;
+        }
+
+        /**
+         * @param position the start of the region
+         * @param length the length of the region
+         * @param order the byte order of the library
+         * @return the region or <code>null</code> if the library is too short
+         * @throws IOException if the library cannot be read
+         */
+        ByteBuffer read(final long position, final int length, final ByteOrder order) throws IOException {
+            if (position < 0L || length < 0 || position + length > channel.size()) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * @param position the start of the string
+         * @return the NUL terminated string
+         * @throws IOException if the library cannot be read
+         */
+        String readString(final long position) throws IOException {
+            ByteBuffer buffer = read(position, (int) Math.max(0L, Math.min(MAX_NAME_LENGTH, channel.size() - position)),
+                    ByteOrder.LITTLE_ENDIAN);
+            if (buffer == null) {
+                return "";
+            }
+            int end = 0;
+            while (end < buffer.limit() && buffer.get(end) != 0) {
+                end++;
+            }
+            return new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+        }
+    }
+}
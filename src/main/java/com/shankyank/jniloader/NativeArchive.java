@@ -0,0 +1,413 @@
+package com.shankyank.jniloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A packaged archive of native libraries, opened by its {@link BundleFormat}. The
+ * entries of an archive are described with <code>ZipEntry</code>, whatever the
+ * format; formats that do not record CRC-32 values leave them unset.
+ * <p>
+ * ZIP archives found in the local file system are opened with random access so the
+ * sizes and CRC-32 values of their entries can be read from the central directory
+ * and individual entries can be read without scanning the archive. All other ZIP
+ * archives, such as those nested in a jar, are read sequentially.
+ */
+public abstract class NativeArchive implements Closeable {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(NativeArchive.class);
+
+    /** The location of the archive. */
+    private final URL url;
+
+    /**
+     * Creates a new NativeArchive.
+     * @param location the location of the archive
+     */
+    protected NativeArchive(final URL location) {
+        url = location;
+    }
+
+    /**
+     * Opens the ZIP archive found at the provided URL.
+     * @param location the location of the archive
+     * @return the opened archive
+     * @throws IOException if the archive cannot be opened
+     */
+    static NativeArchive open(final URL location) throws IOException {
+        File file = IOHelper.toFile(location);
+        if (file != null) {
+            LOG.debug("Opening {} with random access", file);
+            return new RandomAccessArchive(location, file, new ZipFile(file));
+        }
+        return new SequentialArchive(location, new ZipInputStream(location.openStream()));
+    }
+
+    /**
+     * @return the location of the archive
+     */
+    protected URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return <code>true</code> if the sizes of all entries are known without reading
+     * the archive and {@link #getEntry(String)} is supported
+     */
+    protected abstract boolean isRandomAccess();
+
+    /**
+     * @return <code>true</code> if the CRC-32 values of all entries are known without
+     * reading the archive
+     */
+    protected abstract boolean hasChecksums();
+
+    /**
+     * Advances to the next entry in the archive.
+     * @return the next entry or <code>null</code> if there are no more entries
+     * @throws IOException if the archive cannot be read
+     */
+    protected abstract ZipEntry getNextEntry() throws IOException;
+
+    /**
+     * Opens the contents of the current entry. The returned stream must be closed
+     * before advancing to the next entry; closing it does not close the archive.
+     * @return the contents of the current entry
+     * @throws IOException if the entry cannot be read
+     */
+    protected abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Finds an entry by name. Only supported by random access archives.
+     * @param name the name of the entry
+     * @return the entry or <code>null</code> if it does not exist
+     * @throws UnsupportedOperationException if the archive is not random access
+     */
+    protected abstract ZipEntry getEntry(String name);
+
+    /**
+     * Opens the contents of an entry found with {@link #getEntry(String)}.
+     * Only supported by random access archives.
+     * @param entry the entry
+     * @return the contents of the entry
+     * @throws IOException if the entry cannot be read
+     * @throws UnsupportedOperationException if the archive is not random access
+     */
+    protected abstract InputStream getInputStream(ZipEntry entry) throws IOException;
+
+    /**
+     * Gets the channel for the archive file, which can be used to copy the data of
+     * stored (uncompressed) entries directly. Only supported by random access archives.
+     * @return the channel for the archive file
+     * @throws IOException if the archive cannot be opened
+     * @throws UnsupportedOperationException if the archive is not random access
+     */
+    protected abstract FileChannel getChannel() throws IOException;
+
+    /**
+     * Finds the position of the data of an entry in the archive file. Only supported
+     * by random access archives.
+     * @param entry the entry
+     * @return the position of the entry's data or -1 if it cannot be determined
+     * @throws IOException if the archive cannot be read
+     * @throws UnsupportedOperationException if the archive is not random access
+     */
+    protected abstract long getDataOffset(ZipEntry entry) throws IOException;
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+
+    /**
+     * An archive in the local file system, read through its central directory.
+     */
+    private static class RandomAccessArchive extends NativeArchive {
+        /** The signature of the ZIP end of central directory record. */
+        private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+        /** The signature of a ZIP central directory file header. */
+        private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+        /** The signature of a ZIP local file header. */
+        private static final int LOCAL_FILE_HEADER = 0x04034b50;
+        /** The size of the fixed portion of the end of central directory record. */
+        private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+        /** The size of the fixed portion of a central directory file header. */
+        private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+        /** The size of the fixed portion of a local file header. */
+        private static final int LOCAL_FILE_HEADER_SIZE = 30;
+        /** The marker for values that are stored in ZIP64 extra fields. */
+        private static final long ZIP64_MARKER = 0xffffffffL;
+
+        private final File file;
+        private final ZipFile zipFile;
+        private final Enumeration<? extends ZipEntry> entries;
+        private ZipEntry current;
+        private FileChannel channel;
+        private Map<String, Long> localHeaderOffsets;
+
+        public RandomAccessArchive(final URL location, final File archive, final ZipFile zip) {
+            super(location);
+            file = archive;
+            zipFile = zip;
+            entries = zip.entries();
+        }
+
+        @Override
+        protected boolean isRandomAccess() {
+            return true;
+        }
+
+        @Override
+        protected boolean hasChecksums() {
+            return true;
+        }
+
+        @Override
+        protected ZipEntry getNextEntry() {
+            current = entries.hasMoreElements() ? entries.nextElement() : null;
+            return current;
+        }
+
+        @Override
+        protected InputStream getInputStream() throws IOException {
+            if (current == null) {
+                throw new IllegalStateException("No current entry");
+            }
+            return zipFile.getInputStream(current);
+        }
+
+        @Override
+        protected ZipEntry getEntry(final String name) {
+            return zipFile.getEntry(name);
+        }
+
+        @Override
+        protected InputStream getInputStream(final ZipEntry entry) throws IOException {
+            return zipFile.getInputStream(entry);
+        }
+
+        @Override
+        protected synchronized FileChannel getChannel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return channel;
+        }
+
+        @Override
+        protected long getDataOffset(final ZipEntry entry) throws IOException {
+            Long localHeader = getLocalHeaderOffsets().get(entry.getName());
+            if (localHeader == null) {
+                return -1L;
+            }
+            ByteBuffer header = read(localHeader, LOCAL_FILE_HEADER_SIZE);
+            if (header == null || header.getInt(0) != LOCAL_FILE_HEADER) {
+                return -1L;
+            }
+            return localHeader + LOCAL_FILE_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        }
+
+        /**
+         * Reads the local file header offsets of all entries from the central directory.
+         * ZIP64 archives are not indexed, so their entries are always read through the ZipFile.
+         * @return the local file header offsets, keyed on entry name
+         * @throws IOException if the central directory cannot be read
+         */
+        private synchronized Map<String, Long> getLocalHeaderOffsets() throws IOException {
+            if (localHeaderOffsets == null) {
+                Map<String, Long> offsets = new HashMap<>();
+                long size = getChannel().size();
+                int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xffff);
+                ByteBuffer tail = read(size - tailSize, tailSize);
+                int end = -1;
+                for (int pos = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; tail != null && end < 0 && pos >= 0; pos--) {
+                    if (tail.getInt(pos) == END_OF_CENTRAL_DIRECTORY) {
+                        end = pos;
+                    }
+                }
+                if (end >= 0) {
+                    long dirSize = tail.getInt(end + 12) & ZIP64_MARKER;
+                    long dirOffset = tail.getInt(end + 16) & ZIP64_MARKER;
+                    ByteBuffer dir = dirOffset != ZIP64_MARKER && dirSize < Integer.MAX_VALUE ? read(dirOffset, (int) dirSize) : null;
+                    for (int pos = 0; dir != null && pos + CENTRAL_DIRECTORY_HEADER_SIZE <= dir.limit()
+                            && dir.getInt(pos) == CENTRAL_DIRECTORY_HEADER;) {
+                        int nameLength = dir.getShort(pos + 28) & 0xffff;
+                        int extraLength = dir.getShort(pos + 30) & 0xffff;
+                        int commentLength = dir.getShort(pos + 32) & 0xffff;
+                        long localHeader = dir.getInt(pos + 42) & ZIP64_MARKER;
+                        byte[] name = new byte[nameLength];
+                        dir.position(pos + CENTRAL_DIRECTORY_HEADER_SIZE);
+                        dir.get(name);
+                        if (localHeader != ZIP64_MARKER) {
+                            offsets.put(new String(name, StandardCharsets.UTF_8), localHeader);
+                        }
+                        pos += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+                    }
+                }
+                localHeaderOffsets = offsets;
+            }
+            return localHeaderOffsets;
+        }
+
+        /**
+         * Reads a region of the archive file.
+         * @param position the start of the region
+         * @param length the length of the region
+         * @return the little-endian contents of the region or <code>null</code> if the file is too short
+         * @throws IOException if the file cannot be read
+         */
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel in = getChannel();
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, position + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                zipFile.close();
+            } finally {
+                synchronized (this) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An archive that can only be scanned from start to finish.
+     */
+    private static class SequentialArchive extends NativeArchive {
+        private final ZipInputStream zipStream;
+
+        public SequentialArchive(final URL location, final ZipInputStream zis) {
+            super(location);
+            zipStream = zis;
+        }
+
+        @Override
+        protected boolean isRandomAccess() {
+            return false;
+        }
+
+        @Override
+        protected boolean hasChecksums() {
+            return false;
+        }
+
+        @Override
+        protected ZipEntry getNextEntry() throws IOException {
+            return zipStream.getNextEntry();
+        }
+
+        @Override
+        protected InputStream getInputStream() {
+            return new EntryStream(zipStream);
+        }
+
+        @Override
+        protected ZipEntry getEntry(final String name) {
+            throw new UnsupportedOperationException(String.format("%s is not a random access archive", this));
+        }
+
+        @Override
+        protected InputStream getInputStream(final ZipEntry entry) {
+            throw new UnsupportedOperationException(String.format("%s is not a random access archive", this));
+        }
+
+        @Override
+        protected FileChannel getChannel() {
+            throw new UnsupportedOperationException(String.format("%s is not a random access archive", this));
+        }
+
+        @Override
+        protected long getDataOffset(final ZipEntry entry) {
+            throw new UnsupportedOperationException(String.format("%s is not a random access archive", this));
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipStream.close();
+        }
+    }
+
+    /**
+     * An input stream that delegates to a ZipInputStream, calling the closeEntry() method
+     * when reading is complete instead of closing the entire stream.
+     */
+    private static class EntryStream extends InputStream {
+        private final ZipInputStream zipStream;
+
+        public EntryStream(final ZipInputStream zis) {
+            zipStream = zis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return zipStream.read();
+        }
+
+        @Override
+        public int read(byte[] b) throws IOException {
+            return zipStream.read(b);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return zipStream.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return zipStream.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return zipStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipStream.closeEntry();
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            zipStream.mark(readlimit);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            zipStream.reset();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return zipStream.markSupported();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.shankyank.jniloader;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed cache of extracted native library bundles, shared by all
+ * loaders and processes that use the same cache root. Each version of a bundle
+ * is extracted to its own directory, named for the bundle and a hash identifying
+ * its contents, so different versions of a bundle can be used side by side without
+ * being re-extracted. Bundle directories are marked as used each time they are
+ * loaded; the least recently used directories are evicted when they exceed the
+ * maximum age or the cache exceeds its quota.
+ * <p>
+ * A JVM holds a shared lock on each bundle directory it uses, from before the
+ * bundle is verified until the JVM exits, and a directory is only evicted by a
+ * loader that can lock it exclusively. A bundle that another process has verified
+ * and is about to load, or has loaded, is never deleted under it.
+ */
+final class NativeLibCache {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(NativeLibCache.class);
+
+    /** The number of hex characters of the content hash used to name bundle directories. */
+    private static final int KEY_LENGTH = 16;
+
+    /** A filter that returns only bundle directories. */
+    private static final FileFilter BUNDLE_DIR_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+            return file.isDirectory() && !file.getName().startsWith(".");
+        }
+    };
+
+    /** Orders bundle directories from least to most recently used. */
+    private static final Comparator<File> LEAST_RECENTLY_USED = new Comparator<File>() {
+        @Override
+        public int compare(final File a, final File b) {
+            long aTime = a.lastModified();
+            long bTime = b.lastModified();
+            return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+        }
+    };
+
+    /** The shared locks held on the bundle directories used by this JVM, keyed on their lock files. */
+    private static final Map<File, FileLock> USE_LOCKS = new HashMap<>();
+
+    /** The root directory of the cache. */
+    private final File root;
+
+    /** The maximum size of the cache, in bytes, or 0 if the cache size is unlimited. */
+    private final long maxBytes;
+
+    /** The maximum time, in milliseconds, a bundle can go unused before it is evicted, or 0 for no limit. */
+    private final long maxAgeMillis;
+
+    /**
+     * Creates a new NativeLibCache.
+     * @param cacheRoot the root directory of the cache
+     * @param quota the maximum size of the cache, in bytes, or 0 for no limit
+     * @param maxAge the maximum time, in milliseconds, a bundle can go unused before it is evicted, or 0 for no limit
+     */
+    NativeLibCache(final File cacheRoot, final long quota, final long maxAge) {
+        root = cacheRoot;
+        maxBytes = quota;
+        maxAgeMillis = maxAge;
+    }
+
+    /**
+     * @return the root directory of the cache
+     */
+    File getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the directory for a version of a bundle.
+     * @param libPackage the basename of the bundle
+     * @param contentHash the hex encoded hash identifying the contents of the bundle
+     * @return the directory where the bundle is extracted
+     */
+    File getBundleDir(final String libPackage, final String contentHash) {
+        return new File(root, String.format("%s-%s", libPackage, contentHash.substring(0, Math.min(KEY_LENGTH, contentHash.length()))));
+    }
+
+    /**
+     * Gets the lock file guarding extraction to a bundle directory. Lock files are
+     * kept outside the bundle directories so they survive eviction.
+     * @param bundleDir the bundle directory
+     * @return the lock file
+     */
+    File getLockFile(final File bundleDir) {
+        return new File(root, String.format(".%s.lock", bundleDir.getName()));
+    }
+
+    /**
+     * Gets the lock file marking a bundle directory as in use. Like the extraction lock
+     * files, these are kept outside the bundle directories so they survive eviction.
+     * @param bundleDir the bundle directory
+     * @return the lock file
+     */
+    File getUseLockFile(final File bundleDir) {
+        return new File(root, String.format(".%s.inuse", bundleDir.getName()));
+    }
+
+    /**
+     * Marks a bundle directory as in use by this JVM until it exits, waiting while
+     * another loader evicts it. This is called before the bundle is verified, so a
+     * bundle is never evicted between its verification and the loading of its libraries.
+     * @param bundleDir the bundle directory
+     * @throws IOException if the bundle cannot be locked
+     */
+    void markInUse(final File bundleDir) throws IOException {
+        if (!(root.isDirectory() || root.mkdirs())) {
+            throw new FileNotFoundException(String.format("Unable to create cache directory: %s", root.getPath()));
+        }
+        File lockFile = getUseLockFile(bundleDir).getCanonicalFile();
+        synchronized (USE_LOCKS) {
+            if (USE_LOCKS.containsKey(lockFile)) {
+                return;
+            }
+            FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.lock(0L, Long.MAX_VALUE, true);
+                if (!lock.isShared()) {
+                    // an exclusive lock held until exit would stop other processes using the bundle
+                    LOG.debug("Shared locks are not supported, {} is not protected from eviction", bundleDir.getName());
+                    channel.close();
+                    return;
+                }
+                USE_LOCKS.put(lockFile, lock);
+            } catch (OverlappingFileLockException ofle) {
+                LOG.debug("Bundle {} is already in use by this process", bundleDir.getName());
+                channel.close();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Marks a bundle directory as recently used.
+     * @param bundleDir the bundle directory
+     */
+    void touch(final File bundleDir) {
+        if (!bundleDir.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("Unable to update last used time of {}", bundleDir.getPath());
+        }
+    }
+
+    /**
+     * Evicts bundle directories that have not been used within the maximum age,
+     * then the least recently used directories until the cache is within its quota.
+     * Directories that are in use by this or another process are skipped.
+     * @param inUse the bundle directory that was just loaded, which is never evicted
+     */
+    void evict(final File inUse) {
+        if (maxBytes <= 0L && maxAgeMillis <= 0L) {
+            return;
+        }
+        File[] bundleDirs = root.listFiles(BUNDLE_DIR_FILTER);
+        if (bundleDirs == null) {
+            return;
+        }
+        Arrays.sort(bundleDirs, LEAST_RECENTLY_USED);
+        long[] sizes = new long[bundleDirs.length];
+        long totalSize = 0L;
+        for (int i = 0; i < bundleDirs.length; i++) {
+            sizes[i] = FileUtils.sizeOfDirectory(bundleDirs[i]);
+            totalSize += sizes[i];
+        }
+        long expiry = System.currentTimeMillis() - maxAgeMillis;
+        for (int i = 0; i < bundleDirs.length; i++) {
+            File bundleDir = bundleDirs[i];
+            boolean expired = maxAgeMillis > 0L && bundleDir.lastModified() < expiry;
+            boolean overQuota = maxBytes > 0L && totalSize > maxBytes;
+            if (!(expired || overQuota) || bundleDir.equals(inUse)) {
+                continue;
+            }
+            if (remove(bundleDir)) {
+                LOG.info("Evicted {} from native library cache ({})", bundleDir.getName(), expired ? "expired" : "over quota");
+                totalSize -= sizes[i];
+            }
+        }
+    }
+
+    /**
+     * Removes a bundle directory if it is not in use. Every loader marks a bundle as
+     * in use before extracting it, so a directory that is being extracted is skipped too.
+     * @param bundleDir the bundle directory
+     * @return <code>true</code> if the directory was removed
+     */
+    private boolean remove(final File bundleDir) {
+        try (FileChannel channel = FileChannel.open(getUseLockFile(bundleDir).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                LOG.debug("Skipping eviction of bundle {}, in use by another process", bundleDir.getName());
+                return false;
+            }
+            try {
+                File canonicalDir = bundleDir.getCanonicalFile();
+                FileUtils.deleteDirectory(bundleDir);
+                BundleRegistry.getInstance().forget(canonicalDir);
+                return true;
+            } finally {
+                lock.release();
+            }
+        } catch (OverlappingFileLockException ofle) {
+            LOG.debug("Skipping eviction of bundle {}, in use by this process", bundleDir.getName());
+            return false;
+        } catch (IOException ioe) {
+            LOG.warn("Unable to evict {} from native library cache", bundleDir.getPath(), ioe);
+            return false;
+        }
+    }
+}
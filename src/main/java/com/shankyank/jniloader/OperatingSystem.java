@@ -63,6 +63,26 @@ public enum OperatingSystem {
         return nativeStr;
     }
 
+    /**
+     * Maps the name of a library to the file names it may have on this operating
+     * system, in the order they should be searched.
+     * @param libName the name of the library, as it would be passed to System.loadLibrary()
+     * @return the possible file names of the library
+     */
+    public List<String> mapLibraryName(final String libName) {
+        switch (this) {
+            case WINDOWS:
+            case CYGWIN:
+            case MINGW:
+            case MSYS:
+                return Collections.singletonList(String.format("%s.dll", libName));
+            case DARWIN:
+                return Arrays.asList(String.format("lib%s.dylib", libName), String.format("lib%s.jnilib", libName));
+            default:
+                return Collections.singletonList(String.format("lib%s.so", libName));
+        }
+    }
+
     @Override
     public String toString() {
         return String.format("%s (%s)", name(), getNativeString());
@@ -0,0 +1,147 @@
+package com.shankyank.jniloader;
+
+import com.shankyank.jniloader.JNILoader.Platform;
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times a single phase of loading a bundle and counts the bytes read and written
+ * during it, publishing an {@link ExtractionEvent} when the phase completes. The
+ * byte counts may be updated by several extraction threads.
+ * <p>
+ * Recorders are opened in a try-with-resources statement; a phase that has not
+ * been completed when the recorder is closed is recorded as a failure.
+ */
+final class PhaseRecorder implements Closeable {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PhaseRecorder.class);
+
+    /** The profiler tracing each phase. */
+    private static final PhaseTracer TRACER = loadTracer();
+
+    private final ExtractionPhase phase;
+    private final String resourcePath;
+    private final String libPackage;
+    private final Platform platform;
+    private final String entryName;
+    private final PhaseRecorder parent;
+    private final PhaseTracer.Trace trace;
+    private final long start;
+    private volatile Platform archivePlatform = null;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private boolean completed = false;
+
+    /**
+     * Starts timing a phase.
+     * @param phs the phase
+     * @param resPath the classpath directory containing the bundle or <code>null</code> if the phase is not bundle specific
+     * @param lPkg the basename of the bundle or <code>null</code> if the phase is not bundle specific
+     * @param pform the platform of the loader
+     */
+    PhaseRecorder(final ExtractionPhase phs, final String resPath, final String lPkg, final Platform pform) {
+        this(phs, resPath, lPkg, pform, null, null);
+    }
+
+    /**
+     * Starts timing a phase.
+     * @param phs the phase
+     * @param resPath the classpath directory containing the bundle or <code>null</code> if the phase is not bundle specific
+     * @param lPkg the basename of the bundle or <code>null</code> if the phase is not bundle specific
+     * @param pform the platform of the loader
+     * @param entry the name of the file in the bundle or <code>null</code> if the phase is not file specific
+     * @param enclosing the phase that also counts the bytes of this phase or <code>null</code> if there is none
+     */
+    private PhaseRecorder(final ExtractionPhase phs, final String resPath, final String lPkg, final Platform pform,
+                          final String entry, final PhaseRecorder enclosing) {
+        phase = phs;
+        resourcePath = resPath;
+        libPackage = lPkg;
+        platform = pform;
+        entryName = entry;
+        parent = enclosing;
+        trace = TRACER.start(phs);
+        start = System.nanoTime();
+    }
+
+    /**
+     * Loads the Java Flight Recorder tracer if it is supported by the running JVM.
+     * @return the tracer
+     */
+    private static PhaseTracer loadTracer() {
+        try {
+            return (PhaseTracer) Class.forName(PhaseTracer.FLIGHT_RECORDER_TRACER)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LOG.debug("Java Flight Recorder events are not available: {}", e.toString());
+            return PhaseTracer.NONE;
+        }
+    }
+
+    /**
+     * Starts timing the processing of a single file within this phase. The bytes
+     * read and written for the file are also counted by this phase.
+     * @param phs the phase
+     * @param entry the name of the file in the bundle
+     * @return the recorder of the file's phase
+     */
+    PhaseRecorder startEntry(final ExtractionPhase phs, final String entry) {
+        return new PhaseRecorder(phs, resourcePath, libPackage, platform, entry, this);
+    }
+
+    /**
+     * @param pform the platform of the archive that was found
+     */
+    void setArchivePlatform(final Platform pform) {
+        archivePlatform = pform;
+    }
+
+    /**
+     * @param bytes the number of bytes read
+     */
+    void read(final long bytes) {
+        bytesRead.addAndGet(bytes);
+        if (parent != null) {
+            parent.read(bytes);
+        }
+    }
+
+    /**
+     * @param bytes the number of bytes written
+     */
+    void written(final long bytes) {
+        bytesWritten.addAndGet(bytes);
+        if (parent != null) {
+            parent.written(bytes);
+        }
+    }
+
+    /**
+     * Completes the phase and publishes its timings. Only the first call has any effect,
+     * so a phase completed here is not recorded again when the recorder is closed.
+     * @param success <code>true</code> if the phase was successful
+     * @return <code>success</code>
+     */
+    boolean complete(final boolean success) {
+        if (!completed) {
+            completed = true;
+            ExtractionEvent event = new ExtractionEvent(phase, resourcePath, libPackage, platform, archivePlatform, entryName,
+                    System.nanoTime() - start, bytesRead.get(), bytesWritten.get(), success);
+            if (trace != null) {
+                trace.end(event);
+            }
+            ExtractionMetrics.publish(event);
+        }
+        return success;
+    }
+
+    /**
+     * Records the phase as a failure unless it has already been completed.
+     */
+    @Override
+    public void close() {
+        complete(false);
+    }
+}
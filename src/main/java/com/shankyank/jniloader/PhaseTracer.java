@@ -0,0 +1,40 @@
+package com.shankyank.jniloader;
+
+/**
+ * Traces the phases of loading a bundle in an external profiler. A trace is started
+ * when a phase begins, so the profiler sees the phase at its real position in the
+ * application's timeline, and ended with the phase's event when it completes.
+ * <p>
+ * The Java Flight Recorder tracer is compiled for Java 11 and is only used if it
+ * can be loaded by the running JVM; otherwise phases are not traced.
+ */
+interface PhaseTracer {
+    /** The name of the Java Flight Recorder tracer. */
+    String FLIGHT_RECORDER_TRACER = "com.shankyank.jniloader.FlightRecorderTracer";
+
+    /** The tracer used when no profiler is available. */
+    PhaseTracer NONE = new PhaseTracer() {
+        @Override
+        public Trace start(final ExtractionPhase phase) {
+            return null;
+        }
+    };
+
+    /**
+     * Starts tracing a phase.
+     * @param phase the phase
+     * @return the trace or <code>null</code> if the phase is not being traced
+     */
+    Trace start(ExtractionPhase phase);
+
+    /**
+     * A phase that is being traced.
+     */
+    interface Trace {
+        /**
+         * Ends the trace.
+         * @param event the completed phase
+         */
+        void end(ExtractionEvent event);
+    }
+}
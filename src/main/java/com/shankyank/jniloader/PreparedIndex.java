@@ -0,0 +1,207 @@
+package com.shankyank.jniloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The index of a directory of bundles prepared ahead of time, for instance while
+ * building a container image, so loaders can use the libraries without extracting
+ * or reading the bundle archives. The index is written to the prepared directory as
+ * {@value #FILE_NAME} and records, for each archive, an identity that can be checked
+ * without reading it and the path and size of each file extracted from it.
+ * <p>
+ * The identity of an archive in a jar is the size and CRC-32 of its jar entry,
+ * which are read from the jar's central directory, so rebuilding the jar with the
+ * same bundle does not invalidate the index. Archives in the local file system are
+ * identified by their size and modification time.
+ * <p>
+ * The index is a UTF-8 text file with a <code>bundle [archive path] [identity]</code>
+ * line for each archive, followed by a <code>file [size] [path]</code> line for each
+ * file, with the path relative to the prepared directory. Fields are separated by
+ * tabs and lines starting with <code>#</code> are ignored.
+ */
+final class PreparedIndex {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedIndex.class);
+
+    /** The name of the index file in the prepared directory. */
+    static final String FILE_NAME = ".jni-loader.index";
+
+    /** The index header. */
+    private static final String HEADER = "# jni-loader prepared index";
+
+    /** The indexes that have been read, keyed on prepared directory. */
+    private static final ConcurrentMap<File, PreparedIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /** The prepared bundles, keyed on archive path. */
+    private final Map<String, PreparedBundle> bundles;
+
+    private PreparedIndex(final Map<String, PreparedBundle> preparedBundles) {
+        bundles = preparedBundles;
+    }
+
+    /**
+     * @return a new, empty index
+     */
+    static PreparedIndex create() {
+        return new PreparedIndex(new LinkedHashMap<String, PreparedBundle>());
+    }
+
+    /**
+     * @return the archive paths of the prepared bundles
+     */
+    Collection<String> getArchives() {
+        return Collections.unmodifiableSet(bundles.keySet());
+    }
+
+    /**
+     * Adds or replaces a prepared bundle.
+     * @param archivePath the path of the archive in the classpath
+     * @param archiveId the identity of the archive, from {@link IOHelper#identifyArchive(URL, boolean)}
+     * @param dir the prepared directory
+     * @param files the files extracted from the archive
+     */
+    void add(final String archivePath, final String archiveId, final File dir, final Collection<File> files) {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (File file : files) {
+            sizes.put(dir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/'), file.length());
+        }
+        bundles.put(archivePath, new PreparedBundle(archiveId, sizes));
+    }
+
+    /**
+     * Checks that a bundle was prepared from an archive and that its files are still
+     * in the prepared directory with the recorded sizes. Only the files are read.
+     * @param archivePath the path of the archive in the classpath
+     * @param archiveId the identity of the archive, from {@link IOHelper#identifyArchive(URL, boolean)}
+     * @param dir the prepared directory
+     * @return the prepared files or <code>null</code> if the bundle was not prepared from the archive or has changed
+     */
+    List<File> validate(final String archivePath, final String archiveId, final File dir) {
+        PreparedBundle bundle = bundles.get(archivePath);
+        if (bundle == null) {
+            LOG.debug("{} is not in the prepared index", archivePath);
+            return null;
+        }
+        if (!bundle.archive.equals(archiveId)) {
+            LOG.debug("{} has changed since it was prepared", archivePath);
+            return null;
+        }
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<String, Long> prepared : bundle.files.entrySet()) {
+            File file = new File(dir, prepared.getKey());
+            if (file.length() != prepared.getValue() || !file.isFile()) {
+                LOG.debug("Prepared file {} is missing or has changed", file.getPath());
+                return null;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Writes this index, atomically replacing any existing index.
+     * @param dir the prepared directory
+     * @throws IOException if the index cannot be written
+     */
+    void write(final File dir) throws IOException {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, PreparedBundle> bundle : bundles.entrySet()) {
+            text.append(String.format("bundle\t%s\t%s\n", bundle.getKey(), bundle.getValue().archive));
+            for (Map.Entry<String, Long> file : bundle.getValue().files.entrySet()) {
+                text.append(String.format("file\t%d\t%s\n", file.getValue(), file.getKey()));
+            }
+        }
+        IOHelper.replace(new File(dir, FILE_NAME), text);
+        // forget indexes read through another path to the directory
+        INDEXES.clear();
+    }
+
+    /**
+     * Gets the index of a prepared directory, reading it the first time it is requested.
+     * @param dir the prepared directory
+     * @return the index, which is empty if the directory has no valid index
+     */
+    static PreparedIndex forDirectory(final File dir) {
+        PreparedIndex index = INDEXES.get(dir);
+        if (index == null) {
+            index = read(dir);
+            if (index == null) {
+                LOG.warn("{} does not contain a valid index of prepared bundles", dir.getPath());
+                index = create();
+            }
+            PreparedIndex existing = INDEXES.putIfAbsent(dir, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads the index of a prepared directory, bypassing the indexes that have already been read.
+     * @param dir the prepared directory
+     * @return the index or <code>null</code> if it does not exist or is malformed
+     */
+    static PreparedIndex read(final File dir) {
+        File indexFile = new File(dir, FILE_NAME);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            Map<String, PreparedBundle> preparedBundles = new LinkedHashMap<>();
+            PreparedBundle bundle = null;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3 && "bundle".equals(fields[0])) {
+                    bundle = new PreparedBundle(fields[2], new LinkedHashMap<String, Long>());
+                    preparedBundles.put(fields[1], bundle);
+                } else if (fields.length == 3 && "file".equals(fields[0]) && bundle != null && fields[1].matches("\\d+")) {
+                    bundle.files.put(fields[2], Long.parseLong(fields[1]));
+                } else {
+                    LOG.warn("Ignoring malformed index {}: {}", indexFile.getPath(), line);
+                    return null;
+                }
+            }
+            return new PreparedIndex(preparedBundles);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        } catch (IOException ioe) {
+            LOG.warn("Unable to read index {}", indexFile.getPath(), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * A bundle in the index.
+     */
+    private static final class PreparedBundle {
+        /** The identity of the archive the bundle was prepared from. */
+        private final String archive;
+        /** The size of each prepared file, keyed on its path relative to the prepared directory. */
+        private final Map<String, Long> files;
+
+        private PreparedBundle(final String archiveId, final Map<String, Long> fileSizes) {
+            archive = archiveId;
+            files = fileSizes;
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package com.shankyank.jniloader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An uncompressed POSIX tar archive. Archives found in the local file system are
+ * indexed by reading only their headers, after which entries can be read in any
+ * order and copied directly from the archive file. All other archives, such as
+ * those nested in a jar, are read sequentially. Tar does not record CRC-32 values,
+ * so extracted files are verified with a bundle manifest or by hashing the packaged
+ * entries.
+ * <p>
+ * Regular files and directories are extracted; links and other special files are
+ * skipped. Long names are read from GNU long name and pax extended headers.
+ */
+final class TarArchive extends NativeArchive {
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TarArchive.class);
+
+    /** The size of a tar header and the unit the data of each entry is padded to. */
+    private static final int BLOCK_SIZE = 512;
+
+    /** The size of the buffer used to read archives sequentially. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The largest GNU long name or pax extended header that will be read. */
+    private static final int MAX_EXTENDED_HEADER = 1024 * 1024;
+
+    /** The reader scanning the archive. */
+    private final TarReader reader;
+    /** The archive file or <code>null</code> if the archive is read sequentially. */
+    private final FileChannel channel;
+    /** The entries of a random access archive, in archive order, keyed on name. */
+    private final Map<String, ZipEntry> entries;
+    /** The positions of the data of each entry of a random access archive, keyed on name. */
+    private final Map<String, Long> dataOffsets;
+    private Iterator<ZipEntry> indexed;
+    private ZipEntry current;
+
+    /**
+     * Creates an archive that is read sequentially.
+     * @param location the location of the archive
+     * @param in the contents of the archive
+     */
+    private TarArchive(final URL location, final InputStream in) {
+        super(location);
+        reader = new TarReader(in);
+        channel = null;
+        entries = null;
+        dataOffsets = null;
+    }
+
+    /**
+     * Creates a random access archive, indexing the headers of all entries.
+     * @param location the location of the archive
+     * @param archive the archive file
+     * @throws IOException if the headers cannot be read
+     */
+    private TarArchive(final URL location, final FileChannel archive) throws IOException {
+        super(location);
+        reader = new TarReader(new ChannelInputStream(archive, 0L, archive.size()));
+        channel = archive;
+        entries = new LinkedHashMap<>();
+        dataOffsets = new HashMap<>();
+        for (ZipEntry entry = reader.next(); entry != null; entry = reader.next()) {
+            entries.put(entry.getName(), entry);
+            dataOffsets.put(entry.getName(), reader.getDataPosition());
+        }
+        indexed = entries.values().iterator();
+    }
+
+    /**
+     * Opens the tar archive found at the provided URL.
+     * @param location the location of the archive
+     * @return the opened archive
+     * @throws IOException if the archive cannot be opened
+     */
+    static NativeArchive open(final URL location) throws IOException {
+        File file = IOHelper.toFile(location);
+        if (file != null) {
+            LOG.debug("Opening {} with random access", file);
+            FileChannel archive = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                return new TarArchive(location, archive);
+            } catch (IOException | RuntimeException e) {
+                archive.close();
+                throw e;
+            }
+        }
+        return new TarArchive(location, new BufferedInputStream(location.openStream(), BUFFER_SIZE));
+    }
+
+    @Override
+    protected boolean isRandomAccess() {
+        return channel != null;
+    }
+
+    @Override
+    protected boolean hasChecksums() {
+        return false;
+    }
+
+    @Override
+    protected ZipEntry getNextEntry() throws IOException {
+        if (channel != null) {
+            current = indexed.hasNext() ? indexed.next() : null;
+        } else {
+            current = reader.next();
+        }
+        return current;
+    }
+
+    @Override
+    protected InputStream getInputStream() throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No current entry");
+        }
+        return channel != null ? getInputStream(current) : reader.getEntryStream();
+    }
+
+    @Override
+    protected ZipEntry getEntry(final String name) {
+        checkRandomAccess();
+        return entries.get(name);
+    }
+
+    @Override
+    protected InputStream getInputStream(final ZipEntry entry) throws IOException {
+        checkRandomAccess();
+        Long offset = dataOffsets.get(entry.getName());
+        if (offset == null) {
+            throw new IOException(String.format("%s does not contain %s", this, entry.getName()));
+        }
+        return new ChannelInputStream(channel, offset, entry.getSize());
+    }
+
+    @Override
+    protected FileChannel getChannel() {
+        checkRandomAccess();
+        return channel;
+    }
+
+    @Override
+    protected long getDataOffset(final ZipEntry entry) {
+        checkRandomAccess();
+        Long offset = dataOffsets.get(entry.getName());
+        return offset != null ? offset : -1L;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the archive is not random access
+     */
+    private void checkRandomAccess() {
+        if (channel == null) {
+            throw new UnsupportedOperationException(String.format("%s is not a random access archive", this));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        } else {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the headers and data of a tar archive in order.
+     */
+    private static final class TarReader implements Closeable {
+        private final InputStream in;
+        /** The position in the archive. */
+        private long position = 0L;
+        /** The position of the data of the current entry. */
+        private long dataPosition = -1L;
+        /** The unread data of the current entry. */
+        private long entryRemaining = 0L;
+        /** The unread data and padding of the current entry. */
+        private long blockRemaining = 0L;
+
+        public TarReader(final InputStream input) {
+            in = input;
+        }
+
+        /**
+         * Advances to the next regular file or directory, skipping the rest of the current entry.
+         * @return the next entry or <code>null</code> if there are no more entries
+         * @throws IOException if the archive cannot be read or is invalid
+         */
+        ZipEntry next() throws IOException {
+            skipFully(blockRemaining);
+            blockRemaining = 0L;
+            entryRemaining = 0L;
+            String longName = null;
+            Map<String, String> extended = Collections.emptyMap();
+            byte[] header = new byte[BLOCK_SIZE];
+            while (readHeader(header)) {
+                char type = (char) header[156];
+                long headerSize = parseNumber(header, 124, 12);
+                if (type == 'L') {
+                    longName = trimName(readExtendedHeader(headerSize));
+                    continue;
+                } else if (type == 'x') {
+                    extended = parseExtendedHeader(readExtendedHeader(headerSize));
+                    continue;
+                } else if (type == 'g') {
+                    skipFully(padded(headerSize));
+                    continue;
+                }
+
+                long size = extended.containsKey("size") ? Long.parseLong(extended.get("size")) : headerSize;
+                String name = extended.containsKey("path") ? extended.get("path") : longName != null ? longName : getName(header);
+                dataPosition = position;
+                entryRemaining = size;
+                blockRemaining = padded(size);
+                longName = null;
+                extended = Collections.emptyMap();
+
+                // archives created from "." name their entries ./name
+                while (name.startsWith("./")) {
+                    name = name.substring(2);
+                }
+                boolean directory = type == '5';
+                if (!(directory || type == '0' || type == '\0' || type == '7')) {
+                    LOG.debug("Skipping {} (type {})", name, type);
+                } else if (name.isEmpty() || name.equals(".")) {
+                    LOG.debug("Skipping archive root");
+                } else {
+                    ZipEntry entry = new ZipEntry(directory && !name.endsWith("/") ? String.format("%s/", name) : name);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(size);
+                    entry.setCompressedSize(size);
+                    entry.setTime(parseNumber(header, 136, 12) * 1000L);
+                    return entry;
+                }
+                skipFully(blockRemaining);
+                blockRemaining = 0L;
+                entryRemaining = 0L;
+            }
+            return null;
+        }
+
+        /**
+         * @return the position of the data of the current entry
+         */
+        long getDataPosition() {
+            return dataPosition;
+        }
+
+        /**
+         * Opens the data of the current entry. Closing the stream does not close the archive.
+         * @return the data of the current entry
+         */
+        InputStream getEntryStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    if (entryRemaining <= 0L) {
+                        return -1;
+                    }
+                    int count = in.read(b, off, (int) Math.min(len, entryRemaining));
+                    if (count < 0) {
+                        throw new EOFException("Truncated tar archive");
+                    }
+                    position += count;
+                    entryRemaining -= count;
+                    blockRemaining -= count;
+                    return count;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return (int) Math.min(in.available(), entryRemaining);
+                }
+
+                @Override
+                public void close() {
+                    // the rest of the entry is skipped by the next call to next()
+                }
+            };
+        }
+
+        /**
+         * Reads a header block.
+         * @param header the header
+         * @return <code>false</code> if the end of the archive has been reached
+         * @throws IOException if the header cannot be read or is invalid
+         */
+        private boolean readHeader(final byte[] header) throws IOException {
+            long start = position;
+            int read = 0;
+            while (read < BLOCK_SIZE) {
+                int count = in.read(header, read, BLOCK_SIZE - read);
+                if (count < 0) {
+                    if (read == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Truncated tar archive");
+                }
+                read += count;
+            }
+            position += BLOCK_SIZE;
+
+            long unsigned = 0L;
+            long signed = 0L;
+            boolean empty = true;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+                unsigned += b & 0xff;
+                signed += b;
+                empty &= header[i] == 0;
+            }
+            if (empty) {
+                // the archive ends with two empty blocks
+                return false;
+            }
+            long checksum = parseNumber(header, 148, 8);
+            if (checksum != unsigned && checksum != signed) {
+                throw new IOException(String.format("Invalid tar header checksum at offset %d", start));
+            }
+            return true;
+        }
+
+        /**
+         * Reads the data of a GNU long name or pax extended header.
+         * @param size the size of the data
+         * @return the data
+         * @throws IOException if the header cannot be read or is too large
+         */
+        private byte[] readExtendedHeader(final long size) throws IOException {
+            if (size < 0L || size > MAX_EXTENDED_HEADER) {
+                throw new IOException(String.format("Invalid tar extended header size %d at offset %d", size, position));
+            }
+            byte[] data = new byte[(int) size];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated tar archive");
+                }
+                read += count;
+            }
+            position += read;
+            skipFully(padded(size) - size);
+            return data;
+        }
+
+        /**
+         * Skips bytes of the archive.
+         * @param count the number of bytes to skip
+         * @throws IOException if the archive ends before all bytes are skipped
+         */
+        private void skipFully(final long count) throws IOException {
+            for (long remaining = count; remaining > 0L;) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0L) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Truncated tar archive");
+                    }
+                    skipped = 1L;
+                }
+                position += skipped;
+                remaining -= skipped;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * @param header a ustar header
+     * @return the name in the header, including the ustar prefix
+     */
+    private static String getName(final byte[] header) {
+        String name = getString(header, 0, 100);
+        String prefix = new String(header, 257, 5, StandardCharsets.UTF_8).equals("ustar") ? getString(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : String.format("%s/%s", prefix, name);
+    }
+
+    /**
+     * @param name the data of a GNU long name header
+     * @return the name, without the trailing NUL
+     */
+    private static String trimName(final byte[] name) {
+        return getString(name, 0, name.length);
+    }
+
+    /**
+     * @param data the buffer
+     * @param offset the start of the field
+     * @param length the length of the field
+     * @return the NUL terminated string in the field
+     */
+    private static String getString(final byte[] data, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses an octal or, if the high bit of the first byte is set, base-256 number.
+     * @param header the header
+     * @param offset the start of the field
+     * @param length the length of the field
+     * @return the number
+     * @throws IOException if the field is not a number
+     */
+    private static long parseNumber(final byte[] header, final int offset, final int length) throws IOException {
+        long value = 0L;
+        if ((header[offset] & 0x80) != 0) {
+            value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        int i = offset;
+        while (i < offset + length && (header[i] == ' ' || header[i] == 0)) {
+            i++;
+        }
+        for (; i < offset + length && header[i] != ' ' && header[i] != 0; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException(String.format("Invalid number in tar header: %s", getString(header, offset, length)));
+            }
+            value = (value << 3) + (header[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses the <code>${length} ${key}=${value}\n</code> records of a pax extended header.
+     * @param data the data of the header
+     * @return the values, keyed on name
+     * @throws IOException if the header is invalid
+     */
+    private static Map<String, String> parseExtendedHeader(final byte[] data) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        int pos = 0;
+        while (pos < data.length && data[pos] != 0) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.UTF_8));
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Invalid pax extended header", nfe);
+            }
+            if (length <= space - pos || pos + length > data.length) {
+                throw new IOException("Invalid pax extended header");
+            }
+            String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            int separator = record.indexOf('=');
+            if (separator > 0) {
+                values.put(record.substring(0, separator), record.substring(separator + 1));
+            }
+            pos += length;
+        }
+        return values;
+    }
+
+    /**
+     * @param size the size of an entry
+     * @return the size rounded up to a whole number of blocks
+     */
+    private static long padded(final long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Reads a region of a file with positional reads, so several streams can read
+     * the same channel concurrently. Closing the stream does not close the channel.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        public ChannelInputStream(final FileChannel fc, final long start, final long length) {
+            channel = fc;
+            position = start;
+            end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            long skipped = Math.max(0L, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(end - position, Integer.MAX_VALUE);
+        }
+    }
+}
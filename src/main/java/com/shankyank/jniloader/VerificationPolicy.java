@@ -0,0 +1,120 @@
+package com.shankyank.jniloader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How thoroughly previously extracted libraries are checked before they are reused,
+ * from the cheapest to the most thorough. Libraries that fail verification are
+ * extracted again. Newly extracted files are always checked against the CRC-32
+ * recorded in the archive, and against the bundle manifest if there is one.
+ * <p>
+ * The default policy is {@link #CHECKSUM}. It can be changed for each loader or
+ * with the system property <code>jniloader.verification</code>.
+ */
+public enum VerificationPolicy {
+    /** Extracted libraries are reused if they exist. */
+    NONE("none"),
+    /** Extracted libraries are reused if they have the packaged size. */
+    SIZE("size"),
+    /**
+     * Extracted libraries are checked against the CRC-32 recorded in the archive,
+     * ignoring the bundle manifest. Archives that do not record checksums, such as
+     * tar bundles, are checked against the CRC-32 of the packaged libraries. Once a
+     * bundle has been verified, it is trusted until the archive or the extracted
+     * files change.
+     */
+    CRC("crc"),
+    /**
+     * Extracted libraries are checked against the SHA-256 hashes in the bundle
+     * manifest if there is one, otherwise as they are by {@link #CRC}. Once a bundle
+     * has been verified, it is trusted until the archive or the extracted files change.
+     */
+    CHECKSUM("checksum"),
+    /**
+     * Extracted libraries are checked against the SHA-256 hashes in the bundle
+     * manifest if there is one, otherwise against the SHA-256 hash of the packaged
+     * libraries. Every file is hashed each time the bundle is verified.
+     */
+    SHA256("sha256");
+
+    /** The class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(VerificationPolicy.class);
+
+    /** The system property that sets the default verification policy. */
+    public static final String VERIFICATION_PROPERTY = "jniloader.verification";
+
+    /** The canonical policy name. */
+    private final String canonicalName;
+
+    private VerificationPolicy(final String cName) {
+        canonicalName = cName;
+    }
+
+    /**
+     * @return the canonical name of this policy
+     */
+    public String getCanonicalName() {
+        return canonicalName;
+    }
+
+    /**
+     * @return <code>true</code> if the sizes of extracted libraries are checked
+     */
+    boolean checksSize() {
+        return this != NONE;
+    }
+
+    /**
+     * @return <code>true</code> if the contents of extracted libraries are checked
+     */
+    boolean checksContents() {
+        return compareTo(CRC) >= 0;
+    }
+
+    /**
+     * @return <code>true</code> if extracted libraries are checked against the bundle manifest when there is one
+     */
+    boolean usesManifest() {
+        return this != CRC;
+    }
+
+    /**
+     * @return <code>true</code> if bundles with an extraction receipt are trusted until their files change
+     */
+    boolean usesReceipts() {
+        return this == CRC || this == CHECKSUM;
+    }
+
+    /**
+     * Finds the policy with a canonical name.
+     * @param name the name of the policy, ignoring case
+     * @return the policy or <code>null</code> if there is no policy with that name
+     */
+    public static VerificationPolicy forName(final String name) {
+        for (VerificationPolicy policy : values()) {
+            if (policy.canonicalName.equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the default verification policy, set with the <code>jniloader.verification</code>
+     * system property.
+     * @return the default verification policy
+     */
+    public static VerificationPolicy getSystemPolicy() {
+        String configured = System.getProperty(VERIFICATION_PROPERTY);
+        if (configured == null || configured.trim().isEmpty()) {
+            return CHECKSUM;
+        }
+        VerificationPolicy policy = forName(configured);
+        if (policy == null) {
+            LOG.warn("Ignoring unknown verification policy \"{}\" in {}", configured.trim(), VERIFICATION_PROPERTY);
+            return CHECKSUM;
+        }
+        return policy;
+    }
+}
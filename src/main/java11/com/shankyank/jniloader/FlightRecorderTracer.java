@@ -0,0 +1,186 @@
+package com.shankyank.jniloader;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records each phase of loading a bundle as a Java Flight Recorder event. The
+ * events are disabled by default and must be enabled in the recording settings,
+ * with a custom <code>.jfc</code> file or, on Java 17+, with options such as
+ * <code>-XX:StartFlightRecording:+com.shankyank.jniloader.BundleExtraction#enabled=true</code>.
+ * Disabled events are not committed.
+ * <p>
+ * This class requires Java 11 and is loaded reflectively by the {@link PhaseRecorder}.
+ */
+final class FlightRecorderTracer implements PhaseTracer {
+    @Override
+    public Trace start(final ExtractionPhase phase) {
+        final LoaderEvent jfrEvent = newEvent(phase);
+        if (!jfrEvent.isEnabled()) {
+            return null;
+        }
+        jfrEvent.begin();
+        return new Trace() {
+            @Override
+            public void end(final ExtractionEvent event) {
+                jfrEvent.end();
+                if (jfrEvent.shouldCommit()) {
+                    jfrEvent.set(event);
+                    jfrEvent.commit();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param phase the phase
+     * @return a new event for the phase
+     */
+    private static LoaderEvent newEvent(final ExtractionPhase phase) {
+        switch (phase) {
+            case ARCHIVE_LOOKUP:
+                return new BundleResolutionEvent();
+            case VERIFY:
+                return new BundleVerificationEvent();
+            case CHECKSUM:
+                return new ChecksumEvent();
+            case LOCK_WAIT:
+                return new LockWaitEvent();
+            case EXTRACT:
+                return new BundleExtractionEvent();
+            case EXTRACT_ENTRY:
+                return new EntryExtractionEvent();
+            case DARWIN_ALIASES:
+                return new DarwinAliasEvent();
+            case PATH_UPDATE:
+                return new LibraryPathEvent();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown phase: %s", phase));
+        }
+    }
+
+    /**
+     * @param event the completed phase
+     * @return the outcome of the phase, as shown in recordings
+     */
+    private static String getOutcome(final ExtractionEvent event) {
+        if (!event.isSuccessful()) {
+            return event.getPhase() == ExtractionPhase.VERIFY ? "stale" : "failed";
+        }
+        switch (event.getPhase()) {
+            case ARCHIVE_LOOKUP:
+                return event.getArchivePlatform() != null && !event.getArchivePlatform().equals(event.getPlatform()) ?
+                        "fallback-platform" : "resolved";
+            case VERIFY:
+                return "verified-warm";
+            case EXTRACT:
+                return "re-extracted";
+            default:
+                return "ok";
+        }
+    }
+
+    /**
+     * The fields shared by all JNI loader events.
+     */
+    @Category({ "JNI Loader" })
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class LoaderEvent extends Event {
+        @Label("Bundle")
+        String bundle;
+
+        @Label("Resource Path")
+        String resourcePath;
+
+        @Label("Platform")
+        String platform;
+
+        @Label("Archive Platform")
+        @Description("The platform of the archive that was found, if a fallback platform was used")
+        String archivePlatform;
+
+        @Label("Entry")
+        String entry;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Successful")
+        boolean successful;
+
+        void set(final ExtractionEvent event) {
+            bundle = event.getLibPackage();
+            resourcePath = event.getResourcePath();
+            platform = String.valueOf(event.getPlatform());
+            archivePlatform = event.getArchivePlatform() != null ? event.getArchivePlatform().toString() : null;
+            entry = event.getEntryName();
+            bytesRead = event.getBytesRead();
+            bytesWritten = event.getBytesWritten();
+            outcome = getOutcome(event);
+            successful = event.isSuccessful();
+        }
+    }
+
+    @Name("com.shankyank.jniloader.BundleResolution")
+    @Label("Bundle Resolution")
+    @Description("Finding the archive of a native library bundle on the classpath")
+    static final class BundleResolutionEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.BundleVerification")
+    @Label("Bundle Verification")
+    @Description("Verifying previously extracted native libraries")
+    static final class BundleVerificationEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.Checksum")
+    @Label("Checksum")
+    @Description("Hashing an extracted native library to verify it")
+    static final class ChecksumEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.ExtractionLockWait")
+    @Label("Extraction Lock Wait")
+    @Description("Waiting for other threads and processes extracting the same bundle")
+    static final class LockWaitEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.BundleExtraction")
+    @Label("Bundle Extraction")
+    @Description("Extracting a native library bundle")
+    static final class BundleExtractionEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.EntryExtraction")
+    @Label("Entry Extraction")
+    @Description("Extracting a single file of a native library bundle")
+    static final class EntryExtractionEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.DarwinAliases")
+    @Label("OS X Aliases")
+    @Description("Copying OS X libraries to their alternate .dylib or .jnilib names")
+    static final class DarwinAliasEvent extends LoaderEvent {
+    }
+
+    @Name("com.shankyank.jniloader.LibraryPathUpdate")
+    @Label("Library Path Update")
+    @Description("Adding extracted directories to the java.library.path")
+    static final class LibraryPathEvent extends LoaderEvent {
+    }
+}
@@ -0,0 +1,78 @@
+package com.shankyank.jniloader
+
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class BundleManifestSpec extends Specification {
+    static final String JBLAS_ARCHIVE = '/native/jblas/jblas-1.2.3-linux-x86_64.zip'
+
+    File workDir
+    File archive
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-manifest', '')
+        archive = new File(workDir, 'jblas-1.2.3-linux-x86_64.zip')
+        archive.bytes = getClass().getResourceAsStream(JBLAS_ARCHIVE).bytes
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    def 'read/write round trip'() {
+        given:
+        BundleManifest manifest = new BundleManifest([
+                new BundleManifest.Entry('libfoo.so', 42L, '00ff'),
+                new BundleManifest.Entry('sub dir/libbar.so', 0L, '0a0b')
+        ])
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+
+        when:
+        manifest.write(out)
+        BundleManifest read = BundleManifest.read(new ByteArrayInputStream(out.toByteArray()))
+
+        then:
+        read.entries*.name == ['libfoo.so', 'sub dir/libbar.so']
+        read.entries*.size == [42L, 0L]
+        read.entries*.sha256 == ['00ff', '0a0b']
+    }
+
+    def 'malformed manifest'() {
+        when:
+        BundleManifest.read(new ByteArrayInputStream('not a manifest entry'.getBytes('UTF-8')))
+
+        then:
+        thrown(IOException)
+    }
+
+    def 'addTo writes manifest as first entry'() {
+        when:
+        BundleManifest manifest = BundleManifest.addTo(archive)
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(archive))
+        String firstEntry = zip.nextEntry.name
+        BundleManifest packaged = BundleManifest.read(zip)
+        zip.close()
+
+        then:
+        firstEntry == BundleManifest.ENTRY_NAME
+        manifest.entries*.name == ['libjblas_arch_flavor.so', 'sse3/libjblas.so']
+        manifest.entries*.size == [6003L, 7735984L]
+        packaged.entries*.sha256 == manifest.entries*.sha256
+        manifest.entries.every { it.sha256 ==~ /[0-9a-f]{64}/ }
+    }
+
+    def 'addTo replaces existing manifest'() {
+        when:
+        BundleManifest.addTo(archive)
+        BundleManifest.addTo(archive)
+        ZipFile zip = new ZipFile(archive)
+        List names = zip.entries().collect { it.name }
+        zip.close()
+
+        then:
+        names.count { it == BundleManifest.ENTRY_NAME } == 1
+        names.containsAll(['libjblas_arch_flavor.so', 'sse3/', 'sse3/libjblas.so'])
+    }
+}
@@ -0,0 +1,176 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.Architecture.*
+import static com.shankyank.jniloader.ExtractionPhase.*
+import static com.shankyank.jniloader.OperatingSystem.*
+
+import com.shankyank.jniloader.JNILoader.Platform
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CopyOnWriteArrayList
+import javax.management.MBeanInfo
+import javax.management.MBeanOperationInfo
+import javax.management.ObjectName
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class BundleRegistrySpec extends Specification {
+    static final String JBLAS_PATH = '/native/jblas'
+    static final String JBLAS_PACKAGE = 'jblas-1.2.3'
+
+    File extractionDir
+    List<ExtractionEvent> events = new CopyOnWriteArrayList<>()
+    ExtractionListener listener = { ExtractionEvent event -> events << event } as ExtractionListener
+
+    def setup() {
+        extractionDir = new File(JNILoader.@TMP_DIR, "jniloadertest-${UUID.randomUUID().toString()}")
+        ExtractionMetrics.addListener(listener)
+    }
+
+    def cleanup() {
+        ExtractionMetrics.removeListener(listener)
+        FileUtils.deleteDirectory(extractionDir)
+    }
+
+    JNILoader newLoader(final Platform platform = new Platform(LINUX, X86_64)) {
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        return loader
+    }
+
+    def 'bundles are verified once per JVM'() {
+        given:
+        newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        events.clear()
+
+        when:
+        JNILoader loader = newLoader()
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary('jblas').file
+        !events.any { it.phase in [VERIFY, EXTRACT] }
+
+        and:
+        BundleRegistry.Bundle bundle = BundleRegistry.instance.bundles.find { it.directory.path.startsWith(extractionDir.canonicalPath) }
+        bundle.archive.endsWith("${JBLAS_PACKAGE}-linux-x86_64.zip")
+        bundle.directory == new File(extractionDir, 'jni-loader/linux/x86_64').canonicalFile
+        bundle.verificationPolicy == VerificationPolicy.CHECKSUM
+        bundle.verified
+    }
+
+    def 'bundles are verified again with a different policy'() {
+        given:
+        newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        events.clear()
+
+        when:
+        JNILoader loader = newLoader()
+        loader.verificationPolicy = VerificationPolicy.SHA256
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        events.find { it.phase == VERIFY }.successful
+    }
+
+    def 'removed bundles are verified again'() {
+        given:
+        newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        FileUtils.deleteDirectory(extractionDir)
+        events.clear()
+
+        when:
+        JNILoader loader = newLoader()
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary('jblas').file
+        events.any { it.phase == EXTRACT }
+    }
+
+    def 'class loaders share the registry'() {
+        given:
+        URL[] classpath = System.getProperty('java.class.path').split(File.pathSeparator).collect { new File(it).toURI().toURL() }
+        URLClassLoader isolated = new URLClassLoader(classpath, (ClassLoader) null)
+        Class isolatedLoader = isolated.loadClass(JNILoader.name)
+        def loader = isolatedLoader.newInstance(extractionDir.name)
+        loader.updateLibraryPath = false
+
+        when:
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        JNILoader local = new JNILoader(extractionDir.name)
+        local.updateLibraryPath = false
+        local.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        isolatedLoader != JNILoader
+        !events.any { it.phase == VERIFY }
+        local.findLibrary('jblas').file
+
+        cleanup:
+        isolated?.close()
+    }
+
+    def 'registry is registered with the platform MBean server'() {
+        given:
+        newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        ObjectName name = new ObjectName(BundleRegistry.OBJECT_NAME)
+
+        expect:
+        ManagementFactory.platformMBeanServer.isRegistered(name)
+        ManagementFactory.platformMBeanServer.getAttribute(name, 'BundleCount') >= 1
+        ManagementFactory.platformMBeanServer.getAttribute(name, 'Bundles').any { it.contains(extractionDir.name) }
+    }
+
+    def 'registry operations only exchange strings and booleans'() {
+        given:
+        newLoader().extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        MBeanInfo info = ManagementFactory.platformMBeanServer.getMBeanInfo(new ObjectName(BundleRegistry.OBJECT_NAME))
+
+        expect:
+        info.operations*.name.containsAll(['claim', 'complete', 'await'])
+        info.operations.every { MBeanOperationInfo operation ->
+            operation.returnType in ['boolean', 'void'] && operation.signature.every { it.type in [String.name, 'boolean'] }
+        }
+    }
+
+    def 'failed bundles can be claimed again'() {
+        given:
+        BundleRegistry registry = BundleRegistry.instance
+        String key = BundleRegistry.key('failed', new File(extractionDir, 'failed'), VerificationPolicy.CHECKSUM)
+
+        when:
+        boolean claimed = registry.claim(key)
+        boolean claimedTwice = registry.claim(key)
+        registry.complete(key, false)
+
+        then:
+        claimed
+        !claimedTwice
+        !registry.await(key)
+        registry.claim(key)
+
+        cleanup:
+        registry.complete(key, false)
+    }
+
+    def 'verified bundles are forgotten when the registry is full'() {
+        given:
+        BundleRegistry registry = BundleRegistry.instance
+        registry.clear()
+
+        when:
+        (0..BundleRegistry.MAX_BUNDLES).each { int i ->
+            String key = BundleRegistry.key("archive-${i}", new File(extractionDir, "bundle-${i}"), VerificationPolicy.CHECKSUM)
+            registry.claim(key)
+            registry.complete(key, true)
+        }
+
+        then:
+        registry.bundles.size() == BundleRegistry.MAX_BUNDLES
+
+        cleanup:
+        registry.clear()
+    }
+}
@@ -0,0 +1,76 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.Architecture.*
+import static com.shankyank.jniloader.CpuVariant.*
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CpuVariantSpec extends Specification {
+    static final List<String> V2_FLAGS = ['sse4_1', 'sse4_2', 'ssse3', 'popcnt']
+    static final List<String> V3_FLAGS = V2_FLAGS + ['avx', 'avx2', 'fma', 'bmi1', 'bmi2', 'f16c', 'movbe']
+    static final List<String> V4_FLAGS = V3_FLAGS + ['avx512f', 'avx512bw', 'avx512cd', 'avx512dq', 'avx512vl']
+
+    def cleanup() {
+        System.clearProperty(CPU_VARIANTS_PROPERTY)
+    }
+
+    @Unroll
+    def 'forFeatures: #arch #flags'() {
+        expect:
+        CpuVariant.forFeatures(arch, flags) == variants
+
+        where:
+        arch   | flags                  || variants
+        X86_64 | []                     || []
+        X86_64 | ['fpu', 'sse2']        || []
+        X86_64 | V2_FLAGS               || [SSE42]
+        X86_64 | V3_FLAGS               || [AVX2, SSE42]
+        X86_64 | V4_FLAGS               || [AVX512, AVX2, SSE42]
+        X86_64 | V4_FLAGS - ['avx512vl']|| [AVX2, SSE42]
+        X86    | V4_FLAGS               || [AVX2, SSE42]
+        PPC64  | V4_FLAGS               || []
+    }
+
+    def 'read cpu flags'() {
+        given:
+        File cpuInfo = File.createTempFile('cpuinfo', '')
+        cpuInfo.text = '''processor\t: 0
+vendor_id\t: GenuineIntel
+flags\t\t: fpu sse2 ssse3 sse4_1 sse4_2 popcnt avx avx2
+bugs\t\t: spectre_v1
+
+processor\t: 1
+flags\t\t: fpu
+'''
+
+        expect:
+        CpuVariant.readCpuFlags(cpuInfo) == ['fpu', 'sse2', 'ssse3', 'sse4_1', 'sse4_2', 'popcnt', 'avx', 'avx2'] as Set
+
+        cleanup:
+        cpuInfo.delete()
+    }
+
+    @Unroll
+    def 'configured variants: "#property"'() {
+        when:
+        System.setProperty(CPU_VARIANTS_PROPERTY, property)
+
+        then:
+        CpuVariant.systemVariants == variants
+
+        where:
+        property           || variants
+        ''                 || []
+        'avx2'             || [AVX2]
+        'AVX512, avx2'     || [AVX512, AVX2]
+        'sse42,neon,avx2'  || [SSE42, AVX2]
+    }
+
+    def 'forName'() {
+        expect:
+        CpuVariant.forName('avx2') == AVX2
+        CpuVariant.forName(' SSE42 ') == SSE42
+        CpuVariant.forName('neon') == null
+    }
+}
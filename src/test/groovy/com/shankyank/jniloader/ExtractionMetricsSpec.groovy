@@ -0,0 +1,198 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.Architecture.*
+import static com.shankyank.jniloader.ExtractionPhase.*
+import static com.shankyank.jniloader.OperatingSystem.*
+
+import com.shankyank.jniloader.JNILoader.Platform
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CopyOnWriteArrayList
+import javax.management.ObjectName
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class ExtractionMetricsSpec extends Specification {
+    static final String JBLAS_PATH = '/native/jblas'
+    static final String JBLAS_PACKAGE = 'jblas-1.2.3'
+    static final String ORIG_LIB_PATH = System.getProperty('java.library.path')
+
+    File extractionDir
+    List<ExtractionEvent> events = new CopyOnWriteArrayList<>()
+    ExtractionListener listener = { ExtractionEvent event -> events << event } as ExtractionListener
+
+    def setup() {
+        extractionDir = new File(JNILoader.@TMP_DIR, "jniloadertest-${UUID.randomUUID().toString()}")
+        ExtractionMetrics.instance.reset()
+        ExtractionMetrics.addListener(listener)
+    }
+
+    def cleanup() {
+        ExtractionMetrics.removeListener(listener)
+        FileUtils.deleteDirectory(extractionDir)
+        System.setProperty('java.library.path', ORIG_LIB_PATH)
+    }
+
+    def 'phases of a new extraction'() {
+        when:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        Map<ExtractionPhase, ExtractionEvent> phases = events.collectEntries { [(it.phase): it] }
+
+        then:
+        phases.keySet() == [ARCHIVE_LOOKUP, VERIFY, LOCK_WAIT, EXTRACT, EXTRACT_ENTRY, PATH_UPDATE] as Set
+        !phases[VERIFY].successful
+        phases[EXTRACT].successful
+        phases[EXTRACT].bytesRead > 0
+        phases[EXTRACT].bytesWritten > 0
+        phases[EXTRACT].libPackage == JBLAS_PACKAGE
+        phases[PATH_UPDATE].libPackage == null
+        events.every { it.durationNanos >= 0 }
+
+        and:
+        List<ExtractionEvent> entries = events.findAll { it.phase == EXTRACT_ENTRY }
+        entries*.entryName.every { it }
+        entries*.bytesWritten.sum() == phases[EXTRACT].bytesWritten
+
+        and:
+        ExtractionMetrics metrics = ExtractionMetrics.instance
+        metrics.cacheMisses == 1
+        metrics.cacheHits == 0
+        metrics.bytesWritten == phases[EXTRACT].bytesWritten
+        metrics.phaseCounts[EXTRACT.name()] == 1
+    }
+
+    def 'verified bundles are cache hits'() {
+        given:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        events.clear()
+        // a new JVM has not verified the bundle
+        BundleRegistry.instance.clear()
+
+        when:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        ExtractionEvent verify = events.find { it.phase == VERIFY }
+
+        then:
+        verify.successful
+        verify.bytesRead > 0
+        !events.any { it.phase == EXTRACT }
+        events.findAll { it.phase == CHECKSUM }*.bytesRead.sum() == verify.bytesRead
+
+        and:
+        List<BundleMetrics> bundles = ExtractionMetrics.instance.bundles
+        bundles.size() == 1
+        bundles[0].libPackage == JBLAS_PACKAGE
+        bundles[0].platform == 'linux-x86_64'
+        bundles[0].cacheHits == 1
+        bundles[0].cacheMisses == 1
+    }
+
+    def 'unchanged bundles are verified by their receipt'() {
+        given:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File libDir = new File(extractionDir, 'jni-loader/linux/x86_64')
+        // files modified just before their receipt was written are not trusted
+        libDir.eachFileRecurse { File file ->
+            if (file.file && !file.name.startsWith('.')) {
+                file.lastModified = System.currentTimeMillis() - 3600000L
+            }
+        }
+        BundleRegistry.instance.clear()
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        events.clear()
+        BundleRegistry.instance.clear()
+
+        when:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        new File(libDir, ".${JBLAS_PACKAGE}.receipt").file
+        events.find { it.phase == VERIFY }.successful
+        !events.any { it.phase in [CHECKSUM, EXTRACT] }
+
+        when:
+        events.clear()
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.verificationPolicy = VerificationPolicy.SHA256
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        events.any { it.phase == CHECKSUM }
+
+        when:
+        events.clear()
+        BundleRegistry.instance.clear()
+        new File(libDir, 'libjblas_arch_flavor.so').lastModified = System.currentTimeMillis() - 1800000L
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        events.any { it.phase == CHECKSUM }
+        !events.any { it.phase == EXTRACT }
+    }
+
+    def 'fallback platform is reported'() {
+        when:
+        new JNILoader(extractionDir.name, new Platform(MINGW, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        ExtractionEvent lookup = events.find { it.phase == ARCHIVE_LOOKUP }
+
+        then:
+        lookup.platform == new Platform(MINGW, X86_64)
+        lookup.archivePlatform == new Platform(WINDOWS, X86_64)
+    }
+
+    def 'archives are resolved once per loader'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.cacheEnabled = true
+
+        when:
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        [1, 2].each {
+            try {
+                loader.extractLibs(JBLAS_PATH, 'missing')
+            } catch (FileNotFoundException expected) {
+            }
+        }
+        List<ExtractionEvent> lookups = events.findAll { it.phase == ARCHIVE_LOOKUP }
+
+        then:
+        lookups*.libPackage == [JBLAS_PACKAGE, 'missing']
+        lookups*.successful == [true, false]
+    }
+
+    def 'darwin aliases are timed'() {
+        when:
+        new JNILoader(extractionDir.name, new Platform(DARWIN, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        ExtractionEvent aliases = events.find { it.phase == DARWIN_ALIASES }
+
+        then:
+        aliases.successful
+        aliases.bytesWritten > 0
+    }
+
+    def 'failed listeners are ignored'() {
+        given:
+        ExtractionListener failing = { ExtractionEvent event -> throw new IllegalStateException('listener failed') } as ExtractionListener
+        ExtractionMetrics.addListener(failing)
+
+        when:
+        boolean loaded = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        !events.empty
+
+        cleanup:
+        ExtractionMetrics.removeListener(failing)
+    }
+
+    def 'metrics are registered with the platform MBean server'() {
+        given:
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        ObjectName name = new ObjectName(ExtractionMetrics.OBJECT_NAME)
+
+        expect:
+        ManagementFactory.platformMBeanServer.isRegistered(name)
+        ManagementFactory.platformMBeanServer.getAttribute(name, 'CacheMisses') == 1L
+        ManagementFactory.platformMBeanServer.getAttribute(name, 'BytesWritten') > 0L
+    }
+}
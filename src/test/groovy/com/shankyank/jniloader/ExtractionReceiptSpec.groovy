@@ -0,0 +1,137 @@
+package com.shankyank.jniloader
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class ExtractionReceiptSpec extends Specification {
+    static final long AN_HOUR_AGO = System.currentTimeMillis() - 3600000L
+
+    File workDir
+    File receiptFile
+    List<File> files
+    String archiveId
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-receipt', '')
+        receiptFile = new File(workDir, '.bundle.receipt')
+        files = [new File(workDir, 'libone.so'), new File(workDir, 'sub/libtwo.so')]
+        files*.parentFile*.mkdirs()
+        files.eachWithIndex { File file, int i ->
+            file.text = "library ${i}"
+            file.lastModified = AN_HOUR_AGO
+        }
+        archiveId = ExtractionReceipt.identify(ExtractionReceiptSpec.getResource('/native/formats/hello-linux-x86_64.tar'), 'tree')
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    def 'round trip'() {
+        when:
+        ExtractionReceipt.create(archiveId, workDir, files).write(receiptFile)
+        ExtractionReceipt receipt = ExtractionReceipt.read(receiptFile)
+
+        then:
+        receipt.archive == archiveId
+        receipt.files as List == ['libone.so', 'sub/libtwo.so']
+        receipt.matches(archiveId, workDir)
+        workDir.list().sort() == ['.bundle.receipt', 'libone.so', 'sub']
+    }
+
+    def 'changed files do not match'() {
+        given:
+        ExtractionReceipt.create(archiveId, workDir, files).write(receiptFile)
+        ExtractionReceipt receipt = ExtractionReceipt.read(receiptFile)
+
+        when:
+        change(files[1])
+
+        then:
+        !receipt.matches(archiveId, workDir)
+
+        where:
+        change << [
+                { File file -> file.text = 'library 9'; file.lastModified = AN_HOUR_AGO + 1000L },
+                { File file -> file.text = 'longer library'; file.lastModified = AN_HOUR_AGO },
+                { File file -> file.delete() }
+        ]
+    }
+
+    def 'other archives do not match'() {
+        given:
+        ExtractionReceipt.create(archiveId, workDir, files).write(receiptFile)
+
+        expect:
+        !ExtractionReceipt.read(receiptFile).matches(
+                ExtractionReceipt.identify(ExtractionReceiptSpec.getResource('/native/formats/gnu-linux-x86_64.tar'), 'tree'), workDir)
+        !ExtractionReceipt.read(receiptFile).matches(
+                ExtractionReceipt.identify(ExtractionReceiptSpec.getResource('/native/formats/hello-linux-x86_64.tar'), 'flat'), workDir)
+    }
+
+    def 'recently modified files do not match'() {
+        given:
+        files[0].lastModified = System.currentTimeMillis()
+        ExtractionReceipt.create(archiveId, workDir, files).write(receiptFile)
+
+        expect:
+        !ExtractionReceipt.read(receiptFile).matches(archiveId, workDir)
+    }
+
+    def 'files replaced while they were verified are not receipted'() {
+        given: 'the state of each file before it was verified'
+        Map<File, String> verifiedStates = files.collectEntries { [(it): IOHelper.stat(it)] }
+
+        expect:
+        ExtractionReceipt.create(archiveId, workDir, files, verifiedStates).files as List == ['libone.so', 'sub/libtwo.so']
+
+        when: 'another process replaces a file with a different version'
+        File replacement = new File(workDir, 'libtwo.so.tmp')
+        replacement.text = 'library 9'
+        replacement.lastModified = AN_HOUR_AGO
+        assert replacement.renameTo(files[1])
+
+        then:
+        ExtractionReceipt.create(archiveId, workDir, files, verifiedStates) == null
+    }
+
+    def 'missing or malformed receipts'() {
+        expect:
+        ExtractionReceipt.read(receiptFile) == null
+
+        when:
+        receiptFile.text = "# jni-loader extraction receipt\n${archiveId}\nnot a file\n"
+
+        then:
+        ExtractionReceipt.read(receiptFile) == null
+    }
+
+    def 'missing archives cannot be identified'() {
+        when:
+        ExtractionReceipt.identify(new File(workDir, 'missing.zip').toURI().toURL(), 'tree')
+
+        then:
+        thrown(IOException)
+    }
+
+    def 'only unstable identities change when a jar is rebuilt'() {
+        setup:
+        List<URL> archives = [AN_HOUR_AGO, AN_HOUR_AGO - 60000L].collect { long time ->
+            File jar = new File(workDir, "bundle-${time}.jar")
+            new ZipOutputStream(new FileOutputStream(jar)).withStream { ZipOutputStream zip ->
+                ZipEntry entry = new ZipEntry('native/bundle.zip')
+                entry.time = time
+                zip.putNextEntry(entry)
+                zip.write('the same bundle'.bytes)
+                zip.closeEntry()
+            }
+            new URL("jar:${jar.toURI()}!/native/bundle.zip")
+        }
+
+        expect:
+        IOHelper.identifyArchive(archives[0], true) == IOHelper.identifyArchive(archives[1], true)
+        IOHelper.identifyArchive(archives[0], false) != IOHelper.identifyArchive(archives[1], false)
+    }
+}
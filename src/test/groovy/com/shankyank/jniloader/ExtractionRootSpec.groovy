@@ -0,0 +1,101 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.ExtractionRoot.*
+
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class ExtractionRootSpec extends Specification {
+    static final File JAVA_TMP_DIR = new File(System.getProperty('java.io.tmpdir'))
+
+    File workDir
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-root', '')
+    }
+
+    def cleanup() {
+        System.clearProperty(EXTRACTION_ROOTS_PROPERTY)
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    def 'first usable candidate is chosen'() {
+        given:
+        File file = new File(workDir, 'file')
+        file.text = 'not a directory'
+        File missing = new File(workDir, 'missing')
+        File usable = new File(workDir, 'usable')
+        usable.mkdir()
+
+        when:
+        ExtractionRoot root = ExtractionRoot.select([missing, file, usable, JAVA_TMP_DIR])
+
+        then:
+        root.directory == usable
+        root.reason.startsWith('first usable candidate')
+        root.rejected == [(missing): 'not a directory', (file): 'not a directory']
+        usable.list().length == 0
+    }
+
+    def 'first candidate'() {
+        when:
+        ExtractionRoot root = ExtractionRoot.select([workDir])
+
+        then:
+        root.directory == workDir
+        root.reason.startsWith('first candidate')
+        root.rejected.isEmpty()
+        root.toString().startsWith(workDir.path)
+    }
+
+    def 'java.io.tmpdir is used when no candidate is usable'() {
+        given:
+        File missing = new File(workDir, 'missing')
+
+        expect:
+        ExtractionRoot.select([missing]).directory == JAVA_TMP_DIR
+        ExtractionRoot.select([missing]).reason == 'no usable candidate, java.io.tmpdir'
+        ExtractionRoot.select([missing]).rejected.keySet() as List == [missing]
+        ExtractionRoot.select([]).reason == 'java.io.tmpdir'
+    }
+
+    def 'configured candidates'() {
+        given:
+        File usable = new File(workDir, 'usable')
+        usable.mkdir()
+        System.setProperty(EXTRACTION_ROOTS_PROPERTY, " ${new File(workDir, 'missing')}, ${usable}")
+
+        when:
+        ExtractionRoot root = ExtractionRoot.select()
+
+        then:
+        root.directory == usable
+        root.rejected.keySet() as List == [new File(workDir, 'missing')]
+    }
+
+    def 'parse candidates'() {
+        expect:
+        ExtractionRoot.parseCandidates("/a, /b${File.pathSeparator}/c ,,") == [new File('/a'), new File('/b'), new File('/c')]
+    }
+
+    @Unroll
+    def 'default candidates: #os'() {
+        expect:
+        ExtractionRoot.getDefaultCandidates(os, runtimeDir) == candidates
+
+        where:
+        os                      | runtimeDir     || candidates
+        OperatingSystem.LINUX   | '/run/user/42' || [new File('/run/user/42'), new File('/dev/shm'), JAVA_TMP_DIR]
+        OperatingSystem.LINUX   | ' '            || [new File('/dev/shm'), JAVA_TMP_DIR]
+        OperatingSystem.LINUX   | null           || [new File('/dev/shm'), JAVA_TMP_DIR]
+        OperatingSystem.DARWIN  | '/run/user/42' || [JAVA_TMP_DIR]
+        OperatingSystem.WINDOWS | null           || [JAVA_TMP_DIR]
+    }
+
+    def 'loaders extract below the extraction root'() {
+        expect:
+        JNILoader.extractionRoot.directory == JNILoader.@TMP_DIR
+        new JNILoader().libraryPath.path.startsWith(JNILoader.extractionRoot.directory.path)
+    }
+}
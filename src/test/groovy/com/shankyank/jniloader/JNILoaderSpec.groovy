@@ -5,6 +5,13 @@ import static com.shankyank.jniloader.OperatingSystem.*
 
 import com.shankyank.jniloader.JNILoader.Platform
 import java.lang.reflect.Field
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 import org.apache.commons.io.FileUtils
 import spock.lang.Specification
 import spock.lang.Unroll
@@ -111,6 +118,667 @@ class JNILoaderSpec extends Specification {
         platform << SUPPORTED_TEST_PLATFORMS
     }
 
+    def 'repeated extraction does not duplicate path entries'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+
+        when:
+        boolean loaded = loader.extractLibs(JBLAS_PATH, [JBLAS_PACKAGE, JBLAS_PACKAGE])
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        new JNILoader(extractionDir.name, new Platform(LINUX, X86_64)).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        List sysPaths = System.getProperty('java.library.path').split(File.pathSeparator).collect { new File(it).canonicalFile }
+
+        then:
+        loaded
+        getExpectedJBlasFiles(extractionDir, LINUX, X86_64).every { sysPaths.count(it.parentFile.canonicalFile) == 1 }
+    }
+
+    @Unroll
+    def 'flattened extraction: #platform'() {
+        expect:
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.flattenLibraries = true
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File libPath = new File(extractionDir, "jni-loader/${platform.operatingSystem.nativeString}/${platform.architecture.canonicalName}")
+        List sysPaths = System.getProperty('java.library.path').split(File.pathSeparator).collect { new File(it).canonicalFile }
+        getExpectedJBlasFiles(extractionDir, platform.operatingSystem, platform.architecture).each {
+            assert new File(libPath, it.name).file
+        }
+        sysPaths.contains(libPath.canonicalFile)
+        !sysPaths.any { it.parentFile == libPath.canonicalFile }
+
+        where:
+        platform << SUPPORTED_TEST_PLATFORMS
+    }
+
+    def 'load library by absolute path'() {
+        when:
+        JNILoader loader = new JNILoader(extractionDir.name)
+        loader.updateLibraryPath = false
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        loader.loadLibrary('jblas_arch_flavor')
+        loader.loadLibrary('jblas')
+
+        then:
+        loaded
+        noExceptionThrown()
+        System.getProperty('java.library.path') == ORIG_LIB_PATH
+    }
+
+    def 'load library that was not extracted'() {
+        when:
+        new JNILoader(extractionDir.name).loadLibrary('jblas')
+
+        then:
+        thrown(UnsatisfiedLinkError)
+    }
+
+    @Unroll
+    def 'find library: #platform'() {
+        expect:
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        loader.findLibrary('jblas_arch_flavor').name in platform.operatingSystem.mapLibraryName('jblas_arch_flavor')
+        loader.findLibrary('missing') == null
+        getExpectedJBlasFiles(extractionDir, platform.operatingSystem, platform.architecture).each {
+            assert loader.findLibrary(it.name) == it.canonicalFile
+        }
+
+        where:
+        platform << SUPPORTED_TEST_PLATFORMS
+    }
+
+    @Unroll
+    def 'cpu variant selection: #platform #variants'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.cpuVariants = variants
+
+        when:
+        boolean loaded = loader.extractLibs('/native/variants', 'hello')
+
+        then:
+        loaded
+        loader.findLibrary('hello').text.trim() == build
+
+        where:
+        platform                     | variants                                            || build
+        new Platform(LINUX, X86_64)  | []                                                  || 'generic'
+        new Platform(LINUX, X86_64)  | [CpuVariant.SSE42]                                  || 'generic'
+        new Platform(LINUX, X86_64)  | [CpuVariant.AVX2, CpuVariant.SSE42]                 || 'avx2'
+        new Platform(LINUX, X86_64)  | [CpuVariant.AVX512, CpuVariant.AVX2, CpuVariant.SSE42] || 'avx512'
+        new Platform(MINGW, X86_64)  | [CpuVariant.AVX2, CpuVariant.SSE42]                 || 'sse42'
+        new Platform(WINDOWS, X86_64)| []                                                  || 'generic'
+    }
+
+    def 'cpu variants for other architectures are ignored'() {
+        when:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, PPC64))
+        loader.cpuVariants = [CpuVariant.AVX2]
+
+        then:
+        loader.cpuVariants.empty
+    }
+
+    @Unroll
+    def 'tar bundles: #threads threads'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.updateLibraryPath = false
+        loader.extractionThreads = threads
+
+        when:
+        boolean loaded = loader.extractLibs('/native/formats', 'hello')
+        File libDir = loader.findLibrary('hello').parentFile
+
+        then:
+        loaded
+        loader.findLibrary('hello').text == 'tar build\n'
+        new File(libDir, 'libbig.so').bytes == TarArchiveSpec.BIG
+        new File(libDir, TarArchiveSpec.DEEP).text == 'deep\n'
+        !new File(libDir, 'libhello.so.1').exists()
+
+        when:
+        new File(libDir, 'libbig.so').bytes = new byte[TarArchiveSpec.BIG.length]
+        // a new JVM has not verified the bundle
+        BundleRegistry.instance.clear()
+        JNILoader reloader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        reloader.updateLibraryPath = false
+
+        then:
+        reloader.extractLibs('/native/formats', 'hello')
+        new File(libDir, 'libbig.so').bytes == TarArchiveSpec.BIG
+
+        where:
+        threads << [1, 4]
+    }
+
+    @Unroll
+    def 'bundle format order: #formats'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(WINDOWS, X86_64))
+        loader.updateLibraryPath = false
+        loader.bundleFormats = formats
+
+        when:
+        boolean loaded = loader.extractLibs('/native/formats', 'hello')
+
+        then:
+        loaded
+        loader.findLibrary('hello').text.trim() == build
+
+        where:
+        formats                              || build
+        [BundleFormat.ZIP, BundleFormat.TAR] || 'zip build'
+        [BundleFormat.TAR, BundleFormat.ZIP] || 'tar build'
+        [BundleFormat.TAR]                   || 'tar build'
+    }
+
+    def 'default bundle formats'() {
+        when:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+
+        then:
+        loader.bundleFormats == [BundleFormat.ZIP, BundleFormat.TAR]
+
+        when:
+        loader.bundleFormats = []
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    @Unroll
+    def 'verification policy #policy: #bundle'() {
+        given:
+        Platform platform = new Platform(LINUX, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs(path, bundle)
+        File lib = loader.findLibrary(libName)
+        byte[] original = lib.bytes
+
+        when:
+        lib.bytes = Arrays.copyOf(original, original.length - 1)
+        BundleRegistry.instance.clear()
+        JNILoader truncated = new JNILoader(extractionDir.name, platform)
+        truncated.updateLibraryPath = false
+        truncated.verificationPolicy = policy
+        truncated.extractLibs(path, bundle)
+
+        then:
+        (lib.bytes == original) == checksSize
+
+        when:
+        byte[] changed = original.clone()
+        changed[changed.length - 1] ^= 0xff
+        lib.bytes = changed
+        BundleRegistry.instance.clear()
+        JNILoader corrupt = new JNILoader(extractionDir.name, platform)
+        corrupt.updateLibraryPath = false
+        corrupt.verificationPolicy = policy
+        corrupt.extractLibs(path, bundle)
+
+        then:
+        (lib.bytes == original) == checksContents
+
+        where:
+        policy                      | path              | bundle        | libName || checksSize | checksContents
+        VerificationPolicy.NONE     | JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || false      | false
+        VerificationPolicy.SIZE     | JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || true       | false
+        VerificationPolicy.CRC      | JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || true       | true
+        VerificationPolicy.CHECKSUM | JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || true       | true
+        VerificationPolicy.SHA256   | JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || true       | true
+        VerificationPolicy.SIZE     | '/native/formats' | 'hello'       | 'big'   || true       | false
+        VerificationPolicy.CRC      | '/native/formats' | 'hello'       | 'big'   || true       | true
+        VerificationPolicy.SHA256   | '/native/formats' | 'hello'       | 'big'   || true       | true
+    }
+
+    def 'bundles in jars are verified sequentially'() {
+        given: 'a bundle that is only found in a jar'
+        File jarDir = File.createTempDir('jniloader-jar', '')
+        File jar = new File(jarDir, 'bundles.jar')
+        new ZipOutputStream(new FileOutputStream(jar)).withStream { ZipOutputStream zip ->
+            zip.putNextEntry(new ZipEntry("native/jarred/${JBLAS_PACKAGE}-linux-x86_64.zip"))
+            zip.write(JNILoaderSpec.getResource("${JBLAS_PATH}/${JBLAS_PACKAGE}-linux-x86_64.zip").bytes)
+            zip.closeEntry()
+        }
+        List<URL> classpath = System.getProperty('java.class.path').split(File.pathSeparator).collect { new File(it).toURI().toURL() }
+        URLClassLoader isolated = new URLClassLoader((classpath + jar.toURI().toURL()) as URL[], (ClassLoader) null)
+        Class isolatedLoader = isolated.loadClass(JNILoader.name)
+        def platform = isolated.loadClass(Platform.name).newInstance(
+                isolated.loadClass(OperatingSystem.name).LINUX, isolated.loadClass(Architecture.name).X86_64)
+        def loader = isolatedLoader.newInstance(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs('/native/jarred', JBLAS_PACKAGE)
+        File lib = loader.findLibrary('jblas')
+        byte[] original = lib.bytes
+
+        when:
+        byte[] changed = original.clone()
+        changed[changed.length - 1] ^= 0xff
+        lib.bytes = changed
+        BundleRegistry.instance.clear()
+        def verifying = isolatedLoader.newInstance(extractionDir.name, platform)
+        verifying.updateLibraryPath = false
+        verifying.verificationPolicy = isolated.loadClass(VerificationPolicy.name).CRC
+        verifying.extractLibs('/native/jarred', JBLAS_PACKAGE)
+
+        then:
+        isolated.getResource("native/jarred/${JBLAS_PACKAGE}-linux-x86_64.zip").protocol == 'jar'
+        lib.bytes == original
+
+        cleanup:
+        isolated?.close()
+        FileUtils.deleteDirectory(jarDir)
+    }
+
+    @Unroll
+    def 'only changed files are extracted again: #bundle'() {
+        given:
+        Platform platform = new Platform(LINUX, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs(path, bundle)
+        File lib = loader.findLibrary(libName)
+        byte[] original = lib.bytes
+        lib.bytes = Arrays.copyOf(original, original.length - 1)
+        List<ExtractionEvent> events = [].asSynchronized()
+        ExtractionListener listener = { ExtractionEvent event -> events << event } as ExtractionListener
+        ExtractionMetrics.addListener(listener)
+
+        when:
+        BundleRegistry.instance.clear()
+        JNILoader upgraded = new JNILoader(extractionDir.name, platform)
+        upgraded.updateLibraryPath = false
+        upgraded.extractLibs(path, bundle)
+
+        then:
+        lib.bytes == original
+        events.findAll { it.phase == ExtractionPhase.EXTRACT_ENTRY }*.entryName == [entryName]
+
+        cleanup:
+        ExtractionMetrics.removeListener(listener)
+
+        where:
+        path              | bundle        | libName || entryName
+        JBLAS_PATH        | JBLAS_PACKAGE | 'jblas' || 'sse3/libjblas.so'
+        '/native/formats' | 'hello'       | 'big'   || 'libbig.so'
+    }
+
+    def 'files removed from a bundle are pruned'() {
+        given:
+        Platform platform = new Platform(LINUX, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File bundleDir = loader.findLibrary('jblas').parentFile.parentFile
+        File receiptFile = new File(bundleDir, ".${JBLAS_PACKAGE}.receipt")
+
+        and: 'an earlier version of the bundle contained a file that has been removed'
+        File removed = new File(bundleDir, 'libremoved.so')
+        removed.text = 'removed'
+        ExtractionReceipt receipt = ExtractionReceipt.read(receiptFile)
+        List<File> previousFiles = receipt.files.collect { new File(bundleDir, it) } + removed
+        ExtractionReceipt.create(receipt.archive, bundleDir, previousFiles).write(receiptFile)
+        loader.findLibrary('jblas').text = 'changed'
+
+        when:
+        BundleRegistry.instance.clear()
+        JNILoader upgraded = new JNILoader(extractionDir.name, platform)
+        upgraded.updateLibraryPath = false
+        upgraded.pruneStaleFiles = prune
+        upgraded.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        removed.exists() == !prune
+        upgraded.findLibrary('jblas').file
+        !ExtractionReceipt.read(receiptFile).files.contains('libremoved.so')
+
+        where:
+        prune << [true, false]
+    }
+
+    def 'receipt paths outside of the bundle are not pruned'() {
+        given:
+        Platform platform = new Platform(LINUX, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File bundleDir = loader.findLibrary('jblas').parentFile.parentFile
+        File receiptFile = new File(bundleDir, ".${JBLAS_PACKAGE}.receipt")
+
+        and: 'a receipt naming files outside of the bundle directory'
+        File outsideDir = File.createTempDir('jniloader-outside', '')
+        File relative = new File(outsideDir, 'relative.txt')
+        relative.text = 'outside'
+        File absolute = new File(outsideDir, 'absolute.txt')
+        absolute.text = 'outside'
+        ExtractionReceipt receipt = ExtractionReceipt.read(receiptFile)
+        List<File> previousFiles = receipt.files.collect { new File(bundleDir, it) } + relative
+        ExtractionReceipt.create(receipt.archive, bundleDir, previousFiles).write(receiptFile)
+        receiptFile.append("${absolute.length()}\t${absolute.lastModified()}\t-\t${absolute.absolutePath}\n")
+        loader.findLibrary('jblas').text = 'changed'
+
+        when:
+        BundleRegistry.instance.clear()
+        JNILoader upgraded = new JNILoader(extractionDir.name, platform)
+        upgraded.updateLibraryPath = false
+        upgraded.pruneStaleFiles = true
+        upgraded.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        ExtractionReceipt.read(receiptFile).files.size() == receipt.files.size()
+        relative.file
+        absolute.file
+
+        cleanup:
+        FileUtils.deleteDirectory(outsideDir)
+    }
+
+    def 'invalid verification policy'() {
+        when:
+        new JNILoader(extractionDir.name).verificationPolicy = null
+
+        then:
+        thrown(NullPointerException)
+    }
+
+    def 'lazy extraction of registered bundles'() {
+        given:
+        Platform platform = new Platform(WINDOWS, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        File libDir = new File(extractionDir, 'jni-loader/windows/x86_64')
+
+        when:
+        loader.registerLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        !libDir.exists()
+
+        when:
+        File jblas = loader.findLibrary('jblas')
+
+        then:
+        jblas == new File(libDir, 'jblas.dll').canonicalFile
+        libDir.list().findAll { !it.startsWith('.') }.sort() == ['jblas.dll', 'libgcc_s_sjlj-1.dll', 'libgfortran-3.dll']
+        loader.findLibrary('libgfortran-3.dll').file
+        loader.findLibrary('missing') == null
+        System.getProperty('java.library.path') == ORIG_LIB_PATH
+
+        when:
+        File flavor = loader.extractLibrary('jblas_arch_flavor')
+
+        then:
+        flavor.name == 'jblas_arch_flavor.dll'
+        getExpectedJBlasFiles(extractionDir, platform.operatingSystem, platform.architecture).every { it.file }
+    }
+
+    def 'lazily extracted libraries are verified'() {
+        given:
+        Platform platform = new Platform(WINDOWS, X86_64)
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.registerLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File gcc = new File(loader.findLibrary('jblas').parentFile, 'libgcc_s_sjlj-1.dll')
+        long size = gcc.length()
+        gcc.bytes = new byte[size]
+
+        when:
+        JNILoader reloader = new JNILoader(extractionDir.name, platform)
+        reloader.updateLibraryPath = false
+        reloader.registerLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        reloader.findLibrary('jblas')
+
+        then:
+        gcc.length() == size
+        gcc.bytes != new byte[size]
+    }
+
+    def 'lazy extraction from tar bundles'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.updateLibraryPath = false
+        loader.registerLibs('/native/formats', 'hello')
+
+        expect:
+        loader.findLibrary('deep').text == 'deep\n'
+        !new File(extractionDir, 'jni-loader/linux/x86_64/libbig.so').exists()
+        loader.findLibrary('libbig.so').bytes == TarArchiveSpec.BIG
+    }
+
+    def 'register a missing bundle'() {
+        when:
+        new JNILoader(extractionDir.name).registerLibs(JBLAS_PATH, 'missing')
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    @Unroll
+    def 'parallel extraction: #platform'() {
+        expect:
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.extractionThreads = 4
+        loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        getExpectedJBlasFiles(extractionDir, platform.operatingSystem, platform.architecture).each {
+            assert it.file
+        }
+
+        where:
+        platform << SUPPORTED_TEST_PLATFORMS
+    }
+
+    def 'concurrent loaders share extraction directory'() {
+        given:
+        Platform platform = new Platform(LINUX, X86_64)
+        List results = Collections.synchronizedList([])
+        List threads = (1..8).collect {
+            Thread.start {
+                results << new JNILoader(extractionDir.name, platform).extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+            }
+        }
+
+        when:
+        threads*.join()
+        File libPath = new File(extractionDir, 'jni-loader/linux/x86_64')
+
+        then:
+        results == [true] * 8
+        getExpectedJBlasFiles(extractionDir, LINUX, X86_64).every { it.file }
+        !libPath.listFiles().any { it.name.contains('.staging-') }
+    }
+
+    def 'concurrent requests share one extraction'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        List results = Collections.synchronizedList([])
+        List threads = (1..8).collect {
+            Thread.start {
+                results << loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+            }
+        }
+
+        when:
+        threads*.join()
+
+        then:
+        results == [true] * 8
+        getExpectedJBlasFiles(extractionDir, LINUX, X86_64).every { it.file }
+    }
+
+    def 'failed extraction is retried'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+
+        when:
+        loader.extractLibs(JBLAS_PATH, 'missing')
+
+        then:
+        thrown(FileNotFoundException)
+
+        when:
+        loader.extractLibs(JBLAS_PATH, 'missing')
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    def 'missing bundle reports the platforms searched'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(MINGW, X86_64))
+
+        when:
+        loader.extractLibs(JBLAS_PATH, 'missing')
+
+        then:
+        FileNotFoundException fnfe = thrown()
+        fnfe.message.contains('mingw-x86_64')
+        fnfe.message.contains("${JBLAS_PATH}/missing-mingw-x86_64.zip")
+        fnfe.message.contains("${JBLAS_PATH}/missing-windows-x86_64.zip")
+    }
+
+    def 'cached extraction'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.cacheEnabled = true
+
+        when:
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+        File cacheDir = new File(extractionDir, 'jni-loader/cache/linux/x86_64')
+        List bundleDirs = cacheDir.listFiles().findAll { it.directory }
+
+        then:
+        loaded
+        bundleDirs.size() == 1
+        bundleDirs[0].name.startsWith("${JBLAS_PACKAGE}-")
+        new File(bundleDirs[0], 'libjblas_arch_flavor.so').file
+        new File(bundleDirs[0], 'sse3/libjblas.so').file
+        !new File(extractionDir, 'jni-loader/linux/x86_64').exists()
+
+        when: 'another loader finds the bundle in the cache'
+        JNILoader cached = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        cached.cacheEnabled = true
+        cached.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        cacheDir.listFiles().findAll { it.directory } == bundleDirs
+        cached.findLibrary('jblas').parentFile.parentFile == bundleDirs[0].canonicalFile
+    }
+
+    def 'cached bundles in use by another process are not evicted'() {
+        given: 'another process that has extracted a bundle to the cache and is still using it'
+        String script = """
+            def loader = new com.shankyank.jniloader.JNILoader(args[0], new com.shankyank.jniloader.JNILoader.Platform(
+                    com.shankyank.jniloader.OperatingSystem.LINUX, com.shankyank.jniloader.Architecture.X86_64))
+            loader.cacheEnabled = true
+            loader.updateLibraryPath = false
+            println loader.extractLibs('${JBLAS_PATH}', '${JBLAS_PACKAGE}')
+            System.in.read()
+        """
+        String java = new File(new File(System.getProperty('java.home'), 'bin'), 'java').path
+        Process user = new ProcessBuilder(java, '-cp', System.getProperty('java.class.path'), 'groovy.ui.GroovyMain', '-e', script,
+                extractionDir.name).redirectErrorStream(true).start()
+        BufferedReader output = new BufferedReader(new InputStreamReader(user.inputStream))
+        String extracted = output.readLine()
+        while (extracted != null && !(extracted in ['true', 'false'])) {
+            extracted = output.readLine()
+        }
+        File cacheDir = new File(extractionDir, 'jni-loader/cache/linux/x86_64')
+        File used = cacheDir.listFiles().find { it.directory }
+
+        when: 'this process adds another bundle to a cache that is over its quota'
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        loader.cacheEnabled = true
+        loader.cacheMaxBytes = 1L
+        loader.updateLibraryPath = false
+        loader.extractLibs('/native/formats', 'hello')
+
+        then:
+        extracted == 'true'
+        new File(used, 'sse3/libjblas.so').file
+
+        when: 'the other process exits'
+        user.outputStream.close()
+        user.waitFor()
+        new NativeLibCache(cacheDir, 1L, 0L).evict(loader.findLibrary('hello').parentFile)
+
+        then:
+        !used.exists()
+
+        cleanup:
+        user?.destroy()
+    }
+
+    def 'asynchronous extraction'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        loader.executor = executor
+
+        when:
+        Future<Boolean> loaded = loader.extractLibsAsync(JBLAS_PATH, JBLAS_PACKAGE)
+        List sysPaths = loaded.get() ? System.getProperty('java.library.path').split(File.pathSeparator).collect { new File(it).canonicalFile } : []
+
+        then:
+        loaded.done
+        getExpectedJBlasFiles(extractionDir, LINUX, X86_64).every { it.file && sysPaths.contains(it.parentFile.canonicalFile) }
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def 'extract all fails with the first error'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+
+        when:
+        loader.extractAll(JBLAS_PATH, [JBLAS_PACKAGE, 'missing']).get()
+
+        then:
+        ExecutionException ee = thrown()
+        ee.cause instanceof FileNotFoundException
+        getExpectedJBlasFiles(extractionDir, LINUX, X86_64).every { it.file }
+    }
+
+    def 'extract all fails if the executor rejects a bundle'() {
+        given:
+        JNILoader loader = new JNILoader(extractionDir.name, new Platform(LINUX, X86_64))
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        executor.shutdown()
+        loader.executor = executor
+
+        when:
+        Future<Boolean> loaded = loader.extractAll(JBLAS_PATH, [JBLAS_PACKAGE])
+
+        then:
+        loaded.done
+
+        when:
+        loaded.get()
+
+        then:
+        ExecutionException ee = thrown()
+        ee.cause instanceof RejectedExecutionException
+        !extractionDir.exists()
+    }
+
+    def 'extract all with no bundles'() {
+        expect:
+        new JNILoader(extractionDir.name).extractAll(JBLAS_PATH, []).get()
+    }
+
+    def 'invalid extraction threads'() {
+        when:
+        new JNILoader(extractionDir.name).extractionThreads = 0
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
     @Unroll
     def 'linux on windows fallback: #os/#arch'() {
         expect:
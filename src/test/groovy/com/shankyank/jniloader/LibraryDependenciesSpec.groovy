@@ -0,0 +1,60 @@
+package com.shankyank.jniloader
+
+import java.util.zip.ZipFile
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LibraryDependenciesSpec extends Specification {
+    File workDir
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-deps', '')
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    @Unroll
+    def 'dependencies of #library in #bundle'() {
+        given:
+        File extracted = new File(workDir, library.replace('/', '_'))
+        ZipFile zip = new ZipFile(new File(LibraryDependenciesSpec.getResource("/native/jblas/${bundle}.zip").toURI()))
+        try {
+            extracted.bytes = zip.getInputStream(zip.getEntry(library)).bytes
+        } finally {
+            zip.close()
+        }
+
+        expect:
+        LibraryDependencies.read(extracted) == dependencies
+
+        where:
+        bundle                       | library                       || dependencies
+        'jblas-1.2.3-windows-x86_64' | 'jblas.dll'                   || ['libgcc_s_sjlj-1.dll', 'libgfortran-3.dll', 'KERNEL32.dll', 'msvcrt.dll']
+        'jblas-1.2.3-linux-x86_64'   | 'sse3/libjblas.so'            || ['libgfortran.so.3', 'libc.so.6']
+        'jblas-1.2.3-darwin-x86_64'  | 'libjblas_arch_flavor.jnilib' || ['libSystem.B.dylib']
+    }
+
+    def 'files that are not libraries have no dependencies'() {
+        given:
+        File text = new File(workDir, 'readme.txt')
+        text.text = 'not a library'
+        File empty = new File(workDir, 'empty')
+        empty.createNewFile()
+
+        expect:
+        LibraryDependencies.read(text) == []
+        LibraryDependencies.read(empty) == []
+    }
+
+    def 'truncated libraries have no dependencies'() {
+        given: 'a file with the ELF magic that ends before the identification bytes'
+        File truncated = new File(workDir, 'libtruncated.so')
+        truncated.bytes = [0x7f, 0x45, 0x4c, 0x46, 0x02, 0x01] as byte[]
+
+        expect:
+        LibraryDependencies.read(truncated) == []
+    }
+}
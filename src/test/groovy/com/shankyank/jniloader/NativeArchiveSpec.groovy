@@ -0,0 +1,186 @@
+package com.shankyank.jniloader
+
+import java.security.MessageDigest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class NativeArchiveSpec extends Specification {
+    File workDir
+    File archive
+    Map<String, byte[]> contents = [
+            'libfoo.so': (0..<100000).collect { (byte) (it % 251) } as byte[],
+            'sub/libbar.so': 'bar'.bytes
+    ]
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-archive', '')
+        archive = new File(workDir, 'bundle.zip')
+        new ZipOutputStream(new FileOutputStream(archive)).withStream { ZipOutputStream zip ->
+            zip.setComment('a comment after the central directory')
+            contents.each { String name, byte[] data ->
+                ZipEntry entry = new ZipEntry(name)
+                CRC32 crc = new CRC32()
+                crc.update(data)
+                entry.method = ZipEntry.STORED
+                entry.size = data.length
+                entry.compressedSize = data.length
+                entry.crc = crc.value
+                entry.extra = new byte[7]
+                zip.putNextEntry(entry)
+                zip.write(data)
+                zip.closeEntry()
+            }
+        }
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    def 'transfer stored entries: #name'() {
+        given:
+        NativeArchive packaged = NativeArchive.open(archive.toURI().toURL())
+        File target = new File(workDir, 'extracted')
+
+        when:
+        ZipEntry entry = packaged.getEntry(name)
+        long offset = packaged.getDataOffset(entry)
+        IOHelper.transfer(packaged.channel, offset, entry.size, target)
+        CRC32 crc = new CRC32()
+        byte[] digest = IOHelper.digest(target, MessageDigest.getInstance('SHA-256'), crc)
+
+        then:
+        packaged.randomAccess
+        offset > 0
+        target.bytes == contents[name]
+        crc.value == entry.crc
+        digest == MessageDigest.getInstance('SHA-256').digest(contents[name])
+        IOHelper.checksum(target, new CRC32()) == entry.crc
+
+        cleanup:
+        packaged?.close()
+
+        where:
+        name << ['libfoo.so', 'sub/libbar.so']
+    }
+
+    def 'unknown entries have no data offset'() {
+        given:
+        NativeArchive packaged = NativeArchive.open(archive.toURI().toURL())
+
+        expect:
+        packaged.getDataOffset(new ZipEntry('missing.so')) == -1L
+
+        cleanup:
+        packaged?.close()
+    }
+
+    /**
+     * @return the location of the archive in a jar
+     */
+    URL jarUrl() {
+        File jar = new File(workDir, 'bundle.jar')
+        new ZipOutputStream(new FileOutputStream(jar)).withStream { ZipOutputStream zip ->
+            zip.putNextEntry(new ZipEntry('bundle.zip'))
+            zip.write(archive.bytes)
+            zip.closeEntry()
+        }
+        return new URL("jar:${jar.toURI()}!/bundle.zip")
+    }
+
+    /**
+     * @return a location of the archive that can only be streamed
+     */
+    URL streamUrl() {
+        URLStreamHandler handler = new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(final URL url) {
+                return new URLConnection(url) {
+                    @Override
+                    void connect() {
+                    }
+
+                    @Override
+                    InputStream getInputStream() {
+                        return new FileInputStream(archive)
+                    }
+                }
+            }
+        }
+        return new URL(null, 'stream:bundle.zip', handler)
+    }
+
+    def 'file system archives are read through the central directory'() {
+        given: 'an archive whose entry data no longer matches its central directory'
+        NativeArchive original = NativeArchive.open(archive.toURI().toURL())
+        long offset = original.getDataOffset(original.getEntry('libfoo.so'))
+        original.close()
+        RandomAccessFile raf = new RandomAccessFile(archive, 'rw')
+        raf.seek(offset)
+        raf.write(~contents['libfoo.so'][0])
+        raf.close()
+        NativeArchive packaged = NativeArchive.open(archive.toURI().toURL())
+
+        when: 'the entries are listed without reading them'
+        Map<String, List<Long>> entries = [:]
+        for (ZipEntry entry = packaged.nextEntry; entry != null; entry = packaged.nextEntry) {
+            entries[entry.name] = [entry.size, entry.crc]
+        }
+
+        then: 'the sizes and CRC-32 values come from the central directory'
+        packaged.randomAccess
+        packaged.hasChecksums()
+        entries == contents.collectEntries { String name, byte[] data ->
+            CRC32 crc = new CRC32()
+            crc.update(data)
+            [(name): [(long) data.length, crc.value]]
+        }
+        packaged.getEntry('sub/libbar.so').size == 3L
+
+        cleanup:
+        packaged?.close()
+    }
+
+    @Unroll
+    def 'other locations are read sequentially: #location'() {
+        given:
+        NativeArchive packaged = NativeArchive.open(location == 'jar' ? jarUrl() : streamUrl())
+
+        when:
+        Map<String, byte[]> read = [:]
+        for (ZipEntry entry = packaged.nextEntry; entry != null; entry = packaged.nextEntry) {
+            read[entry.name] = packaged.inputStream.bytes
+        }
+
+        then:
+        !packaged.randomAccess
+        !packaged.hasChecksums()
+        read.keySet() as List == contents.keySet() as List
+        read.every { String name, byte[] data -> data == contents[name] }
+
+        cleanup:
+        packaged?.close()
+
+        where:
+        location << ['jar', 'stream']
+    }
+
+    def 'sequential archives do not support channels'() {
+        given:
+        NativeArchive packaged = NativeArchive.open(jarUrl())
+
+        when:
+        packaged.getDataOffset(new ZipEntry('libfoo.so'))
+
+        then:
+        !packaged.randomAccess
+        thrown(UnsupportedOperationException)
+
+        cleanup:
+        packaged?.close()
+    }
+}
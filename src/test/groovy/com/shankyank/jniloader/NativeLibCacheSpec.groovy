@@ -0,0 +1,95 @@
+package com.shankyank.jniloader
+
+import java.util.concurrent.TimeUnit
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class NativeLibCacheSpec extends Specification {
+    File cacheRoot
+
+    def setup() {
+        cacheRoot = File.createTempDir('jniloader-cache', '')
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(cacheRoot)
+    }
+
+    def 'bundle directories are content addressed'() {
+        given:
+        NativeLibCache cache = new NativeLibCache(cacheRoot, 0L, 0L)
+
+        expect:
+        cache.getBundleDir('mylib', '0123456789abcdef0123') == new File(cacheRoot, 'mylib-0123456789abcdef')
+        cache.getBundleDir('mylib', 'fedcba9876543210') != cache.getBundleDir('mylib', '0123456789abcdef')
+        cache.getLockFile(new File(cacheRoot, 'mylib-0123456789abcdef')) == new File(cacheRoot, '.mylib-0123456789abcdef.lock')
+        cache.getUseLockFile(new File(cacheRoot, 'mylib-0123456789abcdef')) == new File(cacheRoot, '.mylib-0123456789abcdef.inuse')
+    }
+
+    def 'evict least recently used bundles over quota'() {
+        given:
+        NativeLibCache cache = new NativeLibCache(cacheRoot, 250L, 0L)
+        File oldest = createBundle('lib-1', 100, 3)
+        File older = createBundle('lib-2', 100, 2)
+        File newest = createBundle('lib-3', 100, 1)
+
+        when:
+        cache.evict(newest)
+
+        then:
+        !oldest.exists()
+        older.exists()
+        newest.exists()
+    }
+
+    def 'evict expired bundles'() {
+        given:
+        NativeLibCache cache = new NativeLibCache(cacheRoot, 0L, TimeUnit.DAYS.toMillis(7))
+        File expired = createBundle('lib-1', 10, 30)
+        File recent = createBundle('lib-2', 10, 1)
+
+        when:
+        cache.evict(recent)
+
+        then:
+        !expired.exists()
+        recent.exists()
+    }
+
+    def 'never evict bundle in use'() {
+        given:
+        NativeLibCache cache = new NativeLibCache(cacheRoot, 1L, 1L)
+        File inUse = createBundle('lib-1', 100, 30)
+
+        when:
+        cache.evict(inUse)
+
+        then:
+        inUse.exists()
+    }
+
+    def 'never evict bundles marked in use'() {
+        given:
+        NativeLibCache cache = new NativeLibCache(cacheRoot, 1L, 0L)
+        File used = createBundle('lib-1', 100, 3)
+        File unused = createBundle('lib-2', 100, 2)
+        File newest = createBundle('lib-3', 100, 1)
+        cache.markInUse(used)
+
+        when:
+        cache.evict(newest)
+
+        then:
+        used.exists()
+        !unused.exists()
+        cache.getUseLockFile(used).file
+    }
+
+    File createBundle(final String name, final int size, final int daysUnused) {
+        File bundleDir = new File(cacheRoot, name)
+        bundleDir.mkdirs()
+        new File(bundleDir, 'libfoo.so').bytes = new byte[size]
+        bundleDir.lastModified = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(daysUnused)
+        bundleDir
+    }
+}
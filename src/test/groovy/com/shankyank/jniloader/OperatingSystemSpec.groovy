@@ -65,4 +65,21 @@ class OperatingSystemSpec extends Specification {
         'NetBSD'                 || OTHER   | 'netbsd'
         ''                       || OTHER   | ''
     }
+
+    @Unroll
+    def 'mapLibraryName: #os'() {
+        expect:
+        os.mapLibraryName('foo') == names
+
+        where:
+        os      || names
+        WINDOWS || ['foo.dll']
+        CYGWIN  || ['foo.dll']
+        MINGW   || ['foo.dll']
+        MSYS    || ['foo.dll']
+        DARWIN  || ['libfoo.dylib', 'libfoo.jnilib']
+        LINUX   || ['libfoo.so']
+        SOLARIS || ['libfoo.so']
+        OTHER   || ['libfoo.so']
+    }
 }
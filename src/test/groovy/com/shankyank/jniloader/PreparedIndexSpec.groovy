@@ -0,0 +1,150 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.Architecture.*
+import static com.shankyank.jniloader.ExtractionPhase.*
+import static com.shankyank.jniloader.OperatingSystem.*
+
+import com.shankyank.jniloader.JNILoader.Platform
+import java.util.concurrent.CopyOnWriteArrayList
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class PreparedIndexSpec extends Specification {
+    static final String JBLAS_PATH = '/native/jblas'
+    static final String JBLAS_PACKAGE = 'jblas-1.2.3'
+    static final String JBLAS_ARCHIVE = '/native/jblas/jblas-1.2.3-linux-x86_64.zip'
+    static final String FORMATS_PATH = '/native/formats'
+    static final String HELLO_PACKAGE = 'hello'
+
+    File extractionDir
+    File preparedDir
+    List<ExtractionEvent> events = new CopyOnWriteArrayList<>()
+    ExtractionListener listener = { ExtractionEvent event -> events << event } as ExtractionListener
+
+    def setup() {
+        extractionDir = new File(JNILoader.@TMP_DIR, "jniloadertest-${UUID.randomUUID().toString()}")
+        preparedDir = File.createTempDir('jniloader-prepared', '').canonicalFile
+        ExtractionMetrics.addListener(listener)
+    }
+
+    def cleanup() {
+        ExtractionMetrics.removeListener(listener)
+        FileUtils.deleteDirectory(extractionDir)
+        FileUtils.deleteDirectory(preparedDir)
+    }
+
+    JNILoader newLoader(final File prepared = null, final Platform platform = new Platform(LINUX, X86_64)) {
+        // a new JVM has not verified any bundle
+        BundleRegistry.instance.clear()
+        JNILoader loader = new JNILoader(extractionDir.name, platform)
+        loader.updateLibraryPath = false
+        loader.preparedDirectory = prepared
+        return loader
+    }
+
+    def 'prepare writes an index of the prepared bundles'() {
+        when:
+        boolean prepared = newLoader().prepare(preparedDir, JBLAS_PATH, [JBLAS_PACKAGE])
+        PreparedIndex index = PreparedIndex.read(preparedDir)
+
+        then:
+        prepared
+        index.archives as List == [JBLAS_ARCHIVE]
+        new File(preparedDir, 'sse3/libjblas.so').file
+        !extractionDir.exists()
+
+        when: 'a second package is prepared into the same directory'
+        newLoader().prepare(preparedDir, FORMATS_PATH, [HELLO_PACKAGE])
+
+        then:
+        PreparedIndex.read(preparedDir).archives as List == [JBLAS_ARCHIVE, '/native/formats/hello-linux-x86_64.tar']
+    }
+
+    def 'prepared bundles are loaded without extraction'() {
+        given:
+        newLoader().prepare(preparedDir, JBLAS_PATH, [JBLAS_PACKAGE])
+        events.clear()
+
+        when:
+        JNILoader loader = newLoader(preparedDir)
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary('jblas') == new File(preparedDir, 'sse3/libjblas.so')
+        events.find { it.phase == VERIFY }.successful
+        !events.any { it.phase in [EXTRACT, CHECKSUM] }
+        !extractionDir.exists()
+    }
+
+    def 'prepared bundles can be registered'() {
+        given:
+        newLoader().prepare(preparedDir, FORMATS_PATH, [HELLO_PACKAGE])
+
+        when:
+        JNILoader loader = newLoader(preparedDir)
+        loader.registerLibs(FORMATS_PATH, HELLO_PACKAGE)
+
+        then:
+        loader.findLibrary(HELLO_PACKAGE) == new File(preparedDir, 'libhello.so')
+        !extractionDir.exists()
+    }
+
+    def 'changed bundles are extracted'() {
+        given:
+        newLoader().prepare(preparedDir, FORMATS_PATH, [HELLO_PACKAGE])
+        new File(preparedDir, 'libhello.so').text = 'changed since it was prepared'
+        events.clear()
+
+        when:
+        JNILoader loader = newLoader(preparedDir)
+        boolean loaded = loader.extractLibs(FORMATS_PATH, HELLO_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary(HELLO_PACKAGE).path.startsWith(extractionDir.canonicalPath)
+        events.any { it.phase == EXTRACT }
+    }
+
+    def 'bundles missing from the index are extracted'() {
+        given:
+        newLoader().prepare(preparedDir, FORMATS_PATH, [HELLO_PACKAGE])
+
+        when:
+        JNILoader loader = newLoader(preparedDir)
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary('jblas').path.startsWith(extractionDir.canonicalPath)
+    }
+
+    def 'directories without an index are ignored'() {
+        when:
+        JNILoader loader = newLoader(preparedDir)
+        boolean loaded = loader.extractLibs(JBLAS_PATH, JBLAS_PACKAGE)
+
+        then:
+        loaded
+        loader.findLibrary('jblas').path.startsWith(extractionDir.canonicalPath)
+    }
+
+    def 'malformed indexes are not read'() {
+        given:
+        new File(preparedDir, PreparedIndex.FILE_NAME).text = 'bundle\tonly-two-fields\n'
+
+        expect:
+        PreparedIndex.read(preparedDir) == null
+    }
+
+    def 'prepared directory defaults to the system property'() {
+        given:
+        System.setProperty(JNILoader.PREPARED_DIRECTORY_PROPERTY, preparedDir.path)
+
+        expect:
+        new JNILoader().preparedDirectory == preparedDir
+
+        cleanup:
+        System.clearProperty(JNILoader.PREPARED_DIRECTORY_PROPERTY)
+    }
+}
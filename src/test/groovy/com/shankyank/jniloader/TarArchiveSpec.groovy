@@ -0,0 +1,119 @@
+package com.shankyank.jniloader
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class TarArchiveSpec extends Specification {
+    static final String DEEP = "sub/${'a' * 120}/libdeep.so"
+    static final List<String> NAMES = ['libhello.so', 'libbig.so', 'sub/', "sub/${'a' * 120}/", DEEP]
+    static final byte[] BIG = (0..<20000).collect { (byte) (it % 251) } as byte[]
+
+    File workDir
+
+    def setup() {
+        workDir = File.createTempDir('jniloader-tar', '')
+    }
+
+    def cleanup() {
+        FileUtils.deleteDirectory(workDir)
+    }
+
+    def 'random access: #archive'() {
+        given:
+        NativeArchive packaged = TarArchive.open(TarArchiveSpec.getResource("/native/formats/${archive}"))
+        File target = new File(workDir, 'extracted')
+
+        when:
+        List<String> names = []
+        for (ZipEntry entry = packaged.nextEntry; entry != null; entry = packaged.nextEntry) {
+            names << entry.name
+        }
+        ZipEntry big = packaged.getEntry('libbig.so')
+        IOHelper.transfer(packaged.channel, packaged.getDataOffset(big), big.size, target)
+
+        then:
+        packaged.randomAccess
+        !packaged.hasChecksums()
+        names == NAMES
+        big.method == ZipEntry.STORED
+        big.size == BIG.length
+        big.crc == -1
+        target.bytes == BIG
+        packaged.getInputStream(packaged.getEntry(DEEP)).text == 'deep\n'
+        packaged.getDataOffset(new ZipEntry('missing.so')) == -1L
+
+        cleanup:
+        packaged?.close()
+
+        where:
+        archive << ['hello-linux-x86_64.tar', 'gnu-linux-x86_64.tar']
+    }
+
+    def 'sequential: #archive'() {
+        given:
+        File jar = new File(workDir, 'bundle.jar')
+        new ZipOutputStream(new FileOutputStream(jar)).withStream { ZipOutputStream zip ->
+            zip.putNextEntry(new ZipEntry('bundle.tar'))
+            zip.write(TarArchiveSpec.getResource("/native/formats/${archive}").bytes)
+            zip.closeEntry()
+        }
+        NativeArchive packaged = TarArchive.open(new URL("jar:${jar.toURI()}!/bundle.tar"))
+
+        when:
+        Map<String, byte[]> contents = [:]
+        for (ZipEntry entry = packaged.nextEntry; entry != null; entry = packaged.nextEntry) {
+            // only read part of the first file, the rest is skipped by the next entry
+            contents[entry.name] = entry.directory ? null : entry.name == 'libhello.so' ? [(byte) packaged.inputStream.read()] as byte[] :
+                    packaged.inputStream.bytes
+        }
+
+        then:
+        !packaged.randomAccess
+        contents.keySet() as List == NAMES
+        contents['libhello.so'] == 't'.bytes
+        contents['libbig.so'] == BIG
+        contents[DEEP] == 'deep\n'.bytes
+
+        when:
+        packaged.getEntry('libbig.so')
+
+        then:
+        thrown(UnsupportedOperationException)
+
+        cleanup:
+        packaged?.close()
+
+        where:
+        archive << ['hello-linux-x86_64.tar', 'gnu-linux-x86_64.tar']
+    }
+
+    def 'corrupt headers are rejected'() {
+        given:
+        byte[] data = TarArchiveSpec.getResource('/native/formats/hello-windows-x86_64.tar').bytes
+        data[0] = (byte) 'j'
+        File archive = new File(workDir, 'corrupt.tar')
+        archive.bytes = data
+
+        when:
+        TarArchive.open(archive.toURI().toURL())
+
+        then:
+        IOException ioe = thrown()
+        ioe.message.contains('checksum')
+    }
+
+    def 'truncated archives are rejected'() {
+        given:
+        byte[] data = TarArchiveSpec.getResource('/native/formats/hello-linux-x86_64.tar').bytes
+        File archive = new File(workDir, 'truncated.tar')
+        archive.bytes = Arrays.copyOf(data, 4096)
+
+        when:
+        TarArchive.open(archive.toURI().toURL())
+
+        then:
+        thrown(EOFException)
+    }
+}
@@ -0,0 +1,43 @@
+package com.shankyank.jniloader
+
+import static com.shankyank.jniloader.VerificationPolicy.*
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class VerificationPolicySpec extends Specification {
+    def cleanup() {
+        System.clearProperty(VERIFICATION_PROPERTY)
+    }
+
+    @Unroll
+    def 'configured policy: "#property"'() {
+        when:
+        System.setProperty(VERIFICATION_PROPERTY, property)
+
+        then:
+        VerificationPolicy.systemPolicy == policy
+
+        where:
+        property   || policy
+        ''         || CHECKSUM
+        'none'     || NONE
+        ' SIZE '   || SIZE
+        'crc'      || CRC
+        'sha256'   || SHA256
+        'md5'      || CHECKSUM
+    }
+
+    def 'default policy'() {
+        expect:
+        VerificationPolicy.systemPolicy == CHECKSUM
+        new JNILoader().verificationPolicy == CHECKSUM
+    }
+
+    def 'forName'() {
+        expect:
+        VerificationPolicy.forName('crc') == CRC
+        VerificationPolicy.forName(' Checksum ') == CHECKSUM
+        VerificationPolicy.forName('crc32c') == null
+    }
+}